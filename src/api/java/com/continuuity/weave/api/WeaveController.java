@@ -15,7 +15,9 @@
  */
 package com.continuuity.weave.api;
 
+import com.continuuity.weave.api.logging.LogEntry;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * For controller a running application.
@@ -27,4 +29,26 @@ public interface WeaveController extends ServiceController {
    * @param handler The handler to add.
    */
   void addLogHandler(LogHandler handler);
+
+  /**
+   * Sets the log level of a logger in the running instances of a runnable. Log events below the level are
+   * discarded by the runnable, before being sent.
+   *
+   * @param runnableName Name of the runnable, or {@code null} for all runnables.
+   * @param loggerName Name of the logger, or {@code null} for the root logger.
+   * @param level The log level.
+   * @return A {@link ListenableFuture} that will be completed when the change is delivered to the runnables.
+   */
+  ListenableFuture<Command> setLogLevel(String runnableName, String loggerName, LogEntry.Level level);
+
+  /**
+   * Sets the running instances of a runnable to send only one in every {@code interval} log events of the
+   * given level.
+   *
+   * @param runnableName Name of the runnable, or {@code null} for all runnables.
+   * @param level The log level.
+   * @param interval The sampling interval, {@code 1} to send all.
+   * @return A {@link ListenableFuture} that will be completed when the change is delivered to the runnables.
+   */
+  ListenableFuture<Command> setLogSampling(String runnableName, LogEntry.Level level, int interval);
 }
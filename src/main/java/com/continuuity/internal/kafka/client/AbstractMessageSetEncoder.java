@@ -18,32 +18,13 @@ package com.continuuity.internal.kafka.client;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 
-import java.util.zip.CRC32;
-
 /**
  *
  */
 abstract class AbstractMessageSetEncoder implements MessageSetEncoder {
 
-  private static final ThreadLocal<CRC32> CRC32_LOCAL = new ThreadLocal<CRC32>() {
-    @Override
-    protected CRC32 initialValue() {
-      return new CRC32();
-    }
-  };
-
   protected final int computeCRC32(ChannelBuffer buffer) {
-    CRC32 crc32 = CRC32_LOCAL.get();
-    crc32.reset();
-
-    if (buffer.hasArray()) {
-      crc32.update(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
-    } else {
-      byte[] bytes = new byte[buffer.readableBytes()];
-      buffer.getBytes(buffer.readerIndex(), bytes);
-      crc32.update(bytes);
-    }
-    return (int) crc32.getValue();
+    return Checksums.crc32(buffer);
   }
 
   protected final ChannelBuffer encodePayload(ChannelBuffer payload) {
@@ -69,6 +50,19 @@ abstract class AbstractMessageSetEncoder implements MessageSetEncoder {
     return ChannelBuffers.wrappedBuffer(header, payload);
   }
 
+  /**
+   * Writes an uncompressed message with the given payload to the given buffer.
+   */
+  protected final void writeMessage(ChannelBuffer buffer, ChannelBuffer payload) {
+    int len = payload.readableBytes();
+    buffer.ensureWritableBytes(9 + len);
+    // Message length = 1 byte magic + 4 bytes crc + payload length
+    buffer.writeInt(5 + len);
+    buffer.writeByte(0);
+    buffer.writeInt(computeCRC32(payload));
+    buffer.writeBytes(payload, payload.readerIndex(), len);
+  }
+
   protected final ChannelBuffer prefixLength(ChannelBuffer buffer) {
     ChannelBuffer sizeBuf = ChannelBuffers.buffer(4);
     sizeBuf.writeInt(buffer.readableBytes());
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.FetchedMessage;
+import com.continuuity.kafka.client.MessageCallback;
+import com.continuuity.zookeeper.Cancellable;
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A {@link MessageCallback} that exposes the received messages as a blocking {@link Iterator}. At most one batch
+ * is buffered ahead of the iterator consumer; the callback blocks beyond that, which in turn stops further
+ * fetching of the partition.
+ */
+final class BlockingMessageIterator extends AbstractIterator<FetchedMessage> implements MessageCallback {
+
+  private final BlockingQueue<Batch> batches = new LinkedBlockingQueue<Batch>();
+  // Permit for buffering one batch ahead of the iterator consumer
+  private final Semaphore permits = new Semaphore(1);
+  private Iterator<FetchedMessage> current = Iterators.emptyIterator();
+  private volatile Cancellable cancellable;
+
+  void setCancellable(Cancellable cancellable) {
+    this.cancellable = cancellable;
+  }
+
+  @Override
+  public void onReceived(Iterator<FetchedMessage> messages) {
+    try {
+      permits.acquire();
+      // Copy the messages as the iterator is only valid during this call.
+      batches.add(new Batch(Iterators.toArray(messages, FetchedMessage.class), null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void finished(Throwable cause) {
+    batches.add(new Batch(null, cause));
+  }
+
+  @Override
+  protected FetchedMessage computeNext() {
+    if (current.hasNext()) {
+      return current.next();
+    }
+
+    try {
+      Batch batch = batches.take();
+      while (batch.messages != null && batch.messages.length == 0) {
+        permits.release();
+        batch = batches.take();
+      }
+      if (batch.messages == null) {
+        if (batch.cause != null) {
+          throw Throwables.propagate(batch.cause);
+        }
+        return endOfData();
+      }
+      permits.release();
+      current = Iterators.forArray(batch.messages);
+      return current.next();
+    } catch (InterruptedException e) {
+      Cancellable cancellable = this.cancellable;
+      if (cancellable != null) {
+        cancellable.cancel();
+      }
+      // Unblock the callback thread if it is waiting for permit
+      permits.release();
+      return endOfData();
+    }
+  }
+
+  private static final class Batch {
+    private final FetchedMessage[] messages;
+    private final Throwable cause;
+
+    private Batch(FetchedMessage[] messages, Throwable cause) {
+      this.messages = messages;
+      this.cause = cause;
+    }
+  }
+}
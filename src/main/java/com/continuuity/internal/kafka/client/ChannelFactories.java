@@ -0,0 +1,123 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.weave.internal.utils.Threads;
+import com.google.common.collect.Maps;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.socket.ClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.SocketChannel;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Provides {@link ClientSocketChannelFactory} for Kafka clients. Shared factories are reference counted, so that
+ * all clients in the same JVM with the same number of worker threads use the same Netty I/O threads, which are
+ * released when the last client releases its factory.
+ */
+final class ChannelFactories {
+
+  private static final Map<Integer, SharedFactory> SHARED_FACTORIES = Maps.newHashMap();
+
+  /**
+   * Returns a factory that uses I/O threads shared with other clients. Calling
+   * {@link ClientSocketChannelFactory#releaseExternalResources()} on the returned factory releases this
+   * reference only.
+   *
+   * @param workerThreads Number of I/O worker threads.
+   */
+  static ClientSocketChannelFactory shared(int workerThreads) {
+    synchronized (SHARED_FACTORIES) {
+      SharedFactory factory = SHARED_FACTORIES.get(workerThreads);
+      if (factory == null) {
+        factory = new SharedFactory(workerThreads, create("kafka-client-netty-shared-%d", workerThreads));
+        SHARED_FACTORIES.put(workerThreads, factory);
+      }
+      factory.refCount++;
+      return new FactoryReference(factory);
+    }
+  }
+
+  /**
+   * Returns a factory with its own I/O threads.
+   *
+   * @param workerThreads Number of I/O worker threads.
+   */
+  static ClientSocketChannelFactory exclusive(int workerThreads) {
+    return create("kafka-client-netty-%d", workerThreads);
+  }
+
+  private static ClientSocketChannelFactory create(String threadName, int workerThreads) {
+    ThreadFactory threadFactory = Threads.createDaemonThreadFactory(threadName);
+    return new NioClientSocketChannelFactory(Executors.newSingleThreadExecutor(threadFactory),
+                                             Executors.newFixedThreadPool(workerThreads, threadFactory),
+                                             workerThreads);
+  }
+
+  private static void release(SharedFactory factory) {
+    synchronized (SHARED_FACTORIES) {
+      if (--factory.refCount > 0) {
+        return;
+      }
+      SHARED_FACTORIES.remove(factory.workerThreads);
+    }
+    factory.delegate.releaseExternalResources();
+  }
+
+  private ChannelFactories() {
+  }
+
+  private static final class SharedFactory {
+    private final int workerThreads;
+    private final ClientSocketChannelFactory delegate;
+    private int refCount;
+
+    SharedFactory(int workerThreads, ClientSocketChannelFactory delegate) {
+      this.workerThreads = workerThreads;
+      this.delegate = delegate;
+    }
+  }
+
+  /**
+   * One reference to a shared factory. Releasing it more than once has no effect.
+   */
+  private static final class FactoryReference implements ClientSocketChannelFactory {
+
+    private final SharedFactory factory;
+    private final AtomicBoolean released;
+
+    FactoryReference(SharedFactory factory) {
+      this.factory = factory;
+      this.released = new AtomicBoolean();
+    }
+
+    @Override
+    public SocketChannel newChannel(ChannelPipeline pipeline) {
+      return factory.delegate.newChannel(pipeline);
+    }
+
+    @Override
+    public void releaseExternalResources() {
+      if (released.compareAndSet(false, true)) {
+        release(factory);
+      }
+    }
+  }
+}
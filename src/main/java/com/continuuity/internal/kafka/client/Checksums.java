@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Helper for computing message checksums over {@link ChannelBuffer} without allocating a copy of the data,
+ * for heap, direct and composite buffers alike.
+ */
+final class Checksums {
+
+  private static final int SCRATCH_SIZE = 8192;
+
+  private static final ThreadLocal<CRC32> CRC32_LOCAL = new ThreadLocal<CRC32>() {
+    @Override
+    protected CRC32 initialValue() {
+      return new CRC32();
+    }
+  };
+
+  private static final ThreadLocal<byte[]> SCRATCH_LOCAL = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SCRATCH_SIZE];
+    }
+  };
+
+  /**
+   * Computes CRC32 of the readable bytes of the given buffer. The reader index is not changed.
+   */
+  static int crc32(ChannelBuffer buffer) {
+    return crc32(buffer, buffer.readerIndex(), buffer.readableBytes());
+  }
+
+  /**
+   * Computes CRC32 of the given range of the given buffer.
+   */
+  static int crc32(ChannelBuffer buffer, int index, int length) {
+    CRC32 crc32 = CRC32_LOCAL.get();
+    crc32.reset();
+
+    if (buffer.hasArray()) {
+      crc32.update(buffer.array(), buffer.arrayOffset() + index, length);
+      return (int) crc32.getValue();
+    }
+
+    // Walk the underlying NIO buffers, which doesn't copy for direct and composite buffers.
+    for (ByteBuffer buf : buffer.toByteBuffers(index, length)) {
+      if (buf.hasArray()) {
+        crc32.update(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+      } else {
+        // Feed direct memory through a small reusable scratch array.
+        byte[] scratch = SCRATCH_LOCAL.get();
+        ByteBuffer dup = buf.duplicate();
+        while (dup.hasRemaining()) {
+          int len = Math.min(scratch.length, dup.remaining());
+          dup.get(scratch, 0, len);
+          crc32.update(scratch, 0, len);
+        }
+      }
+    }
+    return (int) crc32.getValue();
+  }
+
+  private Checksums() {
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import com.google.common.base.Throwables;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.IOException;
+
+/**
+ * {@link MessageSetEncoder} that compresses with a {@link CompressionCodec}. Messages are written with their
+ * headers into one contiguous buffer, which is compressed as a whole by {@link #finish()} into a buffer
+ * pre-sized from the statistics of recent batches.
+ */
+final class CompressedMessageSetEncoder extends AbstractMessageSetEncoder {
+
+  // Message set size (4) + message size (4) + magic (1) + compression (1) + crc (4)
+  private static final int HEADER_SIZE = 14;
+
+  private final CompressionCodec codec;
+  private final CompressionStats stats;
+  private ChannelBuffer uncompressed;
+
+  CompressedMessageSetEncoder(CompressionCodec codec, CompressionStats stats) {
+    this.codec = codec;
+    this.stats = stats;
+  }
+
+  @Override
+  public MessageSetEncoder add(ChannelBuffer payload) {
+    if (uncompressed == null) {
+      uncompressed = ChannelBuffers.dynamicBuffer(stats.getInputSize());
+    }
+    writeMessage(uncompressed, payload);
+    return this;
+  }
+
+  @Override
+  public ChannelBuffer finish() {
+    ChannelBuffer input = uncompressed == null ? ChannelBuffers.EMPTY_BUFFER : uncompressed;
+    int inputSize = input.readableBytes();
+
+    ChannelBuffer output = ChannelBuffers.dynamicBuffer(HEADER_SIZE + stats.getOutputSize(inputSize));
+    output.writerIndex(HEADER_SIZE);
+    try {
+      codec.compress(input, output);
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+
+    int compressedSize = output.writerIndex() - HEADER_SIZE;
+    stats.update(inputSize, compressedSize);
+
+    output.setInt(0, HEADER_SIZE - 4 + compressedSize);
+    output.setInt(4, HEADER_SIZE - 8 + compressedSize);
+    output.setByte(8, 1);
+    output.setByte(9, codec.getCode());
+    output.setInt(10, Checksums.crc32(output, HEADER_SIZE, compressedSize));
+
+    if (uncompressed != null) {
+      uncompressed.clear();
+    }
+    return output;
+  }
+}
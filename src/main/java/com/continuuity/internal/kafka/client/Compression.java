@@ -15,24 +15,47 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import com.continuuity.kafka.client.CompressionCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
 /**
-*
-*/
-public enum Compression {
-  NONE(0),
-  GZIP(1),
-  SNAPPY(2);
+ * Compression codecs defined by Kafka.
+ */
+public enum Compression implements CompressionCodec {
+  NONE(0, null),
+  GZIP(1, new GZipCompressionCodec(Deflater.DEFAULT_COMPRESSION)),
+  SNAPPY(2, new SnappyCompressionCodec());
 
   private final int code;
+  private final CompressionCodec codec;
 
-  Compression(int code) {
+  Compression(int code, CompressionCodec codec) {
     this.code = code;
+    this.codec = codec;
   }
 
+  @Override
   public int getCode() {
     return code;
   }
 
+  @Override
+  public void compress(ChannelBuffer input, ChannelBuffer output) throws IOException {
+    if (codec == null) {
+      output.writeBytes(input, input.readerIndex(), input.readableBytes());
+    } else {
+      codec.compress(input, output);
+    }
+  }
+
+  @Override
+  public ChannelBuffer decompress(ChannelBuffer input) throws IOException {
+    return codec == null ? input : codec.decompress(input);
+  }
+
   public static Compression fromCode(int code) {
     switch (code) {
       case 0:
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import com.google.common.base.Preconditions;
+
+import java.util.zip.Deflater;
+
+/**
+ * Factory for the {@link CompressionCodec}s provided by the client. All of them are registered for
+ * decompression in every {@link SimpleKafkaClient}.
+ */
+public final class CompressionCodecs {
+
+  /**
+   * Code of the codec returned by {@link #snappyBlock()}. It fits in the compression bits of the Kafka message
+   * attributes, but is not known to other Kafka clients.
+   */
+  public static final int SNAPPY_BLOCK_CODE = 3;
+
+  private static final CompressionCodec SNAPPY_BLOCK = new SnappyBlockCompressionCodec();
+
+  /**
+   * Returns a codec that compresses in gzip format with the given level. Messages are readable by any
+   * Kafka consumer.
+   *
+   * @param level Compression level from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}, or
+   *              {@link Deflater#DEFAULT_COMPRESSION}.
+   */
+  public static CompressionCodec gzip(int level) {
+    Preconditions.checkArgument(level == Deflater.DEFAULT_COMPRESSION
+                                  || (level >= Deflater.BEST_SPEED && level <= Deflater.BEST_COMPRESSION),
+                                "Invalid compression level %s", level);
+    return level == Deflater.DEFAULT_COMPRESSION ? Compression.GZIP : new GZipCompressionCodec(level);
+  }
+
+  /**
+   * Returns a codec that compresses each message set as one raw Snappy block. It costs less CPU than
+   * {@link Compression#SNAPPY}, but messages are only readable by this client.
+   */
+  public static CompressionCodec snappyBlock() {
+    return SNAPPY_BLOCK;
+  }
+
+  /**
+   * Returns the codec of the given name. Valid names are {@code none}, {@code gzip}, {@code gzip:<level>},
+   * {@code snappy} and {@code snappy-block}.
+   */
+  public static CompressionCodec forName(String name) {
+    String codec = name.trim().toLowerCase();
+    if (codec.startsWith("gzip:")) {
+      return gzip(Integer.parseInt(codec.substring("gzip:".length())));
+    }
+    if ("snappy-block".equals(codec)) {
+      return SNAPPY_BLOCK;
+    }
+    return Compression.valueOf(codec.toUpperCase());
+  }
+
+  private CompressionCodecs() {
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+/**
+ * Keeps exponentially weighted moving averages of recent compressed batches, used for pre-sizing the buffers
+ * of the next batch. This class is thread safe.
+ */
+final class CompressionStats {
+
+  private static final double WEIGHT = 0.25;
+  private static final int MIN_SIZE = 256;
+
+  private double inputSize;
+  private double ratio = 1.0d;
+
+  /**
+   * Records the sizes of a compressed batch.
+   */
+  synchronized void update(int uncompressedSize, int compressedSize) {
+    if (uncompressedSize <= 0) {
+      return;
+    }
+    double batchRatio = (double) compressedSize / uncompressedSize;
+    if (inputSize == 0) {
+      inputSize = uncompressedSize;
+      ratio = batchRatio;
+    } else {
+      inputSize += WEIGHT * (uncompressedSize - inputSize);
+      ratio += WEIGHT * (batchRatio - ratio);
+    }
+  }
+
+  /**
+   * @return Expected uncompressed size of the next batch.
+   */
+  synchronized int getInputSize() {
+    return Math.max(MIN_SIZE, (int) inputSize);
+  }
+
+  /**
+   * @return Estimated compressed size of the given number of uncompressed bytes, with some headroom.
+   */
+  synchronized int getOutputSize(int uncompressedSize) {
+    return Math.max(MIN_SIZE, (int) (uncompressedSize * ratio * 1.1d));
+  }
+}
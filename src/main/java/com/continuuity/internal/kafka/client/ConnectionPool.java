@@ -16,6 +16,7 @@
 package com.continuuity.internal.kafka.client;
 
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
@@ -25,18 +26,37 @@ import org.jboss.netty.channel.group.ChannelGroupFutureListener;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 
 import java.net.InetSocketAddress;
+import java.util.Iterator;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
- * Provides connection reuse
+ * Provides connection reuse. In exclusive mode, a connection is used by one request at a time and returned to
+ * the pool on release. When the number of connections to a broker reaches the limit, new requests share the
+ * least used connection instead of opening a new one; requests on a shared connection are pipelined through
+ * the {@link KafkaResponseDispatcher}. Connections that stay idle longer than the idle timeout are closed in
+ * the background.
+ *
+ * In multiplexed mode, there is a fixed number of connections per broker, shared by all requests in round robin.
  */
 final class ConnectionPool {
 
   private final ClientBootstrap bootstrap;
   private final ChannelGroup channelGroup;
-  private final ConcurrentMap<InetSocketAddress, Queue<ChannelFuture>> connections;
+  private final int maxConnections;
+  private final long idleTimeoutNanos;
+  private final ConcurrentMap<InetSocketAddress, BrokerConnections> connections;
+  private final int multiplexedChannels;
+  private final ConcurrentMap<InetSocketAddress, MultiplexedChannels> multiplexedConnections;
+  private final ScheduledFuture<?> evictionTask;
 
   /**
    * For releasing a conneciton back to the pool
@@ -52,41 +72,113 @@ final class ConnectionPool {
     ChannelFuture getChannelFuture();
   }
 
-  ConnectionPool(ClientBootstrap bootstrap) {
+  /**
+   * Creates a pool.
+   *
+   * @param bootstrap Bootstrap for creating connections.
+   * @param scheduler Scheduler for running idle connection eviction.
+   * @param maxConnections Maximum number of connections per broker in exclusive mode, or {@code 0} for no limit.
+   * @param idleTimeout Time an unused connection is kept open in exclusive mode, or {@code 0} to keep it open.
+   * @param unit Unit of the idle timeout.
+   * @param multiplexedChannels Number of shared connections per broker, or {@code 0} for exclusive mode.
+   */
+  ConnectionPool(ClientBootstrap bootstrap, ScheduledExecutorService scheduler,
+                 int maxConnections, long idleTimeout, TimeUnit unit, int multiplexedChannels) {
     this.bootstrap = bootstrap;
     this.channelGroup = new DefaultChannelGroup();
+    this.maxConnections = maxConnections;
+    this.idleTimeoutNanos = unit.toNanos(idleTimeout);
     this.connections = Maps.newConcurrentMap();
+    this.multiplexedChannels = multiplexedChannels;
+    this.multiplexedConnections = Maps.newConcurrentMap();
+
+    if (idleTimeout > 0 && multiplexedChannels <= 0) {
+      this.evictionTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evictIdle();
+        }
+      }, idleTimeout, idleTimeout, unit);
+    } else {
+      this.evictionTask = null;
+    }
   }
 
   ConnectResult connect(InetSocketAddress address) {
-    Queue<ChannelFuture> channelFutures = connections.get(address);
-    if (channelFutures == null) {
-      channelFutures = new ConcurrentLinkedQueue<ChannelFuture>();
-      Queue<ChannelFuture> result = connections.putIfAbsent(address, channelFutures);
-      channelFutures = result == null ? channelFutures : result;
+    if (multiplexedChannels > 0) {
+      return connectMultiplexed(address);
     }
 
-    ChannelFuture channelFuture = channelFutures.poll();
-    while (channelFuture != null) {
-      if (channelFuture.isSuccess() && channelFuture.getChannel().isConnected()) {
-        return new SimpleConnectResult(address, channelFuture);
-      }
-      channelFuture = channelFutures.poll();
+    BrokerConnections brokerConnections = connections.get(address);
+    if (brokerConnections == null) {
+      brokerConnections = new BrokerConnections(address);
+      BrokerConnections result = connections.putIfAbsent(address, brokerConnections);
+      brokerConnections = result == null ? brokerConnections : result;
+    }
+    return brokerConnections.acquire();
+  }
+
+  /**
+   * Opens a connection that is not shared through the pool. The caller owns the connection and closes it when
+   * it's no longer needed. It is also closed when the pool is closed.
+   */
+  ChannelFuture connectDedicated(InetSocketAddress address) {
+    return newConnection(address);
+  }
+
+  private ConnectResult connectMultiplexed(InetSocketAddress address) {
+    MultiplexedChannels channels = multiplexedConnections.get(address);
+    if (channels == null) {
+      channels = new MultiplexedChannels(address);
+      MultiplexedChannels result = multiplexedConnections.putIfAbsent(address, channels);
+      channels = result == null ? channels : result;
     }
+    final ChannelFuture channelFuture = channels.next();
+    return new ConnectResult() {
+      @Override
+      public ChannelFuture getChannelFuture() {
+        return channelFuture;
+      }
 
-    channelFuture = bootstrap.connect(address);
-    channelFuture.addListener(new ChannelFutureListener() {
       @Override
-      public void operationComplete(ChannelFuture future) throws Exception {
-        if (future.isSuccess()) {
-          channelGroup.add(future.getChannel());
+      public void release() {
+        // No-op. The connection is shared.
+      }
+    };
+  }
+
+  private ChannelFuture newConnection(InetSocketAddress address) {
+    ChannelFuture channelFuture = bootstrap.connect(address);
+    // Added before connected, so that a connection still in progress is closed when the pool is closed.
+    channelGroup.add(channelFuture.getChannel());
+    return channelFuture;
+  }
+
+  /**
+   * Closes connections that are idle longer than the idle timeout and removes closed ones from the idle queues.
+   */
+  private void evictIdle() {
+    long now = System.nanoTime();
+    for (BrokerConnections brokerConnections : connections.values()) {
+      Iterator<PooledConnection> iterator = brokerConnections.idle.iterator();
+      while (iterator.hasNext()) {
+        PooledConnection connection = iterator.next();
+        if (!connection.isAlive()) {
+          iterator.remove();
+          connection.idle.set(false);
+        } else if (now - connection.lastReleased >= idleTimeoutNanos && connection.retire()) {
+          iterator.remove();
+          connection.idle.set(false);
+          connection.future.getChannel().close();
         }
       }
-    });
-    return new SimpleConnectResult(address, channelFuture);
+    }
   }
 
   ChannelGroupFuture close() {
+    if (evictionTask != null) {
+      evictionTask.cancel(false);
+    }
     ChannelGroupFuture result = channelGroup.close();
     result.addListener(new ChannelGroupFutureListener() {
       @Override
@@ -97,15 +189,89 @@ final class ConnectionPool {
     return result;
   }
 
-  private final class SimpleConnectResult implements ConnectResult {
+  /**
+   * Connections to one broker in exclusive mode.
+   */
+  private final class BrokerConnections {
 
     private final InetSocketAddress address;
-    private final ChannelFuture future;
-
+    private final Queue<PooledConnection> idle;
+    private final Set<PooledConnection> opened;
+    private final AtomicInteger openCount;
 
-    private SimpleConnectResult(InetSocketAddress address, ChannelFuture future) {
+    BrokerConnections(InetSocketAddress address) {
       this.address = address;
+      this.idle = new ConcurrentLinkedQueue<PooledConnection>();
+      this.opened = Sets.newSetFromMap(Maps.<PooledConnection, Boolean>newConcurrentMap());
+      this.openCount = new AtomicInteger();
+    }
+
+    ConnectResult acquire() {
+      PooledConnection connection = idle.poll();
+      while (connection != null) {
+        connection.idle.set(false);
+        // It may have been leased as the least used connection while in the queue. If so, it is queued again
+        // when that lease is released.
+        if (connection.isAlive() && connection.leaseIdle()) {
+          return connection;
+        }
+        connection = idle.poll();
+      }
+
+      if (maxConnections <= 0 || openCount.incrementAndGet() <= maxConnections) {
+        return open();
+      }
+      openCount.decrementAndGet();
+
+      // Limit reached. Share the connection with the fewest users.
+      PooledConnection leastUsed = null;
+      for (PooledConnection opened : this.opened) {
+        if (opened.isAlive() && (leastUsed == null || opened.leases.get() < leastUsed.leases.get())) {
+          leastUsed = opened;
+        }
+      }
+      if (leastUsed != null && leastUsed.lease()) {
+        return leastUsed;
+      }
+
+      // All connections are going away.
+      openCount.incrementAndGet();
+      return open();
+    }
+
+    private PooledConnection open() {
+      final PooledConnection connection = new PooledConnection(this, newConnection(address));
+      opened.add(connection);
+      connection.future.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (opened.remove(connection)) {
+            openCount.decrementAndGet();
+          }
+        }
+      });
+      return connection;
+    }
+  }
+
+  /**
+   * A connection in exclusive mode. The lease count is the number of requests using it; it is more than one
+   * only when the connection limit is reached. A count of {@code -1} means it is being closed for idling.
+   * The idle flag is set while the connection is in the idle queue, so that it is never queued twice.
+   */
+  private static final class PooledConnection implements ConnectResult {
+
+    private final BrokerConnections owner;
+    private final ChannelFuture future;
+    private final AtomicInteger leases;
+    private final AtomicBoolean idle;
+    private volatile long lastReleased;
+
+    PooledConnection(BrokerConnections owner, ChannelFuture future) {
+      this.owner = owner;
       this.future = future;
+      this.leases = new AtomicInteger(1);
+      this.idle = new AtomicBoolean();
     }
 
     @Override
@@ -115,9 +281,72 @@ final class ConnectionPool {
 
     @Override
     public void release() {
-      if (future.isSuccess()) {
-        connections.get(address).offer(future);
+      lastReleased = System.nanoTime();
+      if (leases.decrementAndGet() == 0 && isAlive() && idle.compareAndSet(false, true)) {
+        owner.idle.offer(this);
+      }
+    }
+
+    /**
+     * Leases the connection only if no one is using it.
+     */
+    boolean leaseIdle() {
+      return leases.compareAndSet(0, 1);
+    }
+
+    boolean lease() {
+      int count = leases.get();
+      while (count >= 0) {
+        if (leases.compareAndSet(count, count + 1)) {
+          return true;
+        }
+        count = leases.get();
       }
+      return false;
+    }
+
+    boolean retire() {
+      return leases.compareAndSet(0, -1);
+    }
+
+    boolean isAlive() {
+      return !future.isDone() || (future.isSuccess() && future.getChannel().isConnected());
+    }
+  }
+
+  /**
+   * Fixed number of shared connections to one broker. A connection that failed or got closed is replaced on
+   * the next use of its slot.
+   */
+  private final class MultiplexedChannels {
+
+    private final InetSocketAddress address;
+    private final AtomicReferenceArray<ChannelFuture> channels;
+    private final AtomicInteger nextIndex;
+
+    MultiplexedChannels(InetSocketAddress address) {
+      this.address = address;
+      this.channels = new AtomicReferenceArray<ChannelFuture>(multiplexedChannels);
+      this.nextIndex = new AtomicInteger();
+    }
+
+    ChannelFuture next() {
+      int idx = (nextIndex.getAndIncrement() & Integer.MAX_VALUE) % channels.length();
+      ChannelFuture channelFuture = channels.get(idx);
+      while (channelFuture == null || isDead(channelFuture)) {
+        ChannelFuture newFuture = newConnection(address);
+        if (channels.compareAndSet(idx, channelFuture, newFuture)) {
+          return newFuture;
+        }
+        // Someone else replaced it.
+        newFuture.getChannel().close();
+        channelFuture = channels.get(idx);
+      }
+      return channelFuture;
+    }
+
+    private boolean isDead(ChannelFuture channelFuture) {
+      return channelFuture.isDone() && (!channelFuture.isSuccess() || !channelFuture.getChannel().isOpen());
     }
   }
 }
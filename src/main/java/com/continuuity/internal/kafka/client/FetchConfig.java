@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings that control prefetching, backoff and message decoding of {@link MessageFetcher}.
+ */
+final class FetchConfig {
+
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final long minBackoffMillis;
+  private final long maxBackoffMillis;
+  private final boolean verifyCRC;
+  private final boolean resetToEarliest;
+  private final Map<Integer, CompressionCodec> codecs;
+
+  /**
+   * @param lowWatermark Fetching resumes when the number of buffered batches drops to this value.
+   * @param highWatermark Fetching pauses when the number of buffered batches reaches this value.
+   * @param minBackoff Delay before fetching again after the first empty fetch.
+   * @param maxBackoff Cap of the delay when fetches are repeatedly empty.
+   * @param unit {@link TimeUnit} of the backoff delays.
+   * @param verifyCRC {@code true} to verify checksum of every fetched message.
+   * @param resetToEarliest {@code true} to continue from the earliest offset when the fetch offset is out of
+   *                        range, {@code false} to continue from the latest offset.
+   * @param codecs Map from code to {@link CompressionCodec} for decompressing fetched messages.
+   */
+  FetchConfig(int lowWatermark, int highWatermark, long minBackoff, long maxBackoff, TimeUnit unit,
+              boolean verifyCRC, boolean resetToEarliest, Map<Integer, CompressionCodec> codecs) {
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    this.minBackoffMillis = unit.toMillis(minBackoff);
+    this.maxBackoffMillis = unit.toMillis(maxBackoff);
+    this.verifyCRC = verifyCRC;
+    this.resetToEarliest = resetToEarliest;
+    this.codecs = codecs;
+  }
+
+  boolean isVerifyCRC() {
+    return verifyCRC;
+  }
+
+  boolean isResetToEarliest() {
+    return resetToEarliest;
+  }
+
+  /**
+   * Returns the {@link CompressionCodec} of the given code.
+   *
+   * @throws IllegalArgumentException if there is no codec registered for the code.
+   */
+  CompressionCodec getCodec(int code) {
+    CompressionCodec codec = codecs.get(code);
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown compression code " + code);
+    }
+    return codec;
+  }
+
+  int getLowWatermark() {
+    return lowWatermark;
+  }
+
+  int getHighWatermark() {
+    return highWatermark;
+  }
+
+  /**
+   * Returns the backoff delay in milliseconds for the next fetch, given the current delay.
+   * The delay doubles after each empty fetch, capped by the max backoff.
+   */
+  long nextBackoff(long currentBackoffMillis) {
+    if (currentBackoffMillis <= 0) {
+      return minBackoffMillis;
+    }
+    return Math.min(currentBackoffMillis * 2, maxBackoffMillis);
+  }
+}
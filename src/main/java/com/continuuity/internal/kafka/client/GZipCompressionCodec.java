@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * {@link CompressionCodec} in gzip format with a configurable compression level. Data compressed with any
+ * level uses the Kafka GZIP code, hence is readable by any Kafka consumer.
+ */
+final class GZipCompressionCodec implements CompressionCodec {
+
+  // Same header as written by java.util.zip.GZIPOutputStream
+  private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+  private static final int MIN_WRITABLE = 512;
+
+  private final int level;
+  private final ThreadLocal<Deflater> deflaterLocal;
+
+  GZipCompressionCodec(int level) {
+    this.level = level;
+    this.deflaterLocal = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(GZipCompressionCodec.this.level, true);
+      }
+    };
+  }
+
+  @Override
+  public int getCode() {
+    return Compression.GZIP.getCode();
+  }
+
+  @Override
+  public void compress(ChannelBuffer input, ChannelBuffer output) {
+    int len = input.readableBytes();
+    output.writeBytes(GZIP_HEADER);
+
+    Deflater deflater = deflaterLocal.get();
+    deflater.reset();
+    deflater.setInput(input.array(), input.arrayOffset() + input.readerIndex(), len);
+    deflater.finish();
+    while (!deflater.finished()) {
+      output.ensureWritableBytes(MIN_WRITABLE);
+      int writerIdx = output.writerIndex();
+      int size = deflater.deflate(output.array(), output.arrayOffset() + writerIdx, output.writableBytes());
+      output.writerIndex(writerIdx + size);
+    }
+
+    // Trailer of CRC32 and size of the uncompressed data, in little endian.
+    output.writeInt(Integer.reverseBytes(Checksums.crc32(input)));
+    output.writeInt(Integer.reverseBytes(len));
+  }
+
+  @Override
+  public ChannelBuffer decompress(ChannelBuffer input) throws IOException {
+    MessageSetDecompressor decompressor = new MessageSetDecompressor();
+    try {
+      return decompressor.gzipUncompress(input);
+    } finally {
+      decompressor.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "gzip:" + level;
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.Partitioner;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Partitioner} that picks partition based on the hash code of the partition key. Messages without
+ * a key are distributed in round robin fashion.
+ */
+final class HashPartitioner implements Partitioner {
+
+  private final AtomicInteger counter = new AtomicInteger();
+
+  @Override
+  public int getPartition(Object key, int numPartitions) {
+    int hash = (key == null) ? counter.getAndIncrement() : key.hashCode();
+    return (hash & Integer.MAX_VALUE) % numPartitions;
+  }
+}
@@ -15,14 +15,17 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import com.continuuity.zookeeper.Cancellable;
 import com.continuuity.zookeeper.NodeChildren;
 import com.continuuity.zookeeper.NodeData;
 import com.continuuity.zookeeper.ZKClientService;
 import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -31,6 +34,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -39,25 +43,59 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
-*
-*/
+ * Caches the brokers and topic partitions registered in ZooKeeper. Lookups are served from an immutable snapshot
+ * that is rebuilt whenever ZooKeeper changes, so that a cached lookup doesn't allocate or block.
+ *
+ * A broker registers the number of partitions it serves for a topic, which are numbered from zero on each
+ * broker. A topic partition is identified by (broker id, local partition), and the client numbers them globally:
+ * brokers are ordered by id and each one contributes its local partitions in order. For example, with brokers 1
+ * and 2 having two partitions each, partition 3 is local partition 1 of broker 2. Requests are sent with the
+ * local partition number from {@link TopicBroker#getPartition()}.
+ *
+ * A broker that goes away keeps its partition numbers, which are unavailable until it comes back, so that the
+ * numbering, and hence stored offsets, stay valid. Numbers only shift if a broker with a smaller id registers
+ * the topic later, or if a broker changes its number of partitions. For a topic that is not registered yet,
+ * partition 0 is served by the broker with the smallest id, as Kafka creates topics on first produce.
+ */
 final class KafkaBrokerCache extends AbstractIdleService {
 
   private static final Logger LOG = LoggerFactory.getLogger(KafkaBrokerCache.class);
 
   private static final String BROKERS_PATH = "/brokers";
 
+  // Orders broker ids numerically, as Kafka broker ids are integers.
+  private static final Comparator<String> BROKER_ID_ORDER = new Comparator<String>() {
+    @Override
+    public int compare(String id1, String id2) {
+      try {
+        return Long.valueOf(id1).compareTo(Long.valueOf(id2));
+      } catch (NumberFormatException e) {
+        return id1.compareTo(id2);
+      }
+    }
+  };
+
   private final ZKClientService zkClient;
   private final Map<String, InetSocketAddress> brokers;
-  // topicBrokers is from topic->partition size->brokerId
-  private final Map<String, SortedMap<Integer, Set<String>>> topicBrokers;
+  // topicPartitions is from topic->brokerId->number of partitions on the broker
+  private final Map<String, Map<String, Integer>> topicPartitions;
+  private final List<PendingLookup> pendingLookups;
+  private final List<ListenerCaller> changeListeners;
+  private volatile Snapshot snapshot;
+  private boolean stopped;
   private final Runnable invokeGetBrokers = new Runnable() {
     @Override
     public void run() {
@@ -74,7 +112,10 @@ final class KafkaBrokerCache extends AbstractIdleService {
   KafkaBrokerCache(ZKClientService zkClient) {
     this.zkClient = zkClient;
     this.brokers = Maps.newConcurrentMap();
-    this.topicBrokers = Maps.newConcurrentMap();
+    this.topicPartitions = Maps.newConcurrentMap();
+    this.pendingLookups = Lists.newLinkedList();
+    this.changeListeners = new CopyOnWriteArrayList<ListenerCaller>();
+    this.snapshot = new Snapshot(ImmutableMap.<String, TopicBroker[]>of(), null);
   }
 
   @Override
@@ -85,49 +126,150 @@ final class KafkaBrokerCache extends AbstractIdleService {
 
   @Override
   protected void shutDown() throws Exception {
-    // No-op
+    List<PendingLookup> lookups;
+    synchronized (this) {
+      stopped = true;
+      lookups = ImmutableList.copyOf(pendingLookups);
+      pendingLookups.clear();
+    }
+    for (PendingLookup lookup : lookups) {
+      lookup.future.setException(new IllegalStateException("Broker cache stopped."));
+    }
   }
 
+  /**
+   * Returns the number of partitions of the given topic across all brokers, or {@code 1} if the topic is not known.
+   */
   public int getPartitionSize(String topic) {
-    SortedMap<Integer, Set<String>> partitionBrokers = topicBrokers.get(topic);
-    if (partitionBrokers == null || partitionBrokers.isEmpty()) {
-      return 1;
-    }
-    return partitionBrokers.lastKey();
+    TopicBroker[] partitions = snapshot.topicBrokers.get(topic);
+    return partitions == null || partitions.length == 0 ? 1 : partitions.length;
   }
 
-  public TopicBroker getBrokerAddress(String topic, int partition) {
-    SortedMap<Integer, Set<String>> partitionBrokers = topicBrokers.get(topic);
-    if (partitionBrokers == null || partitionBrokers.isEmpty()) {
-      return pickRandomBroker(topic);
+  /**
+   * Returns the broker of the given topic partition from the cache.
+   *
+   * @param partition The partition number across all brokers.
+   * @return The broker, or {@code null} if no broker is known yet, or the broker serving the partition is away.
+   */
+  public TopicBroker lookup(String topic, int partition) {
+    Snapshot current = snapshot;
+    TopicBroker[] partitions = current.topicBrokers.get(topic);
+    if (partitions == null || partitions.length == 0) {
+      return partition == 0 ? current.getDefault(topic) : null;
     }
+    return partition >= 0 && partition < partitions.length ? partitions[partition] : null;
+  }
 
-    // If the requested partition is greater than supported partition size, randomly pick one
-    if (partition >= partitionBrokers.lastKey()) {
-      return pickRandomBroker(topic);
+  /**
+   * Returns a future that is completed with the broker of the given topic partition once a broker is known.
+   * The future fails if this cache is stopped before that.
+   */
+  public ListenableFuture<TopicBroker> getTopicBroker(String topic, int partition) {
+    TopicBroker topicBroker = lookup(topic, partition);
+    if (topicBroker != null) {
+      return Futures.immediateFuture(topicBroker);
+    }
+    synchronized (this) {
+      // Check again, as the snapshot could be updated before acquiring the lock.
+      topicBroker = lookup(topic, partition);
+      if (topicBroker != null) {
+        return Futures.immediateFuture(topicBroker);
+      }
+      if (stopped) {
+        return Futures.immediateFailedFuture(new IllegalStateException("Broker cache stopped."));
+      }
+      PendingLookup lookup = new PendingLookup(topic, partition);
+      pendingLookups.add(lookup);
+      return lookup.future;
     }
+  }
 
-    // Randomly pick a partition size and randomly pick a broker from it
-    Random random = new Random();
-    partitionBrokers = partitionBrokers.tailMap(partition + 1);
-    List<Integer> sizes = Lists.newArrayList(partitionBrokers.keySet());
-    Integer partitionSize = pickRandomItem(sizes, random);
-    List<String> ids = Lists.newArrayList(partitionBrokers.get(partitionSize));
-    InetSocketAddress address = brokers.get(ids.get(new Random().nextInt(ids.size())));
-    return address == null ? pickRandomBroker(topic) : new TopicBroker(topic, address, partitionSize);
+  /**
+   * Adds a listener that is called whenever the broker of any topic partition changes.
+   *
+   * @param listener The listener to call.
+   * @param executor Executor for calling the listener.
+   * @return A {@link Cancellable} for removing the listener.
+   */
+  public Cancellable addChangeListener(Runnable listener, Executor executor) {
+    final ListenerCaller caller = new ListenerCaller(listener, executor);
+    changeListeners.add(caller);
+    return new Cancellable() {
+      @Override
+      public void cancel() {
+        changeListeners.remove(caller);
+      }
+    };
   }
 
-  private TopicBroker pickRandomBroker(String topic) {
-    Map.Entry<String, InetSocketAddress> entry = Iterables.getFirst(brokers.entrySet(), null);
-    if (entry == null) {
-      return null;
+  /**
+   * Rebuilds the lookup snapshot from the latest ZooKeeper data, completes pending lookups and calls the change
+   * listeners if any topic partition moved.
+   */
+  private void rebuild() {
+    List<PendingLookup> completed = Lists.newArrayList();
+    boolean changed;
+    synchronized (this) {
+      SortedMap<String, InetSocketAddress> sortedBrokers = ImmutableSortedMap.copyOf(brokers, BROKER_ID_ORDER);
+      ImmutableMap.Builder<String, TopicBroker[]> builder = ImmutableMap.builder();
+      for (Map.Entry<String, Map<String, Integer>> entry : topicPartitions.entrySet()) {
+        builder.put(entry.getKey(), createTopicBrokers(entry.getKey(), entry.getValue(), sortedBrokers));
+      }
+      Snapshot newSnapshot = new Snapshot(builder.build(),
+                                          sortedBrokers.isEmpty() ? null : sortedBrokers.get(sortedBrokers.firstKey()));
+      changed = !newSnapshot.hasSameBrokers(snapshot);
+      if (changed) {
+        snapshot = newSnapshot;
+      }
+
+      Iterator<PendingLookup> iterator = pendingLookups.iterator();
+      while (iterator.hasNext()) {
+        PendingLookup lookup = iterator.next();
+        lookup.topicBroker = lookup(lookup.topic, lookup.partition);
+        if (lookup.topicBroker != null) {
+          completed.add(lookup);
+          iterator.remove();
+        }
+      }
+    }
+    for (PendingLookup lookup : completed) {
+      lookup.future.set(lookup.topicBroker);
+    }
+    if (changed) {
+      for (ListenerCaller caller : changeListeners) {
+        caller.call();
+      }
     }
-    InetSocketAddress address = entry.getValue();
-    return new TopicBroker(topic, address, 0);
   }
 
-  private <T> T pickRandomItem(List<T> list, Random random) {
-    return list.get(random.nextInt(list.size()));
+  /**
+   * Creates the brokers of all partitions of a topic, indexed by the partition number across brokers. Partitions
+   * of brokers that are away are {@code null}.
+   *
+   * @param partitions Map from broker id to the number of partitions on the broker.
+   */
+  private TopicBroker[] createTopicBrokers(String topic, Map<String, Integer> partitions,
+                                           Map<String, InetSocketAddress> brokers) {
+    List<String> brokerIds = Lists.newArrayList(partitions.keySet());
+    Collections.sort(brokerIds, BROKER_ID_ORDER);
+    int partitionSize = 0;
+    for (int size : partitions.values()) {
+      partitionSize += size;
+    }
+
+    TopicBroker[] topicBrokers = new TopicBroker[partitionSize];
+    int partition = 0;
+    for (String brokerId : brokerIds) {
+      InetSocketAddress address = brokers.get(brokerId);
+      int size = partitions.get(brokerId);
+      for (int localPartition = 0; localPartition < size; localPartition++) {
+        if (address != null) {
+          topicBrokers[partition] = new TopicBroker(topic, address, localPartition, partitionSize);
+        }
+        partition++;
+      }
+    }
+    return topicBrokers;
   }
 
   private void getBrokers() {
@@ -146,7 +288,9 @@ final class KafkaBrokerCache extends AbstractIdleService {
           getBrokenData(idsPath + "/" + child, child);
         }
         // Remove all removed brokers
-        removeDiff(children, brokers);
+        if (removeDiff(children, brokers)) {
+          rebuild();
+        }
       }
     });
   }
@@ -164,12 +308,14 @@ final class KafkaBrokerCache extends AbstractIdleService {
         Set<String> children = ImmutableSet.copyOf(result.getChildren());
 
         // Process new children
-        for (String topic : ImmutableSet.copyOf(Sets.difference(children, topicBrokers.keySet()))) {
+        for (String topic : ImmutableSet.copyOf(Sets.difference(children, topicPartitions.keySet()))) {
           getTopic(topicsPath + "/" + topic, topic);
         }
 
         // Remove old children
-        removeDiff(children, topicBrokers);
+        if (removeDiff(children, topicPartitions)) {
+          rebuild();
+        }
       }
     });
   }
@@ -183,6 +329,7 @@ final class KafkaBrokerCache extends AbstractIdleService {
         int idx = hostPort.indexOf(':');
         brokers.put(brokerId, new InetSocketAddress(hostPort.substring(0, idx),
                                                     Integer.parseInt(hostPort.substring(idx + 1))));
+        rebuild();
       }
 
       @Override
@@ -209,33 +356,39 @@ final class KafkaBrokerCache extends AbstractIdleService {
 
         // Fetch data from each broken node
         for (final String brokerId : children) {
-          Futures.transform(zkClient.getData(path + "/" + brokerId), new Function<NodeData, BrokerPartition>() {
+          futures.add(Futures.transform(zkClient.getData(path + "/" + brokerId),
+                                        new Function<NodeData, BrokerPartition>() {
             @Override
             public BrokerPartition apply(NodeData input) {
               return new BrokerPartition(brokerId, Integer.parseInt(new String(input.getData(), Charsets.UTF_8)));
             }
-          });
+          }));
         }
 
-        // When all fetching is done, build the partition size->broker map for this topic
+        // When all fetching is done, build the brokerId->partition size map for this topic
         Futures.successfulAsList(futures).addListener(new Runnable() {
           @Override
           public void run() {
-            Map<Integer, Set<String>> partitionBrokers = Maps.newHashMap();
+            Map<String, Integer> partitions = Maps.newHashMap();
             for (ListenableFuture<BrokerPartition> future : futures) {
               try {
                 BrokerPartition info = future.get();
-                Set<String> brokerSet = partitionBrokers.get(info.getPartitionSize());
-                if (brokerSet == null) {
-                  brokerSet = Sets.newHashSet();
-                  partitionBrokers.put(info.getPartitionSize(), brokerSet);
-                }
-                brokerSet.add(info.getBrokerId());
+                partitions.put(info.getBrokerId(), info.getPartitionSize());
               } catch (Exception e) {
                 // Exception is ignored, as it will be handled by parent watcher
               }
             }
-            topicBrokers.put(topic, ImmutableSortedMap.copyOf(partitionBrokers));
+            // Brokers that are away keep their partitions, so that partition numbers don't shift.
+            Map<String, Integer> existing = topicPartitions.get(topic);
+            if (existing != null) {
+              for (Map.Entry<String, Integer> entry : existing.entrySet()) {
+                if (!partitions.containsKey(entry.getKey())) {
+                  partitions.put(entry.getKey(), entry.getValue());
+                }
+              }
+            }
+            topicPartitions.put(topic, ImmutableMap.copyOf(partitions));
+            rebuild();
           }
         }, MoreExecutors.sameThreadExecutor());
       }
@@ -247,10 +400,17 @@ final class KafkaBrokerCache extends AbstractIdleService {
     });
   }
 
-  private <K,V> void removeDiff(Set<K> keys, Map<K,V> map) {
+  /**
+   * Removes entries with keys not in the given set.
+   *
+   * @return {@code true} if any entry is removed.
+   */
+  private <K,V> boolean removeDiff(Set<K> keys, Map<K,V> map) {
+    boolean removed = false;
     for (K key : ImmutableSet.copyOf(Sets.difference(map.keySet(), keys))) {
-      map.remove(key);
+      removed |= map.remove(key) != null;
     }
+    return removed;
   }
 
   private abstract class ExistsOnFailureFutureCallback<V> implements FutureCallback<V> {
@@ -304,6 +464,81 @@ final class KafkaBrokerCache extends AbstractIdleService {
     }
   }
 
+  /**
+   * Immutable lookup state. Brokers for unregistered topics are created lazily and cached with the snapshot.
+   */
+  private static final class Snapshot {
+    private final Map<String, TopicBroker[]> topicBrokers;
+    private final InetSocketAddress defaultBroker;
+    private final ConcurrentMap<String, TopicBroker> defaultTopicBrokers;
+
+    Snapshot(Map<String, TopicBroker[]> topicBrokers, InetSocketAddress defaultBroker) {
+      this.topicBrokers = topicBrokers;
+      this.defaultBroker = defaultBroker;
+      this.defaultTopicBrokers = Maps.newConcurrentMap();
+    }
+
+    /**
+     * Returns {@code true} if the given snapshot has the same broker for every topic partition.
+     */
+    boolean hasSameBrokers(Snapshot other) {
+      if (!Objects.equal(defaultBroker, other.defaultBroker)
+        || !topicBrokers.keySet().equals(other.topicBrokers.keySet())) {
+        return false;
+      }
+      for (Map.Entry<String, TopicBroker[]> entry : topicBrokers.entrySet()) {
+        if (!Arrays.equals(entry.getValue(), other.topicBrokers.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    TopicBroker getDefault(String topic) {
+      if (defaultBroker == null) {
+        return null;
+      }
+      TopicBroker topicBroker = defaultTopicBrokers.get(topic);
+      if (topicBroker == null) {
+        topicBroker = new TopicBroker(topic, defaultBroker, 0, 0);
+        TopicBroker existing = defaultTopicBrokers.putIfAbsent(topic, topicBroker);
+        topicBroker = existing == null ? topicBroker : existing;
+      }
+      return topicBroker;
+    }
+  }
+
+  private static final class ListenerCaller {
+    private final Runnable listener;
+    private final Executor executor;
+
+    private ListenerCaller(Runnable listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+
+    void call() {
+      try {
+        executor.execute(listener);
+      } catch (Throwable t) {
+        LOG.error("Exception when calling broker change listener " + listener, t);
+      }
+    }
+  }
+
+  private static final class PendingLookup {
+    private final String topic;
+    private final int partition;
+    private final SettableFuture<TopicBroker> future;
+    private TopicBroker topicBroker;
+
+    private PendingLookup(String topic, int partition) {
+      this.topic = topic;
+      this.partition = partition;
+      this.future = SettableFuture.create();
+    }
+  }
+
   private static final class BrokerPartition {
     private final String brokerId;
     private final int partitionSize;
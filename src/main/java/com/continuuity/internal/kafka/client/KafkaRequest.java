@@ -16,6 +16,7 @@
 package com.continuuity.internal.kafka.client;
 
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 
 /**
  *
@@ -51,10 +52,44 @@ final class KafkaRequest {
     return new KafkaRequest(Type.PRODUCE, topic, partition, body, ResponseHandler.NO_OP);
   }
 
+  /**
+   * Creates a MULTI_PRODUCE request. The body should contains the number of produce requests, followed by
+   * each of the [TOPIC_LENGTH][TOPIC][PARTITION][MESSAGE_SET_SIZE][MESSAGE_SET] entries.
+   */
+  public static KafkaRequest createMultiProduce(ChannelBuffer body) {
+    return new KafkaRequest(Type.MULTI_PRODUCE, null, -1, body, ResponseHandler.NO_OP);
+  }
+
   public static KafkaRequest createFetch(String topic, int partition, ChannelBuffer body, ResponseHandler handler) {
     return new KafkaRequest(Type.FETCH, topic, partition, body, handler);
   }
 
+  /**
+   * Creates a MULTI_FETCH request. The body should contains the number of fetch requests, followed by
+   * each of the [TOPIC_LENGTH][TOPIC][PARTITION][OFFSET][MAX_SIZE] entries.
+   */
+  public static KafkaRequest createMultiFetch(ChannelBuffer body, ResponseHandler handler) {
+    return new KafkaRequest(Type.MULTI_FETCH, null, -1, body, handler);
+  }
+
+  /**
+   * Creates an OFFSETS request. The body should contains the [TIME][MAX_NUMBER_OF_OFFSETS].
+   */
+  public static KafkaRequest createOffsets(String topic, int partition, ChannelBuffer body, ResponseHandler handler) {
+    return new KafkaRequest(Type.OFFSETS, topic, partition, body, handler);
+  }
+
+  /**
+   * Creates an OFFSETS request for at most the given number of offsets before the given time.
+   */
+  public static KafkaRequest createOffsets(String topic, int partition, long time, int maxOffsets,
+                                           ResponseHandler handler) {
+    ChannelBuffer body = ChannelBuffers.buffer(12);
+    body.writeLong(time);
+    body.writeInt(maxOffsets);
+    return createOffsets(topic, partition, body, handler);
+  }
+
   private KafkaRequest(Type type, String topic, int partition, ChannelBuffer body, ResponseHandler responseHandler) {
     this.type = type;
     this.topic = topic;
@@ -63,6 +98,32 @@ final class KafkaRequest {
     this.responseHandler = responseHandler;
   }
 
+  /**
+   * Returns a request that is the same as this one but for the given partition. It is used for sending a request
+   * with the partition number local to the broker.
+   */
+  KafkaRequest forPartition(int partition) {
+    if (partition == this.partition) {
+      return this;
+    }
+    return new KafkaRequest(type, topic, partition, body, responseHandler);
+  }
+
+  /**
+   * Returns {@code true} if this request carries multiple topic partitions in the body, hence no
+   * topic and partition in the request header.
+   */
+  boolean isMulti() {
+    return type == Type.MULTI_PRODUCE || type == Type.MULTI_FETCH;
+  }
+
+  /**
+   * @return {@code true} if the broker sends a response to this request. Produce requests have no response.
+   */
+  boolean expectsResponse() {
+    return type != Type.PRODUCE && type != Type.MULTI_PRODUCE;
+  }
+
   Type getType() {
     return type;
   }
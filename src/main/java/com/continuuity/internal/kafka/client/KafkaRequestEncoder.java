@@ -25,7 +25,7 @@ import org.jboss.netty.handler.codec.oneone.OneToOneEncoder;
 import java.nio.ByteBuffer;
 
 /**
- *
+ * Encodes {@link KafkaRequest} into a composite buffer of a request header followed by the request body.
  */
 final class KafkaRequestEncoder extends OneToOneEncoder {
 
@@ -35,24 +35,25 @@ final class KafkaRequestEncoder extends OneToOneEncoder {
       return msg;
     }
     KafkaRequest req = (KafkaRequest) msg;
-    ByteBuffer topic = Charsets.UTF_8.encode(req.getTopic());
-
-    ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(16 + topic.remaining() + req.getBody().readableBytes());
-    int writerIdx = buffer.writerIndex();
-    buffer.writerIndex(writerIdx + 4);    // Reserves 4 bytes for message length
-
-    // Write out <REQUEST_TYPE>, <TOPIC_LENGTH>, <TOPIC>, <PARTITION>
-    buffer.writeShort(req.getType().getId());
-    buffer.writeShort(topic.remaining());
-    buffer.writeBytes(topic);
-    buffer.writeInt(req.getPartition());
-
-    // Write out the size of the whole buffer (excluding the size field) at the beginning
-    buffer.setInt(writerIdx, buffer.readableBytes() - 4 + req.getBody().readableBytes());
-
-    ChannelBuffer buf = ChannelBuffers.wrappedBuffer(buffer, req.getBody());
-    buf = buf.readBytes(buf.readableBytes());
+    ByteBuffer topic = req.isMulti() ? null : Charsets.UTF_8.encode(req.getTopic());
+    int topicSize = topic == null ? 0 : topic.remaining();
+
+    ChannelBuffer body = req.getBody();
+    int headerSize = topic == null ? 6 : 12 + topicSize;
+    ChannelBuffer header = ChannelBuffers.buffer(headerSize);
+
+    // Write out the size of the whole request (excluding the size field), then
+    // <REQUEST_TYPE>, <TOPIC_LENGTH>, <TOPIC>, <PARTITION>.
+    // For multi requests, topics and partitions are in the body.
+    header.writeInt(headerSize - 4 + body.readableBytes());
+    header.writeShort(req.getType().getId());
+    if (topic != null) {
+      header.writeShort(topicSize);
+      header.writeBytes(topic);
+      header.writeInt(req.getPartition());
+    }
 
-    return buf;
+    // The body is not copied. The socket writer copies the composite buffer directly into its send buffer.
+    return ChannelBuffers.wrappedBuffer(header, body);
   }
 }
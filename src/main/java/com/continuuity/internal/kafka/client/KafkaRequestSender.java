@@ -16,9 +16,14 @@
 package com.continuuity.internal.kafka.client;
 
 /**
- *
+ * Sends requests of one consumer to the broker.
  */
 interface KafkaRequestSender {
 
   void send(KafkaRequest request);
+
+  /**
+   * Releases connections used only by this sender. No request is sent after this call.
+   */
+  void close();
 }
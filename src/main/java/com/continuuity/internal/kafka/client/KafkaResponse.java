@@ -80,4 +80,17 @@ final class KafkaResponse {
   public ChannelBuffer getBody() {
     return body;
   }
+
+  /**
+   * Decodes the body of an OFFSETS response, which is [NUMBER_OF_OFFSETS][OFFSET]*.
+   */
+  long[] getOffsets() {
+    ChannelBuffer buffer = body.duplicate();
+    int size = buffer.readableBytes() < 4 ? 0 : buffer.readInt();
+    long[] offsets = new long[Math.min(size, buffer.readableBytes() / 8)];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = buffer.readLong();
+    }
+    return offsets;
+  }
 }
@@ -15,29 +15,111 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelHandler;
 
+import java.nio.channels.ClosedChannelException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
+ * Dispatches responses to the {@link ResponseHandler} of the requests. Kafka responds to requests of a
+ * connection in order without any correlation id, hence handlers of requests that expect a response are kept
+ * in a FIFO queue, which allows many requests to be pipelined on one channel.
+ *
+ * To keep the queue in the same order as the requests on the wire, writes are passed downstream by one
+ * thread at a time. A write requested while another thread is writing is queued and passed down by that
+ * thread, so no thread ever blocks on another.
  *
+ * When the channel is closed or fails, handlers of requests that were written but not yet responded to are
+ * failed. Requests whose write failed are left to the writer, which is notified through the write future.
  */
 final class KafkaResponseDispatcher extends SimpleChannelHandler {
+
+  private final Queue<PendingResponse> responseHandlers = new ConcurrentLinkedQueue<PendingResponse>();
+  private final Queue<MessageEvent> pendingWrites = new ConcurrentLinkedQueue<MessageEvent>();
+  private final AtomicBoolean writing = new AtomicBoolean();
+
   @Override
   public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    Object attachment = ctx.getAttachment();
-    if (e.getMessage() instanceof KafkaResponse && attachment instanceof ResponseHandler) {
-      ((ResponseHandler) attachment).received((KafkaResponse) e.getMessage());
-    } else {
+    if (!(e.getMessage() instanceof KafkaResponse)) {
       super.messageReceived(ctx, e);
+      return;
+    }
+    PendingResponse pending = responseHandlers.poll();
+    if (pending != null) {
+      pending.handler.received((KafkaResponse) e.getMessage());
+    }
+  }
+
+  @Override
+  public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    failPending(new ClosedChannelException());
+    super.channelClosed(ctx, e);
+  }
+
+  @Override
+  public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+    // Responses can't be matched to requests anymore, hence closes the channel.
+    failPending(e.getCause());
+    e.getChannel().close();
+  }
+
+  private void failPending(final Throwable cause) {
+    PendingResponse pending = responseHandlers.poll();
+    while (pending != null) {
+      final ResponseHandler handler = pending.handler;
+      pending.writeFuture.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (future.isSuccess()) {
+            handler.failed(cause);
+          }
+        }
+      });
+      pending = responseHandlers.poll();
     }
   }
 
   @Override
   public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-    if (e.getMessage() instanceof KafkaRequest) {
-      ctx.setAttachment(((KafkaRequest) e.getMessage()).getResponseHandler());
+    if (!(e.getMessage() instanceof KafkaRequest)) {
+      super.writeRequested(ctx, e);
+      return;
+    }
+
+    pendingWrites.add(e);
+    // Loop to handle race between draining and adding after the writing flag is reset.
+    while (!pendingWrites.isEmpty() && writing.compareAndSet(false, true)) {
+      try {
+        MessageEvent event = pendingWrites.poll();
+        while (event != null) {
+          KafkaRequest request = (KafkaRequest) event.getMessage();
+          if (request.expectsResponse()) {
+            responseHandlers.add(new PendingResponse(request.getResponseHandler(), event.getFuture()));
+          }
+          ctx.sendDownstream(event);
+          event = pendingWrites.poll();
+        }
+      } finally {
+        writing.set(false);
+      }
+    }
+  }
+
+  private static final class PendingResponse {
+    private final ResponseHandler handler;
+    private final ChannelFuture writeFuture;
+
+    private PendingResponse(ResponseHandler handler, ChannelFuture writeFuture) {
+      this.handler = handler;
+      this.writeFuture = writeFuture;
     }
-    super.writeRequested(ctx, e);
   }
 }
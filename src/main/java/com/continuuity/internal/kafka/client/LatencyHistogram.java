@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of latencies with power of two microsecond buckets. Bucket {@code i} counts latencies
+ * in [2^(i-1), 2^i) microseconds, with bucket 0 for latencies below one microsecond.
+ */
+final class LatencyHistogram {
+
+  private static final int BUCKETS = 40;
+
+  private final AtomicLongArray buckets;
+  private final AtomicLong count;
+  private final AtomicLong totalMicros;
+
+  LatencyHistogram() {
+    this.buckets = new AtomicLongArray(BUCKETS);
+    this.count = new AtomicLong();
+    this.totalMicros = new AtomicLong();
+  }
+
+  /**
+   * Records a latency.
+   */
+  void record(long latency, TimeUnit unit) {
+    long micros = Math.max(0, unit.toMicros(latency));
+    buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+  }
+
+  long getCount() {
+    return count.get();
+  }
+
+  long getMean(TimeUnit unit) {
+    long n = count.get();
+    return n == 0 ? 0 : unit.convert(totalMicros.get() / n, TimeUnit.MICROSECONDS);
+  }
+
+  /**
+   * Returns the upper bound of the bucket that contains the given percentile.
+   *
+   * @param percentile Percentile in (0, 100].
+   * @param unit Unit of the result.
+   */
+  long getPercentile(double percentile, TimeUnit unit) {
+    long n = count.get();
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) {
+        return unit.convert(1L << i, TimeUnit.MICROSECONDS);
+      }
+    }
+    return unit.convert(1L << (BUCKETS - 1), TimeUnit.MICROSECONDS);
+  }
+}
@@ -15,40 +15,68 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import com.continuuity.kafka.client.CompressionCodec;
+import com.continuuity.kafka.client.CorruptedMessageException;
 import com.continuuity.kafka.client.FetchedMessage;
-import com.continuuity.weave.internal.utils.Threads;
+import com.continuuity.kafka.client.KafkaClient;
+import com.continuuity.kafka.client.MessageCallback;
+import com.continuuity.zookeeper.Cancellable;
 import com.google.common.base.Throwables;
-import com.google.common.collect.AbstractIterator;
-import com.google.common.io.ByteStreams;
+import com.google.common.collect.Lists;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.jboss.netty.buffer.ChannelBuffers;
-import org.xerial.snappy.SnappyInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPInputStream;
 
 /**
+ * Fetches messages of a topic partition and pushes them to a {@link MessageCallback}. The next fetch request
+ * is sent as soon as a response is decoded, while the callback is processing messages, until the number of
+ * fetched but not yet processed batches reaches the high watermark. Fetching resumes when the callback has
+ * drained the buffered batches down to the low watermark.
  *
+ * Since the offset of the next fetch is only known from the previous response, there is at most one
+ * outstanding fetch request per partition; prefetch depth is in terms of buffered batches.
+ *
+ * When the fetch offset is out of range, e.g. the log was truncated by retention, fetching continues from the
+ * earliest or latest offset as configured. When the broker doesn't serve the partition, e.g. during a broker
+ * restart, fetching is retried with backoff, which sends the request to the broker that serves it by then.
+ * Offsets are positions in the log of one broker, hence when the partition moved to another broker, which the
+ * sender reports with {@link PartitionMovedException}, fetching also continues from the earliest or latest
+ * offset of the new broker as configured.
+ *
+ * The connection of the sender is closed when fetching stops.
  */
-final class MessageFetcher extends AbstractIterator<FetchedMessage> implements ResponseHandler {
+final class MessageFetcher implements ResponseHandler, Cancellable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MessageFetcher.class);
 
-  private static final long BACKOFF_INTERVAL_MS = 100;
 
   private final KafkaRequestSender sender;
   private final String topic;
   private final int partition;
   private final int maxSize;
   private final AtomicLong offset;
-  private final BlockingQueue<FetchResult> messages;
   private final ScheduledExecutorService scheduler;
+  private final Executor callbackExecutor;
+  private final MessageCallback callback;
+  private final FetchConfig config;
+  private final Queue<FetchResult> results;
+  private final AtomicInteger bufferedBatches;
+  private final AtomicBoolean fetchSuspended;
+  private final AtomicBoolean delivering;
+  private final MessageSetDecompressor decompressor;
+  private volatile boolean running;
   private volatile long backoffMillis;
   private final Runnable sendFetchRequest = new Runnable() {
     @Override
@@ -56,38 +84,223 @@ final class MessageFetcher extends AbstractIterator<FetchedMessage> implements R
       sendFetchRequest();
     }
   };
+  private final Runnable deliverResults = new Runnable() {
+    @Override
+    public void run() {
+      deliverResults();
+    }
+  };
 
-  MessageFetcher(String topic, int partition, long offset, int maxSize, KafkaRequestSender sender) {
+  /**
+   * Creates a fetcher for the given topic partition.
+   *
+   * @param scheduler Scheduler for delaying fetch requests when no message is available. It is shared among
+   *                  all fetchers of the same client.
+   * @param callbackExecutor Executor for invoking the callback.
+   * @param config Settings for prefetching and backoff.
+   */
+  MessageFetcher(String topic, int partition, long offset, int maxSize,
+                 KafkaRequestSender sender, ScheduledExecutorService scheduler,
+                 Executor callbackExecutor, MessageCallback callback, FetchConfig config) {
     this.topic = topic;
     this.partition = partition;
     this.sender = sender;
     this.offset = new AtomicLong(offset);
     this.maxSize = maxSize;
-    this.messages = new LinkedBlockingQueue<FetchResult>();
-    this.scheduler = Executors.newSingleThreadScheduledExecutor(
-                        Threads.createDaemonThreadFactory("kafka-" + topic + "-consumer"));
+    this.scheduler = scheduler;
+    this.callbackExecutor = callbackExecutor;
+    this.callback = callback;
+    this.config = config;
+    this.results = new ConcurrentLinkedQueue<FetchResult>();
+    this.bufferedBatches = new AtomicInteger();
+    this.fetchSuspended = new AtomicBoolean();
+    this.delivering = new AtomicBoolean();
+    this.decompressor = new MessageSetDecompressor();
+  }
+
+  /**
+   * Starts fetching.
+   */
+  void start() {
+    running = true;
+    sendFetchRequest();
+  }
+
+  @Override
+  public void cancel() {
+    if (running) {
+      running = false;
+      decompressor.close();
+      sender.close();
+      results.add(FetchResult.finished(null));
+      deliver();
+    }
   }
 
   @Override
   public void received(KafkaResponse response) {
-    if (response.getErrorCode() != KafkaResponse.ErrorCode.OK) {
-      messages.add(FetchResult.failure(new IllegalStateException("Error in fetching: " + response.getErrorCode())));
+    if (!running) {
       return;
     }
+    switch (response.getErrorCode()) {
+      case OK:
+        break;
+      case OFFSET_OUT_OF_RANGE:
+        resetOffset("out of range");
+        return;
+      case WRONG_PARTITION:
+        backoffMillis = config.nextBackoff(backoffMillis);
+        LOG.warn("Partition " + topic + ", " + partition + " not served by broker. Retry in " + backoffMillis + " ms.");
+        scheduler.schedule(sendFetchRequest, backoffMillis, TimeUnit.MILLISECONDS);
+        return;
+      default:
+        fail(new IllegalStateException("Error in fetching: " + response.getErrorCode()));
+        return;
+    }
 
+    List<FetchedMessage> messages = Lists.newArrayList();
     try {
-      if (decodeResponse(response.getBody(), -1)) {
-        backoffMillis = 0;
-      } else {
-        backoffMillis = Math.max(backoffMillis + BACKOFF_INTERVAL_MS, 1000);
-        scheduler.schedule(sendFetchRequest, backoffMillis, TimeUnit.MILLISECONDS);
-      }
+      decodeResponse(response.getBody(), -1, messages);
     } catch (Throwable t) {
-      messages.add(FetchResult.failure(t));
+      fail(t);
+      return;
+    }
+
+    if (messages.isEmpty()) {
+      backoffMillis = config.nextBackoff(backoffMillis);
+      scheduler.schedule(sendFetchRequest, backoffMillis, TimeUnit.MILLISECONDS);
+      return;
+    }
+
+    backoffMillis = 0;
+    results.add(FetchResult.success(messages));
+
+    // Prefetch the next batch if the buffer is below the high watermark, otherwise it will be resumed when
+    // the callback processed the buffered batches down to the low watermark.
+    if (bufferedBatches.incrementAndGet() < config.getHighWatermark()) {
+      sendFetchRequest();
+    } else {
+      fetchSuspended.set(true);
+      resumeFetch();
+    }
+    deliver();
+  }
+
+  @Override
+  public void failed(Throwable cause) {
+    if (!running) {
+      return;
+    }
+    if (cause instanceof PartitionMovedException) {
+      LOG.info(cause.getMessage());
+      resetOffset("not valid on the new broker");
+      return;
+    }
+    backoffMillis = config.nextBackoff(backoffMillis);
+    LOG.warn("Fetch of " + topic + ", " + partition + " failed. Retry in " + backoffMillis + " ms.", cause);
+    scheduler.schedule(sendFetchRequest, backoffMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Sends an OFFSETS request for the earliest or latest offset and fetches from there.
+   *
+   * @param reason Why the current offset can't be used, for logging.
+   */
+  private void resetOffset(final String reason) {
+    final long time = config.isResetToEarliest() ? KafkaClient.EARLIEST_OFFSET : KafkaClient.LATEST_OFFSET;
+    sender.send(KafkaRequest.createOffsets(topic, partition, time, 1, new ResponseHandler() {
+      @Override
+      public void received(KafkaResponse response) {
+        if (!running) {
+          return;
+        }
+        long[] offsets = response.getErrorCode() == KafkaResponse.ErrorCode.OK ? response.getOffsets() : new long[0];
+        if (offsets.length == 0) {
+          fail(new IllegalStateException("Failed to get offset of " + topic + ", " + partition + ": "
+                                           + response.getErrorCode()));
+          return;
+        }
+        long newOffset = offsets[0];
+        LOG.warn("Offset " + offset.get() + " " + reason + " for " + topic + ", " + partition
+                   + ". Continue from " + (time == KafkaClient.EARLIEST_OFFSET ? "earliest" : "latest") + " offset "
+                   + newOffset);
+        offset.set(newOffset);
+        sendFetchRequest();
+      }
+
+      @Override
+      public void failed(Throwable cause) {
+        if (!running) {
+          return;
+        }
+        backoffMillis = config.nextBackoff(backoffMillis);
+        LOG.warn("Failed to get offset of " + topic + ", " + partition + ". Retry in " + backoffMillis + " ms.", cause);
+        scheduler.schedule(new Runnable() {
+          @Override
+          public void run() {
+            resetOffset(reason);
+          }
+        }, backoffMillis, TimeUnit.MILLISECONDS);
+      }
+    }));
+  }
+
+  private void fail(Throwable cause) {
+    running = false;
+    decompressor.close();
+    sender.close();
+    results.add(FetchResult.finished(cause));
+    deliver();
+  }
+
+  private void resumeFetch() {
+    if (bufferedBatches.get() <= config.getLowWatermark() && fetchSuspended.compareAndSet(true, false)) {
+      sendFetchRequest();
+    }
+  }
+
+  private void deliver() {
+    if (delivering.compareAndSet(false, true)) {
+      callbackExecutor.execute(deliverResults);
+    }
+  }
+
+  /**
+   * Delivers results to the callback. Only one thread would be running this method at a time.
+   */
+  private void deliverResults() {
+    FetchResult result = results.poll();
+    while (result != null) {
+      if (result.isFinished()) {
+        try {
+          callback.finished(result.getErrorCause());
+        } catch (Throwable t) {
+          LOG.error("Exception when calling finished on callback for " + topic + ", " + partition, t);
+        }
+        // No more delivery after finished. Leave the delivering flag set to block further delivery.
+        return;
+      }
+
+      if (running) {
+        try {
+          callback.onReceived(result.getMessages().iterator());
+        } catch (Throwable t) {
+          LOG.error("Exception when calling callback for " + topic + ", " + partition, t);
+        }
+      }
+      bufferedBatches.decrementAndGet();
+      resumeFetch();
+      result = results.poll();
+    }
+
+    delivering.set(false);
+    // Results could be added after poll returns null and before the flag is reset.
+    if (!results.isEmpty()) {
+      deliver();
     }
   }
 
-  private boolean decodeResponse(ChannelBuffer buffer, long nextOffset) {
+  private boolean decodeResponse(ChannelBuffer buffer, long nextOffset, List<FetchedMessage> messages) {
     boolean hasMessage = false;
     boolean computeOffset = nextOffset < 0;
     while (buffer.readableBytes() >= 4) {
@@ -99,141 +312,91 @@ final class MessageFetcher extends AbstractIterator<FetchedMessage> implements R
         break;
       }
       nextOffset = computeOffset ? offset.addAndGet(size + 4) : nextOffset;
-      decodeMessage(size, buffer, nextOffset);
+      decodeMessage(size, buffer, computeOffset ? nextOffset - size - 4 : nextOffset, nextOffset, messages);
       hasMessage = true;
     }
     return hasMessage;
 
   }
 
-  private void decodeMessage(int size, ChannelBuffer buffer, long nextOffset) {
+  /**
+   * Decodes a message.
+   *
+   * @param messageOffset Offset of the message for error reporting. For messages inside a compressed
+   *                      message set, it is the offset after the set.
+   * @param nextOffset Offset to fetch from after this message.
+   */
+  private void decodeMessage(int size, ChannelBuffer buffer, long messageOffset, long nextOffset,
+                             List<FetchedMessage> messages) {
     int readerIdx = buffer.readerIndex();
     int magic = buffer.readByte();
-    Compression compression = magic == 0 ? Compression.NONE : Compression.fromCode(buffer.readByte());
+    CompressionCodec codec = config.getCodec(magic == 0 ? Compression.NONE.getCode() : buffer.readByte());
     int crc = buffer.readInt();
 
     ChannelBuffer payload = buffer.readSlice(size - (buffer.readerIndex() - readerIdx));
 
-    // TODO: verify CRC?
-    enqueueMessage(compression, payload, nextOffset);
-  }
-
-  private void enqueueMessage(Compression compression, ChannelBuffer payload, long nextOffset) {
-    switch (compression) {
-      case NONE:
-        messages.add(FetchResult.success(new BasicFetchedMessage(nextOffset, payload.toByteBuffer())));
-        break;
-      case GZIP:
-        decodeResponse(gzipUncompress(payload), nextOffset);
-        break;
-      case SNAPPY:
-        decodeResponse(snappyUncompress(payload), nextOffset);
-        break;
-    }
-  }
-
-  private ChannelBuffer gzipUncompress(ChannelBuffer source) {
-    ChannelBufferOutputStream output = new ChannelBufferOutputStream(
-                                              ChannelBuffers.dynamicBuffer(source.readableBytes() * 2));
-    try {
-      try {
-        GZIPInputStream gzipInput = new GZIPInputStream(new ChannelBufferInputStream(source));
-        try {
-          ByteStreams.copy(gzipInput, output);
-          return output.buffer();
-        } finally {
-          gzipInput.close();
-        }
-      } finally {
-        output.close();
+    if (config.isVerifyCRC()) {
+      int actualCRC = Checksums.crc32(payload);
+      if (actualCRC != crc) {
+        throw new CorruptedMessageException(topic, partition, messageOffset, crc, actualCRC);
       }
-    } catch (IOException e) {
-      throw Throwables.propagate(e);
     }
+    addMessage(codec, payload, nextOffset, messages);
   }
 
-  private ChannelBuffer snappyUncompress(ChannelBuffer source) {
-    ChannelBufferOutputStream output = new ChannelBufferOutputStream(
-                                              ChannelBuffers.dynamicBuffer(source.readableBytes() * 2));
+  private void addMessage(CompressionCodec codec, ChannelBuffer payload, long nextOffset,
+                          List<FetchedMessage> messages) {
+    if (codec.getCode() == Compression.NONE.getCode()) {
+      messages.add(new BasicFetchedMessage(nextOffset, payload.toByteBuffer()));
+      return;
+    }
+    // Inner messages are slices of the decompressed buffer
     try {
-      try {
-        SnappyInputStream snappyInput = new SnappyInputStream(new ChannelBufferInputStream(source));
-        try {
-          ByteStreams.copy(snappyInput, output);
-          return output.buffer();
-        } finally {
-          snappyInput.close();
-        }
-      } finally {
-        output.close();
-      }
+      decodeResponse(decompressor.decompress(codec, payload), nextOffset, messages);
     } catch (IOException e) {
       throw Throwables.propagate(e);
     }
   }
 
   private void sendFetchRequest() {
+    if (!running) {
+      return;
+    }
     ChannelBuffer fetchBody = ChannelBuffers.buffer(12);
     fetchBody.writeLong(offset.get());
     fetchBody.writeInt(maxSize);
     sender.send(KafkaRequest.createFetch(topic, partition, fetchBody, MessageFetcher.this));
   }
 
-  @Override
-  protected FetchedMessage computeNext() {
-    FetchResult result = messages.poll();
-    if (result != null) {
-      return getMessage(result);
-    }
-
-    try {
-      sendFetchRequest();
-      return getMessage(messages.take());
-    } catch (InterruptedException e) {
-      scheduler.shutdownNow();
-      return endOfData();
-    }
-  }
-
-  private FetchedMessage getMessage(FetchResult result) {
-    try {
-      if (result.isSuccess()) {
-        return result.getMessage();
-      } else {
-        throw result.getErrorCause();
-      }
-    } catch (Throwable t) {
-      throw Throwables.propagate(t);
-    }
-  }
-
   private static final class FetchResult {
-    private final FetchedMessage message;
+    private final List<FetchedMessage> messages;
     private final Throwable errorCause;
+    private final boolean finished;
 
-    static FetchResult success(FetchedMessage message) {
-      return new FetchResult(message, null);
+    static FetchResult success(List<FetchedMessage> messages) {
+      return new FetchResult(messages, null, false);
     }
 
-    static FetchResult failure(Throwable cause) {
-      return new FetchResult(null, cause);
+    static FetchResult finished(Throwable cause) {
+      return new FetchResult(null, cause, true);
     }
 
-    private FetchResult(FetchedMessage message, Throwable errorCause) {
-      this.message = message;
+    private FetchResult(List<FetchedMessage> messages, Throwable errorCause, boolean finished) {
+      this.messages = messages;
       this.errorCause = errorCause;
+      this.finished = finished;
     }
 
-    public FetchedMessage getMessage() {
-      return message;
+    public List<FetchedMessage> getMessages() {
+      return messages;
     }
 
     public Throwable getErrorCause() {
       return errorCause;
     }
 
-    public boolean isSuccess() {
-      return message != null;
+    public boolean isFinished() {
+      return finished;
     }
   }
 }
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses compressed message sets into a single exactly sized buffer, so that the inner messages can be
+ * exposed as slices of it without further copying. The {@link Inflater} and the input scratch buffer are
+ * reused across calls. Each {@link MessageFetcher} has its own instance, which it closes when fetching stops
+ * to release the native memory of the {@link Inflater}.
+ */
+final class MessageSetDecompressor {
+
+  // Upper bound of the initial GZIP output size relative to the compressed size, as ISIZE is not trustable.
+  private static final int MAX_INITIAL_GZIP_RATIO = 16;
+  private static final int MIN_GZIP_OUTPUT_SIZE = 1024;
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int GZIP_TRAILER_SIZE = 8;
+  private static final int FHCRC = 2;
+  private static final int FEXTRA = 4;
+  private static final int FNAME = 8;
+  private static final int FCOMMENT = 16;
+
+  private Inflater inflater;
+  private byte[] scratch = new byte[0];
+  private boolean closed;
+
+  /**
+   * Decompresses with the given codec. Built-in codecs decompress with the reusable state of this instance,
+   * others with {@link CompressionCodec#decompress(ChannelBuffer)}.
+   */
+  synchronized ChannelBuffer decompress(CompressionCodec codec, ChannelBuffer input) throws IOException {
+    if (closed) {
+      throw new IOException("Decompressor closed");
+    }
+    if (codec == Compression.GZIP || codec instanceof GZipCompressionCodec) {
+      return gzipUncompress(input);
+    }
+    if (codec == Compression.SNAPPY || codec instanceof SnappyCompressionCodec) {
+      return snappyUncompress(input);
+    }
+    if (codec instanceof SnappyBlockCompressionCodec) {
+      return snappyBlockUncompress(input);
+    }
+    return codec.decompress(input);
+  }
+
+  /**
+   * Releases the {@link Inflater}. Decompressing after close fails.
+   */
+  synchronized void close() {
+    closed = true;
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+  }
+
+  /**
+   * Decompresses a GZIP compressed buffer. The output is sized by the ISIZE trailer, capped relative to the
+   * compressed size, and grows if the data is larger. The CRC32 and ISIZE of the trailer are verified against
+   * the decompressed data.
+   */
+  ChannelBuffer gzipUncompress(ChannelBuffer source) throws IOException {
+    int len = source.readableBytes();
+    byte[] input = getArray(source);
+    int off = getArrayOffset(source);
+
+    int headerSize = gzipHeaderSize(input, off, len);
+    if (len < headerSize + GZIP_TRAILER_SIZE) {
+      throw new IOException("Truncated GZIP data");
+    }
+
+    // The trailer is the CRC32 and the uncompressed size modulo 2^32 (ISIZE), both little endian.
+    int crc = readIntLE(input, off + len - 8);
+    int isize = readIntLE(input, off + len - 4);
+    long maxInitialSize = Math.max((long) len * MAX_INITIAL_GZIP_RATIO, MIN_GZIP_OUTPUT_SIZE);
+    byte[] output = new byte[(int) Math.min(isize & 0xffffffffL, Math.min(maxInitialSize, Integer.MAX_VALUE))];
+
+    if (inflater == null) {
+      inflater = new Inflater(true);
+    }
+    inflater.reset();
+    inflater.setInput(input, off + headerSize, len - headerSize - GZIP_TRAILER_SIZE);
+    int size = 0;
+    try {
+      while (!inflater.finished()) {
+        if (size == output.length) {
+          // ISIZE is capped or not trustable.
+          output = Arrays.copyOf(output, Math.max(output.length * 2, MIN_GZIP_OUTPUT_SIZE));
+        }
+        int inflated = inflater.inflate(output, size, output.length - size);
+        if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Corrupted GZIP data");
+        }
+        size += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+
+    ChannelBuffer result = ChannelBuffers.wrappedBuffer(output, 0, size);
+    if (size != isize || Checksums.crc32(result) != crc) {
+      throw new IOException("Corrupted GZIP data");
+    }
+    return result;
+  }
+
+  /**
+   * Decompresses a buffer produced by {@link org.xerial.snappy.SnappyOutputStream}, which is a header followed
+   * by [LENGTH][SNAPPY_BLOCK] chunks. The uncompressed size is computed from the blocks before decompressing.
+   */
+  ChannelBuffer snappyUncompress(ChannelBuffer source) throws IOException {
+    int len = source.readableBytes();
+    byte[] input = getArray(source);
+    int off = getArrayOffset(source);
+    int end = off + len;
+
+    if (!hasSnappyHeader(input, off, len)) {
+      // Same as SnappyInputStream, treat it as a raw snappy block if there is no header.
+      return snappyBlockUncompress(input, off, len);
+    }
+
+    int start = off + SnappyCodec.headerSize();
+    int total = 0;
+    int pos = start;
+    while (pos + 4 <= end) {
+      int chunkSize = readInt(input, pos);
+      pos += 4;
+      total += Snappy.uncompressedLength(input, pos, chunkSize);
+      pos += chunkSize;
+    }
+
+    byte[] output = new byte[total];
+    int size = 0;
+    pos = start;
+    while (pos + 4 <= end) {
+      int chunkSize = readInt(input, pos);
+      pos += 4;
+      size += Snappy.uncompress(input, pos, chunkSize, output, size);
+      pos += chunkSize;
+    }
+    return ChannelBuffers.wrappedBuffer(output, 0, size);
+  }
+
+  /**
+   * Decompresses a buffer that is a single raw snappy block.
+   */
+  ChannelBuffer snappyBlockUncompress(ChannelBuffer source) throws IOException {
+    return snappyBlockUncompress(getArray(source), getArrayOffset(source), source.readableBytes());
+  }
+
+  private ChannelBuffer snappyBlockUncompress(byte[] input, int off, int len) throws IOException {
+    byte[] output = new byte[Snappy.uncompressedLength(input, off, len)];
+    Snappy.uncompress(input, off, len, output, 0);
+    return ChannelBuffers.wrappedBuffer(output);
+  }
+
+  /**
+   * Returns a byte array that contains the readable bytes of the given buffer. It is either the backing array
+   * of the buffer or the reusable scratch array.
+   */
+  private byte[] getArray(ChannelBuffer buffer) {
+    if (buffer.hasArray()) {
+      return buffer.array();
+    }
+    int len = buffer.readableBytes();
+    if (scratch.length < len) {
+      scratch = new byte[len];
+    }
+    buffer.getBytes(buffer.readerIndex(), scratch, 0, len);
+    return scratch;
+  }
+
+  private int getArrayOffset(ChannelBuffer buffer) {
+    return buffer.hasArray() ? buffer.arrayOffset() + buffer.readerIndex() : 0;
+  }
+
+  private int gzipHeaderSize(byte[] input, int off, int len) throws IOException {
+    if (len < 10 || ((input[off] & 0xff) | (input[off + 1] & 0xff) << 8) != GZIP_MAGIC) {
+      throw new IOException("Not in GZIP format");
+    }
+    int flags = input[off + 3] & 0xff;
+    int end = off + len;
+    int pos = off + 10;
+    if ((flags & FEXTRA) != 0) {
+      checkHeaderBytes(pos, 2, end);
+      pos += 2;
+      int extraLen = (input[pos - 2] & 0xff) | (input[pos - 1] & 0xff) << 8;
+      checkHeaderBytes(pos, extraLen, end);
+      pos += extraLen;
+    }
+    if ((flags & FNAME) != 0) {
+      pos = skipZeroTerminated(input, pos, end);
+    }
+    if ((flags & FCOMMENT) != 0) {
+      pos = skipZeroTerminated(input, pos, end);
+    }
+    if ((flags & FHCRC) != 0) {
+      checkHeaderBytes(pos, 2, end);
+      pos += 2;
+    }
+    return pos - off;
+  }
+
+  /**
+   * Skips a zero terminated string in the GZIP header and returns the position after the terminator.
+   */
+  private int skipZeroTerminated(byte[] input, int pos, int end) throws IOException {
+    while (pos < end && input[pos] != 0) {
+      pos++;
+    }
+    checkHeaderBytes(pos, 1, end);
+    return pos + 1;
+  }
+
+  private void checkHeaderBytes(int pos, int size, int end) throws IOException {
+    if (size > end - pos) {
+      throw new IOException("Truncated GZIP header");
+    }
+  }
+
+  private boolean hasSnappyHeader(byte[] input, int off, int len) {
+    byte[] magic = SnappyCodec.MAGIC_HEADER;
+    if (len < SnappyCodec.headerSize()) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if (input[off + i] != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private int readIntLE(byte[] input, int pos) {
+    return (input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8
+         | (input[pos + 2] & 0xff) << 16 | (input[pos + 3] & 0xff) << 24;
+  }
+
+  private int readInt(byte[] input, int pos) {
+    return (input[pos] & 0xff) << 24 | (input[pos + 1] & 0xff) << 16
+         | (input[pos + 2] & 0xff) << 8 | (input[pos + 3] & 0xff);
+  }
+}
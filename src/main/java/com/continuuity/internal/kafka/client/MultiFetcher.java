@@ -0,0 +1,230 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multiplexes FETCH requests of many partitions that are served by the same broker into MULTI_FETCH requests
+ * over one connection per broker. At most one MULTI_FETCH is outstanding per broker; fetch requests issued
+ * while waiting for a response are sent together in the next request. If the connection closes before the
+ * response arrives, the outstanding batch is sent again on a new connection.
+ */
+final class MultiFetcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MultiFetcher.class);
+  private static final long RETRY_DELAY_MS = 1000;
+
+  // Number of fetch requests in a MULTI_FETCH is encoded as a short
+  private static final int MAX_BATCH_SIZE = Short.MAX_VALUE;
+
+  private final ConnectionPool connectionPool;
+  private final ScheduledExecutorService scheduler;
+  private final ConcurrentMap<InetSocketAddress, BrokerFetcher> brokerFetchers;
+
+  MultiFetcher(ConnectionPool connectionPool, ScheduledExecutorService scheduler) {
+    this.connectionPool = connectionPool;
+    this.scheduler = scheduler;
+    this.brokerFetchers = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Returns a {@link KafkaRequestSender} that sends FETCH requests to the given broker as part of MULTI_FETCH.
+   */
+  KafkaRequestSender getSender(InetSocketAddress broker) {
+    BrokerFetcher fetcher = brokerFetchers.get(broker);
+    if (fetcher == null) {
+      fetcher = new BrokerFetcher(broker);
+      BrokerFetcher existing = brokerFetchers.putIfAbsent(broker, fetcher);
+      fetcher = existing == null ? fetcher : existing;
+    }
+    return fetcher;
+  }
+
+  private final class BrokerFetcher implements KafkaRequestSender {
+
+    private final InetSocketAddress broker;
+    private final Queue<KafkaRequest> pending;
+    private final AtomicBoolean sending;
+    private final Runnable retrySend = new Runnable() {
+      @Override
+      public void run() {
+        trySend();
+      }
+    };
+    private volatile ChannelFuture channelFuture;
+
+    BrokerFetcher(InetSocketAddress broker) {
+      this.broker = broker;
+      this.pending = new ConcurrentLinkedQueue<KafkaRequest>();
+      this.sending = new AtomicBoolean();
+    }
+
+    @Override
+    public void send(KafkaRequest request) {
+      pending.add(request);
+      trySend();
+    }
+
+    @Override
+    public void close() {
+      // No-op. The connection is shared by all consumers of the broker.
+    }
+
+    private void trySend() {
+      // Loop to handle race between draining and enqueue after the sending flag is reset.
+      while (!pending.isEmpty() && sending.compareAndSet(false, true)) {
+        List<KafkaRequest> batch = drain();
+        if (!batch.isEmpty()) {
+          write(batch);
+          return;
+        }
+        sending.set(false);
+      }
+    }
+
+    private List<KafkaRequest> drain() {
+      List<KafkaRequest> batch = Lists.newArrayList();
+      KafkaRequest request = pending.poll();
+      while (request != null) {
+        batch.add(request);
+        if (batch.size() >= MAX_BATCH_SIZE) {
+          break;
+        }
+        request = pending.poll();
+      }
+      return batch;
+    }
+
+    private void write(final List<KafkaRequest> batch) {
+      final KafkaRequest request = createRequest(batch);
+
+      // Uses a dedicated connection, since it is long lived and closed on failure.
+      ChannelFuture future = channelFuture;
+      if (future == null || (future.isDone() && !future.getChannel().isConnected())) {
+        future = connectionPool.connectDedicated(broker);
+        channelFuture = future;
+      }
+
+      future.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (!future.isSuccess()) {
+            retry(batch, future);
+            return;
+          }
+          future.getChannel().write(request).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+              if (!future.isSuccess()) {
+                retry(batch, future);
+              }
+            }
+          });
+        }
+      });
+    }
+
+    private void retry(List<KafkaRequest> batch, ChannelFuture future) {
+      LOG.warn("Failed to send fetch request to " + broker + ". Retry in " + RETRY_DELAY_MS + " ms.",
+               future.getCause());
+      future.getChannel().close();
+      requeue(batch);
+    }
+
+    /**
+     * Puts the batch back to the pending queue and sends it after a delay on a new connection.
+     */
+    private void requeue(List<KafkaRequest> batch) {
+      channelFuture = null;
+      pending.addAll(batch);
+      sending.set(false);
+      scheduler.schedule(retrySend, RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private KafkaRequest createRequest(final List<KafkaRequest> batch) {
+      ChannelBuffer[] buffers = new ChannelBuffer[batch.size() * 2 + 1];
+      buffers[0] = ChannelBuffers.buffer(2);
+      buffers[0].writeShort(batch.size());
+
+      int idx = 1;
+      for (KafkaRequest request : batch) {
+        ByteBuffer topic = Charsets.UTF_8.encode(request.getTopic());
+        ChannelBuffer header = ChannelBuffers.buffer(6 + topic.remaining());
+        header.writeShort(topic.remaining());
+        header.writeBytes(topic);
+        header.writeInt(request.getPartition());
+        buffers[idx++] = header;
+        buffers[idx++] = request.getBody();
+      }
+
+      return KafkaRequest.createMultiFetch(ChannelBuffers.wrappedBuffer(buffers), new ResponseHandler() {
+        @Override
+        public void received(KafkaResponse response) {
+          try {
+            dispatch(batch, response);
+          } finally {
+            sending.set(false);
+            trySend();
+          }
+        }
+
+        @Override
+        public void failed(Throwable cause) {
+          LOG.warn("Connection to " + broker + " failed. Retry in " + RETRY_DELAY_MS + " ms.", cause);
+          requeue(batch);
+        }
+      });
+    }
+
+    /**
+     * Splits a MULTI_FETCH response into responses of individual FETCH and dispatches them to the
+     * corresponding request handler. Each of the individual response is [SIZE][ERROR_CODE][MESSAGE_SET].
+     */
+    private void dispatch(List<KafkaRequest> batch, KafkaResponse response) {
+      ChannelBuffer body = response.getBody();
+      for (KafkaRequest request : batch) {
+        KafkaResponse fetchResponse;
+        if (response.getErrorCode() != KafkaResponse.ErrorCode.OK || body.readableBytes() < 6) {
+          fetchResponse = new KafkaResponse(response.getErrorCode(), ChannelBuffers.EMPTY_BUFFER, 6);
+        } else {
+          int size = body.readInt();
+          KafkaResponse.ErrorCode errorCode = KafkaResponse.ErrorCode.fromCode(body.readShort());
+          fetchResponse = new KafkaResponse(errorCode, body.readSlice(size - 2), size + 4);
+        }
+        request.getResponseHandler().received(fetchResponse);
+      }
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups pending message sets that go to the same broker into one MULTI_PRODUCE request, regardless of
+ * topic and partition. At most one request is being written per broker at any time; message sets that
+ * are enqueued while a write is in progress are sent together in the next request.
+ */
+final class MultiProducer {
+
+  // Number of produce requests in a MULTI_PRODUCE is encoded as a short
+  private static final int MAX_BATCH_SIZE = Short.MAX_VALUE;
+
+  private final ConnectionPool connectionPool;
+  private final ProduceWriter produceWriter;
+  private final ConcurrentMap<InetSocketAddress, BrokerQueue> brokerQueues;
+
+  MultiProducer(ConnectionPool connectionPool, ProduceWriter produceWriter) {
+    this.connectionPool = connectionPool;
+    this.produceWriter = produceWriter;
+    this.brokerQueues = Maps.newConcurrentMap();
+  }
+
+  /**
+   * Enqueues a message set to be sent to the given broker. The message set is not sent until
+   * {@link #send()} is called.
+   *
+   * @param broker Address of the broker.
+   * @param topic Topic of the message set.
+   * @param partition Partition of the message set.
+   * @param messageSet Encoded message set, prefixed with its size.
+   * @return A future that will be completed when the message set is written.
+   */
+  ListenableFuture<Object> enqueue(InetSocketAddress broker, String topic, int partition, ChannelBuffer messageSet) {
+    BrokerQueue queue = brokerQueues.get(broker);
+    if (queue == null) {
+      queue = new BrokerQueue(broker);
+      BrokerQueue existing = brokerQueues.putIfAbsent(broker, queue);
+      queue = existing == null ? queue : existing;
+    }
+    PendingProduce produce = new PendingProduce(topic, partition, messageSet);
+    queue.pending.add(produce);
+    return produce.result;
+  }
+
+  /**
+   * Sends all pending message sets to brokers that don't have a write in progress.
+   */
+  void send() {
+    for (BrokerQueue queue : brokerQueues.values()) {
+      queue.trySend();
+    }
+  }
+
+  private final class BrokerQueue {
+
+    private final InetSocketAddress broker;
+    private final Queue<PendingProduce> pending;
+    private final AtomicBoolean sending;
+
+    BrokerQueue(InetSocketAddress broker) {
+      this.broker = broker;
+      this.pending = new ConcurrentLinkedQueue<PendingProduce>();
+      this.sending = new AtomicBoolean();
+    }
+
+    void trySend() {
+      // Loop to handle race between draining and enqueue after the sending flag is reset.
+      while (!pending.isEmpty() && sending.compareAndSet(false, true)) {
+        List<PendingProduce> batch = drain();
+        if (!batch.isEmpty()) {
+          write(batch);
+          return;
+        }
+        sending.set(false);
+      }
+    }
+
+    private List<PendingProduce> drain() {
+      List<PendingProduce> batch = Lists.newArrayList();
+      PendingProduce produce = pending.poll();
+      while (produce != null) {
+        batch.add(produce);
+        if (batch.size() >= MAX_BATCH_SIZE) {
+          break;
+        }
+        produce = pending.poll();
+      }
+      return batch;
+    }
+
+    private void write(final List<PendingProduce> batch) {
+      final long startNanos = System.nanoTime();
+      final KafkaRequest request = createRequest(batch);
+      final ConnectionPool.ConnectResult connection = connectionPool.connect(broker);
+
+      connection.getChannelFuture().addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (!future.isSuccess()) {
+            completed(batch, future.getCause(), connection);
+            return;
+          }
+          PendingProduce first = batch.get(0);
+          ListenableFuture<Void> result;
+          try {
+            result = produceWriter.write(future.getChannel(), request, first.topic, first.partition, startNanos);
+          } catch (Exception e) {
+            completed(batch, e, connection);
+            return;
+          }
+          Futures.addCallback(result, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void value) {
+              completed(batch, null, connection);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+              completed(batch, t, connection);
+            }
+          });
+        }
+      });
+    }
+
+    /**
+     * Completes all produce in the batch and sends the next batch.
+     *
+     * @param cause {@code null} if the batch is written successfully, otherwise the cause of failure.
+     */
+    private void completed(List<PendingProduce> batch, Throwable cause, ConnectionPool.ConnectionReleaser releaser) {
+      try {
+        for (PendingProduce produce : batch) {
+          if (cause == null) {
+            produce.result.set(null);
+          } else {
+            produce.result.setException(cause);
+          }
+        }
+      } finally {
+        releaser.release();
+        sending.set(false);
+        // Send whatever accumulated while this batch was being written
+        trySend();
+      }
+    }
+
+    private KafkaRequest createRequest(List<PendingProduce> batch) {
+      if (batch.size() == 1) {
+        PendingProduce produce = batch.get(0);
+        return KafkaRequest.createProduce(produce.topic, produce.partition, produce.messageSet);
+      }
+
+      ChannelBuffer[] buffers = new ChannelBuffer[batch.size() * 2 + 1];
+      buffers[0] = ChannelBuffers.buffer(2);
+      buffers[0].writeShort(batch.size());
+
+      int idx = 1;
+      for (PendingProduce produce : batch) {
+        ByteBuffer topic = Charsets.UTF_8.encode(produce.topic);
+        ChannelBuffer header = ChannelBuffers.buffer(6 + topic.remaining());
+        header.writeShort(topic.remaining());
+        header.writeBytes(topic);
+        header.writeInt(produce.partition);
+        buffers[idx++] = header;
+        buffers[idx++] = produce.messageSet;
+      }
+      return KafkaRequest.createMultiProduce(ChannelBuffers.wrappedBuffer(buffers));
+    }
+  }
+
+  private static final class PendingProduce {
+    private final String topic;
+    private final int partition;
+    private final ChannelBuffer messageSet;
+    private final SettableFuture<Object> result;
+
+    private PendingProduce(String topic, int partition, ChannelBuffer messageSet) {
+      this.topic = topic;
+      this.partition = partition;
+      this.messageSet = messageSet;
+      this.result = SettableFuture.create();
+    }
+  }
+}
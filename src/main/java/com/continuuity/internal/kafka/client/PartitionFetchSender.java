@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Sends requests of one topic partition on a dedicated connection. The broker is looked up on every send, and the
+ * connection is replaced when the partition moved to another broker. When connecting or writing fails, the
+ * request is sent again after a backoff delay that doubles on consecutive failures.
+ *
+ * A FETCH request is not sent if the partition moved since the previous request, as its offset refers to the log
+ * of the old broker. Instead, its handler is failed with {@link PartitionMovedException}, so that the offset is
+ * resolved again on the new broker.
+ */
+final class PartitionFetchSender implements KafkaRequestSender {
+
+  private static final Logger LOG = LoggerFactory.getLogger(PartitionFetchSender.class);
+
+  private final String topic;
+  private final int partition;
+  private final KafkaBrokerCache brokerCache;
+  private final ConnectionPool connectionPool;
+  private final ScheduledExecutorService scheduler;
+  private final FetchConfig config;
+  private final AtomicReference<BrokerChannel> channelRef;
+  private final AtomicReference<InetSocketAddress> brokerRef;
+  private volatile long retryBackoffMillis;
+  private volatile boolean closed;
+
+  PartitionFetchSender(String topic, int partition, KafkaBrokerCache brokerCache, ConnectionPool connectionPool,
+                       ScheduledExecutorService scheduler, FetchConfig config) {
+    this.topic = topic;
+    this.partition = partition;
+    this.brokerCache = brokerCache;
+    this.connectionPool = connectionPool;
+    this.scheduler = scheduler;
+    this.config = config;
+    this.channelRef = new AtomicReference<BrokerChannel>();
+    this.brokerRef = new AtomicReference<InetSocketAddress>();
+  }
+
+  @Override
+  public void send(final KafkaRequest request) {
+    if (closed) {
+      return;
+    }
+    TopicBroker topicBroker = brokerCache.lookup(topic, partition);
+    if (topicBroker == null) {
+      Futures.addCallback(brokerCache.getTopicBroker(topic, partition), new FutureCallback<TopicBroker>() {
+        @Override
+        public void onSuccess(TopicBroker result) {
+          send(request);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          LOG.warn("No broker for " + topic + ", " + partition, t);
+        }
+      });
+      return;
+    }
+
+    if (failIfMoved(request, topicBroker)) {
+      return;
+    }
+
+    final KafkaRequest brokerRequest = request.forPartition(topicBroker.getPartition());
+    final BrokerChannel channel = getChannel(topicBroker.getAddress());
+    channel.future.addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          retry(channel, request, future.getCause());
+          return;
+        }
+        future.getChannel().write(brokerRequest).addListener(new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception {
+            if (future.isSuccess()) {
+              retryBackoffMillis = 0;
+            } else {
+              retry(channel, request, future.getCause());
+            }
+          }
+        });
+      }
+    });
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    BrokerChannel channel = channelRef.getAndSet(null);
+    if (channel != null) {
+      channel.future.getChannel().close();
+    }
+  }
+
+  /**
+   * Records the broker that a request of the partition is sent to. If it is a FETCH request and the partition
+   * moved since the previous request, fails the request with {@link PartitionMovedException}.
+   *
+   * @return {@code true} if the request is failed and must not be sent.
+   */
+  boolean failIfMoved(KafkaRequest request, TopicBroker topicBroker) {
+    InetSocketAddress address = topicBroker.getAddress();
+    InetSocketAddress previous = brokerRef.getAndSet(address);
+    if (previous == null || previous.equals(address) || request.getType() != KafkaRequest.Type.FETCH) {
+      return false;
+    }
+    request.getResponseHandler().failed(new PartitionMovedException("Partition " + topic + ", " + partition
+                                                                       + " moved from " + previous + " to " + address));
+    return true;
+  }
+
+  /**
+   * Returns the connection to the given broker, replacing the current one if it is to a different broker.
+   */
+  private BrokerChannel getChannel(InetSocketAddress address) {
+    BrokerChannel channel = channelRef.get();
+    while (channel == null || !channel.address.equals(address)) {
+      // Uses a dedicated connection, as it is long lived and closed on failure.
+      BrokerChannel newChannel = new BrokerChannel(address, connectionPool.connectDedicated(address));
+      if (channelRef.compareAndSet(channel, newChannel)) {
+        if (channel != null) {
+          LOG.info("Partition " + topic + ", " + partition + " moved from " + channel.address + " to " + address);
+          channel.future.getChannel().close();
+        }
+        if (closed) {
+          close();
+        }
+        return newChannel;
+      }
+      newChannel.future.getChannel().close();
+      channel = channelRef.get();
+    }
+    return channel;
+  }
+
+  private void retry(BrokerChannel channel, final KafkaRequest request, Throwable cause) {
+    channelRef.compareAndSet(channel, null);
+    channel.future.getChannel().close();
+    if (closed) {
+      return;
+    }
+
+    long backoff = config.nextBackoff(retryBackoffMillis);
+    retryBackoffMillis = backoff;
+    LOG.warn("Failed to send request to " + channel.address + " for " + topic + ", " + partition
+               + ". Retry in " + backoff + " ms.", cause);
+    try {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          send(request);
+        }
+      }, backoff, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      // Client is stopping.
+      LOG.debug("Retry rejected for " + topic + ", " + partition);
+    }
+  }
+
+  private static final class BrokerChannel {
+    private final InetSocketAddress address;
+    private final ChannelFuture future;
+
+    private BrokerChannel(InetSocketAddress address, ChannelFuture future) {
+      this.address = address;
+      this.future = future;
+    }
+  }
+}
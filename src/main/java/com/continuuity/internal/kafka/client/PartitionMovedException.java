@@ -16,20 +16,17 @@
 package com.continuuity.internal.kafka.client;
 
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
- *
+ * Passed to {@link ResponseHandler#failed(Throwable)} of a FETCH request that is not sent because the partition
+ * moved to another broker. The fetch offset is a position in the log of the old broker, hence is meaningless on
+ * the new one.
  */
-final class GZipMessageSetEncoder extends AbstractCompressedMessageSetEncoder {
+final class PartitionMovedException extends IOException {
 
-  GZipMessageSetEncoder() {
-    super(Compression.GZIP);
-  }
+  private static final long serialVersionUID = 1L;
 
-  @Override
-  protected OutputStream createCompressedStream(OutputStream os) throws IOException {
-    return new GZIPOutputStream(os);
+  PartitionMovedException(String message) {
+    super(message);
   }
 }
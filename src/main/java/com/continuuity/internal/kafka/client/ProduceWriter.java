@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.KafkaClient;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes produce requests to a channel and records the publish latency. Kafka doesn't respond to produce
+ * requests. In acknowledged mode, each produce request is followed by an OFFSETS request on the same
+ * channel. Since the broker handles requests of a connection in order, the OFFSETS response confirms that
+ * the broker has appended the produced messages.
+ */
+final class ProduceWriter {
+
+  private final boolean acknowledged;
+  private final LatencyHistogram latency;
+
+  ProduceWriter(boolean acknowledged, LatencyHistogram latency) {
+    this.acknowledged = acknowledged;
+    this.latency = latency;
+  }
+
+  /**
+   * Writes a PRODUCE or MULTI_PRODUCE request.
+   *
+   * @param channel Channel to write to.
+   * @param request The produce request.
+   * @param topic Topic for the acknowledgement request. For MULTI_PRODUCE it's any of the produced topics.
+   * @param partition Partition for the acknowledgement request.
+   * @param startNanos {@link System#nanoTime()} when publishing started, for latency tracking.
+   * @return A future that will be completed when the request is written, or acknowledged in acknowledged mode.
+   */
+  ListenableFuture<Void> write(final Channel channel, KafkaRequest request,
+                               String topic, int partition, final long startNanos) {
+    final SettableFuture<Void> result = SettableFuture.create();
+    ChannelFuture writeFuture = channel.write(request);
+    if (!acknowledged) {
+      writeFuture.addListener(new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+          if (future.isSuccess()) {
+            completed(result, startNanos);
+          } else if (future.isCancelled()) {
+            result.cancel(true);
+          } else {
+            result.setException(future.getCause());
+          }
+        }
+      });
+      return result;
+    }
+
+    // Fails the result if the channel is closed before the acknowledgement arrives.
+    final ChannelFutureListener closeListener = new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        result.setException(new ClosedChannelException());
+      }
+    };
+    channel.getCloseFuture().addListener(closeListener);
+
+    KafkaRequest ackRequest = KafkaRequest.createOffsets(topic, partition, KafkaClient.LATEST_OFFSET, 1,
+                                                         new ResponseHandler() {
+      @Override
+      public void received(KafkaResponse response) {
+        channel.getCloseFuture().removeListener(closeListener);
+        if (response.getErrorCode() == KafkaResponse.ErrorCode.OK) {
+          completed(result, startNanos);
+        } else {
+          result.setException(new IllegalStateException("Failed to acknowledge produce: " + response.getErrorCode()));
+        }
+      }
+
+      @Override
+      public void failed(Throwable cause) {
+        channel.getCloseFuture().removeListener(closeListener);
+        result.setException(cause);
+      }
+    });
+
+    // On failure the channel is in unknown state, hence closes it.
+    ChannelFutureListener failureListener = new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          channel.getCloseFuture().removeListener(closeListener);
+          result.setException(future.getCause() == null ? new ClosedChannelException() : future.getCause());
+          channel.close();
+        }
+      }
+    };
+    writeFuture.addListener(failureListener);
+    channel.write(ackRequest).addListener(failureListener);
+    return result;
+  }
+
+  private void completed(SettableFuture<Void> result, long startNanos) {
+    latency.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    result.set(null);
+  }
+}
@@ -0,0 +1,265 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.BufferExhaustedException;
+import com.continuuity.kafka.client.CompressionCodec;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates messages published from many threads into per partition batches. A batch is ready to be sent
+ * when it reaches the max batch size, or when it has been open for the linger time. Ready batches are taken
+ * by a single sender thread through {@link #drain()}. Memory of messages is acquired from the
+ * {@link ProducerMemoryBudget} on append, and released when their batch is completed.
+ */
+final class ProducerAccumulator {
+
+  private final long lingerNanos;
+  private final int maxBatchBytes;
+  private final ProducerMemoryBudget memoryBudget;
+
+  // Guarded by this
+  private final Map<BatchKey, Batch> openBatches;
+  private final List<Batch> readyBatches;
+  private boolean closed;
+
+  /**
+   * @param linger Time that a batch stays open for more messages.
+   * @param unit {@link TimeUnit} of linger.
+   * @param maxBatchBytes Maximum number of uncompressed payload bytes in a batch.
+   * @param memoryBudget Budget for the memory of all messages that are not yet published.
+   */
+  ProducerAccumulator(long linger, TimeUnit unit, int maxBatchBytes, ProducerMemoryBudget memoryBudget) {
+    this.lingerNanos = unit.toNanos(linger);
+    this.maxBatchBytes = maxBatchBytes;
+    this.memoryBudget = memoryBudget;
+    this.openBatches = Maps.newLinkedHashMap();
+    this.readyBatches = Lists.newArrayList();
+  }
+
+  /**
+   * Appends a message to the batch of the given topic partition. It may block or fail when the memory budget
+   * is exhausted, depending on its {@link com.continuuity.kafka.client.OverflowPolicy}.
+   *
+   * @return A future that will be completed when the batch containing the message is published.
+   */
+  ListenableFuture<Void> append(String topic, int partition, CompressionCodec codec, ChannelBuffer payload) {
+    int bytes = payload.readableBytes();
+    try {
+      if (!memoryBudget.acquire(bytes)) {
+        return Futures.immediateFailedFuture(
+          new BufferExhaustedException("Message dropped. Producer memory of "
+                                         + memoryBudget.getMaxBufferedBytes() + " bytes exhausted."));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Futures.immediateFailedFuture(e);
+    }
+
+    synchronized (this) {
+      if (closed) {
+        memoryBudget.release(bytes);
+        return Futures.immediateFailedFuture(new IllegalStateException("Producer is closed."));
+      }
+      return addToBatch(topic, partition, codec, payload);
+    }
+  }
+
+  private ListenableFuture<Void> addToBatch(String topic, int partition,
+                                            CompressionCodec codec, ChannelBuffer payload) {
+    BatchKey key = new BatchKey(topic, partition, codec);
+    Batch batch = openBatches.get(key);
+    if (batch != null && batch.getBytes() + payload.readableBytes() > maxBatchBytes) {
+      // Current batch is full, make it ready and start a new one.
+      openBatches.remove(key);
+      readyBatches.add(batch);
+      batch = null;
+    }
+    if (batch == null) {
+      batch = new Batch(topic, partition, codec, System.nanoTime(), memoryBudget);
+      openBatches.put(key, batch);
+      // Wakes up the sender to wait for the linger time of the new batch.
+      notifyAll();
+    }
+    return batch.add(payload);
+  }
+
+  /**
+   * Waits for batches that are ready to be sent and removes them from this accumulator. After
+   * {@link #close()} is called, all remaining batches are returned without waiting.
+   *
+   * @return Batches ready to be sent, or an empty list if this accumulator is closed and has no more batches.
+   * @throws InterruptedException If the calling thread is interrupted while waiting.
+   */
+  synchronized List<Batch> drain() throws InterruptedException {
+    while (true) {
+      long waitNanos = collectReady(System.nanoTime());
+      if (!readyBatches.isEmpty() || closed) {
+        List<Batch> result = ImmutableList.copyOf(readyBatches);
+        readyBatches.clear();
+        return result;
+      }
+      if (waitNanos < 0) {
+        wait();
+      } else {
+        TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+      }
+    }
+  }
+
+  /**
+   * Closes this accumulator. Further appends will fail, while {@link #drain()} returns all remaining batches.
+   */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Moves batches that exceeded the linger time, or all batches when closed, to the ready list.
+   *
+   * @return Nanoseconds until the next open batch expires, or {@code -1} if there is no open batch.
+   */
+  private long collectReady(long now) {
+    long waitNanos = -1;
+    Iterator<Batch> iterator = openBatches.values().iterator();
+    while (iterator.hasNext()) {
+      Batch batch = iterator.next();
+      long remaining = batch.getCreateNanos() + lingerNanos - now;
+      if (closed || remaining <= 0) {
+        iterator.remove();
+        readyBatches.add(batch);
+      } else if (waitNanos < 0 || remaining < waitNanos) {
+        waitNanos = remaining;
+      }
+    }
+    return waitNanos;
+  }
+
+  /**
+   * A batch of messages that goes to the same topic partition with the same compression.
+   */
+  static final class Batch {
+    private final String topic;
+    private final int partition;
+    private final CompressionCodec codec;
+    private final long createNanos;
+    private final ProducerMemoryBudget memoryBudget;
+    private final List<ChannelBuffer> payloads;
+    private final List<SettableFuture<Void>> futures;
+    private int bytes;
+
+    private Batch(String topic, int partition, CompressionCodec codec, long createNanos,
+                  ProducerMemoryBudget memoryBudget) {
+      this.topic = topic;
+      this.partition = partition;
+      this.codec = codec;
+      this.createNanos = createNanos;
+      this.memoryBudget = memoryBudget;
+      this.payloads = Lists.newArrayList();
+      this.futures = Lists.newArrayList();
+    }
+
+    private ListenableFuture<Void> add(ChannelBuffer payload) {
+      SettableFuture<Void> future = SettableFuture.create();
+      payloads.add(payload);
+      futures.add(future);
+      bytes += payload.readableBytes();
+      return future;
+    }
+
+    String getTopic() {
+      return topic;
+    }
+
+    int getPartition() {
+      return partition;
+    }
+
+    CompressionCodec getCodec() {
+      return codec;
+    }
+
+    long getCreateNanos() {
+      return createNanos;
+    }
+
+    List<ChannelBuffer> getPayloads() {
+      return payloads;
+    }
+
+    int getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Completes the futures of all messages in this batch and releases their memory.
+     *
+     * @param cause {@code null} if the batch is published successfully, otherwise the cause of failure.
+     */
+    void completed(Throwable cause) {
+      memoryBudget.release(bytes);
+      for (SettableFuture<Void> future : futures) {
+        if (cause == null) {
+          future.set(null);
+        } else {
+          future.setException(cause);
+        }
+      }
+    }
+  }
+
+  private static final class BatchKey {
+    private final String topic;
+    private final int partition;
+    private final CompressionCodec codec;
+
+    BatchKey(String topic, int partition, CompressionCodec codec) {
+      this.topic = topic;
+      this.partition = partition;
+      this.codec = codec;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      BatchKey other = (BatchKey) o;
+      return partition == other.partition && topic.equals(other.topic) && codec.equals(other.codec);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(topic, partition, codec);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.BufferExhaustedException;
+import com.continuuity.kafka.client.OverflowPolicy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the total number of payload bytes that are buffered or being published by a client. Bytes are
+ * acquired when a message is added and released when the message set containing it is published or failed.
+ */
+final class ProducerMemoryBudget {
+
+  private final long maxBytes;
+  private final OverflowPolicy policy;
+  private final AtomicLong droppedMessages;
+
+  // Guarded by this
+  private long usedBytes;
+
+  ProducerMemoryBudget(long maxBytes, OverflowPolicy policy) {
+    this.maxBytes = maxBytes;
+    this.policy = policy;
+    this.droppedMessages = new AtomicLong();
+  }
+
+  /**
+   * Acquires memory for a message, applying the {@link OverflowPolicy} if there is not enough. A message larger
+   * than the whole budget is admitted when nothing else is buffered.
+   *
+   * @param bytes Size of the message payload.
+   * @return {@code true} if the memory is acquired, {@code false} if the message should be dropped.
+   * @throws BufferExhaustedException If the policy is {@link OverflowPolicy#FAIL} and there is not enough memory.
+   * @throws InterruptedException If interrupted while waiting for memory.
+   */
+  boolean acquire(int bytes) throws InterruptedException {
+    return acquire(bytes, 1);
+  }
+
+  /**
+   * Acquires memory for a batch of messages. Same as {@link #acquire(int)}, with all messages in the batch
+   * counted as dropped if the batch is dropped.
+   */
+  synchronized boolean acquire(int bytes, int messages) throws InterruptedException {
+    while (usedBytes > 0 && usedBytes + bytes > maxBytes) {
+      switch (policy) {
+        case DROP:
+          droppedMessages.addAndGet(messages);
+          return false;
+        case FAIL:
+          throw new BufferExhaustedException("Producer memory of " + maxBytes + " bytes exhausted.");
+        default:
+          wait();
+      }
+    }
+    usedBytes += bytes;
+    return true;
+  }
+
+  /**
+   * Releases memory acquired through {@link #acquire(int)}.
+   */
+  synchronized void release(int bytes) {
+    usedBytes -= bytes;
+    notifyAll();
+  }
+
+  synchronized long getBufferedBytes() {
+    return usedBytes;
+  }
+
+  long getMaxBufferedBytes() {
+    return maxBytes;
+  }
+
+  long getDroppedMessages() {
+    return droppedMessages.get();
+  }
+}
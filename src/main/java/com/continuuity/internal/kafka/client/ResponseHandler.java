@@ -16,7 +16,7 @@
 package com.continuuity.internal.kafka.client;
 
 /**
- *
+ * Handles the response of a request.
  */
 interface ResponseHandler {
 
@@ -25,7 +25,17 @@ interface ResponseHandler {
     public void received(KafkaResponse response) {
       // No-op
     }
+
+    @Override
+    public void failed(Throwable cause) {
+      // No-op
+    }
   };
 
   void received(KafkaResponse response);
+
+  /**
+   * Called when the request was written but the connection closed or failed before the response arrived.
+   */
+  void failed(Throwable cause);
 }
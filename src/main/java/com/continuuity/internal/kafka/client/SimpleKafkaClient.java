@@ -15,41 +15,57 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import com.continuuity.kafka.client.BufferExhaustedException;
+import com.continuuity.kafka.client.CompressionCodec;
 import com.continuuity.kafka.client.FetchedMessage;
 import com.continuuity.kafka.client.KafkaClient;
+import com.continuuity.kafka.client.MessageCallback;
+import com.continuuity.kafka.client.OverflowPolicy;
+import com.continuuity.kafka.client.Partitioner;
 import com.continuuity.kafka.client.PreparePublish;
+import com.continuuity.kafka.client.ProducerMetrics;
+import com.continuuity.kafka.client.Publisher;
 import com.continuuity.weave.internal.utils.Threads;
+import com.continuuity.zookeeper.Cancellable;
 import com.continuuity.zookeeper.RetryStrategies;
 import com.continuuity.zookeeper.ZKClientService;
 import com.continuuity.zookeeper.ZKClientServices;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
-import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
-import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
@@ -57,44 +73,154 @@ import java.util.concurrent.atomic.AtomicReference;
 public final class SimpleKafkaClient extends AbstractIdleService implements KafkaClient {
 
   private static final Logger LOG = LoggerFactory.getLogger(SimpleKafkaClient.class);
-  private static final int BROKER_POLL_INTERVAL = 100;
+  private static final int SHUTDOWN_TIMEOUT_SECONDS = 5;
 
   private final ZKClientService zkClientService;
   private final KafkaBrokerCache brokerCache;
+  private final Partitioner partitioner;
+  private final boolean multiProduce;
+  private final boolean multiFetch;
+  private final FetchConfig fetchConfig;
+  private final ConcurrentMap<CompressionCodec, CompressionStats> compressionStats;
+  private final ProducerMemoryBudget memoryBudget;
+  private final ProducerAccumulator accumulator;
+  private final LatencyHistogram publishLatency;
+  private final ProduceWriter produceWriter;
+  private final int channelsPerBroker;
+  private final int maxPublishRetries;
+  private final long minPublishBackoffMillis;
+  private final long maxPublishBackoffMillis;
+  private final Set<PublishRetry> waitingRetries;
+  private final int maxConnectionsPerBroker;
+  private final long idleConnectionTimeoutMillis;
+  private final long connectTimeoutMillis;
+  private final boolean sharedIOThreads;
+  private final int ioWorkerThreads;
+  private final boolean tcpNoDelay;
+  private final int sendBufferSize;
+  private final int receiveBufferSize;
   private ConnectionPool connectionPool;
+  private MultiProducer multiProducer;
+  private MultiFetcher multiFetcher;
+  private ScheduledExecutorService scheduler;
+  private ExecutorService callbackExecutor;
+  private ExecutorService producerExecutor;
+  private Cancellable brokerChangeCancellable;
 
+  /**
+   * Creates a {@link SimpleKafkaClient} with default settings.
+   *
+   * @param zkConnectStr ZooKeeper connection string for discovering Kafka brokers.
+   */
   public SimpleKafkaClient(String zkConnectStr) {
+    this(Builder.of(zkConnectStr));
+  }
+
+  private SimpleKafkaClient(Builder builder) {
     zkClientService = ZKClientServices.reWatchOnExpire(
                         ZKClientServices.retryOnFailure(
-                          ZKClientService.Builder.of(zkConnectStr).build(),
+                          ZKClientService.Builder.of(builder.zkConnectStr).build(),
                                                      RetryStrategies.fixDelay(1, TimeUnit.SECONDS)));
     brokerCache = new KafkaBrokerCache(zkClientService);
+    partitioner = builder.partitioner;
+    multiProduce = builder.multiProduce;
+    multiFetch = builder.multiFetch;
+    compressionStats = Maps.newConcurrentMap();
+    memoryBudget = new ProducerMemoryBudget(builder.bufferMemory, builder.overflowPolicy);
+    accumulator = new ProducerAccumulator(builder.lingerMillis, TimeUnit.MILLISECONDS,
+                                          builder.maxBatchBytes, memoryBudget);
+    publishLatency = new LatencyHistogram();
+    produceWriter = new ProduceWriter(builder.acknowledgedPublish, publishLatency);
+    channelsPerBroker = builder.channelsPerBroker;
+    maxPublishRetries = builder.maxPublishRetries;
+    minPublishBackoffMillis = builder.minPublishBackoff;
+    maxPublishBackoffMillis = builder.maxPublishBackoff;
+    waitingRetries = Sets.newSetFromMap(Maps.<PublishRetry, Boolean>newConcurrentMap());
+    maxConnectionsPerBroker = builder.maxConnectionsPerBroker;
+    idleConnectionTimeoutMillis = builder.idleConnectionTimeoutMillis;
+    connectTimeoutMillis = builder.connectTimeoutMillis;
+    sharedIOThreads = builder.sharedIOThreads;
+    ioWorkerThreads = builder.ioWorkerThreads;
+    tcpNoDelay = builder.tcpNoDelay;
+    sendBufferSize = builder.sendBufferSize;
+    receiveBufferSize = builder.receiveBufferSize;
+    fetchConfig = new FetchConfig(builder.lowWatermark, builder.highWatermark,
+                                  builder.minFetchBackoff, builder.maxFetchBackoff, TimeUnit.MILLISECONDS,
+                                  builder.verifyCRC, builder.resetToEarliest, ImmutableMap.copyOf(builder.codecs));
   }
 
   @Override
   protected void startUp() throws Exception {
     zkClientService.startAndWait();
     brokerCache.startAndWait();
-    ThreadFactory threadFactory = Threads.createDaemonThreadFactory("kafka-client-netty-%d");
-    ClientBootstrap bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(
-                                                      Executors.newSingleThreadExecutor(threadFactory),
-                                                      Executors.newFixedThreadPool(4, threadFactory)));
+    ClientBootstrap bootstrap = new ClientBootstrap(sharedIOThreads ? ChannelFactories.shared(ioWorkerThreads)
+                                                                     : ChannelFactories.exclusive(ioWorkerThreads));
     bootstrap.setPipelineFactory(new KafkaChannelPipelineFactory());
-    connectionPool = new ConnectionPool(bootstrap);
+    bootstrap.setOption("connectTimeoutMillis", connectTimeoutMillis);
+    bootstrap.setOption("tcpNoDelay", tcpNoDelay);
+    if (sendBufferSize > 0) {
+      bootstrap.setOption("sendBufferSize", sendBufferSize);
+    }
+    if (receiveBufferSize > 0) {
+      bootstrap.setOption("receiveBufferSize", receiveBufferSize);
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(
+                            Threads.createDaemonThreadFactory("kafka-client-scheduler"));
+    connectionPool = new ConnectionPool(bootstrap, scheduler, maxConnectionsPerBroker,
+                                        idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS, channelsPerBroker);
+    if (multiProduce) {
+      multiProducer = new MultiProducer(connectionPool, produceWriter);
+    }
+    callbackExecutor = Executors.newCachedThreadPool(Threads.createDaemonThreadFactory("kafka-consumer-%d"));
+    if (multiFetch) {
+      multiFetcher = new MultiFetcher(connectionPool, scheduler);
+    }
+    producerExecutor = Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("kafka-producer"));
+    producerExecutor.execute(new ProducerSender());
+
+    // Publishes waiting for retry are retried immediately when brokers change.
+    brokerChangeCancellable = brokerCache.addChangeListener(new Runnable() {
+      @Override
+      public void run() {
+        for (PublishRetry retry : waitingRetries) {
+          retry.run();
+        }
+      }
+    }, scheduler);
   }
 
   @Override
   protected void shutDown() throws Exception {
+    // Let the sender publish what's left in the accumulator.
+    accumulator.close();
+    producerExecutor.shutdown();
+    if (!producerExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+      producerExecutor.shutdownNow();
+    }
+    brokerChangeCancellable.cancel();
+    scheduler.shutdownNow();
+    for (PublishRetry retry : waitingRetries) {
+      retry.abort();
+    }
+    callbackExecutor.shutdownNow();
     connectionPool.close();
     brokerCache.stopAndWait();
     zkClientService.stopAndWait();
   }
 
   @Override
-  public PreparePublish preparePublish(final String topic, final Compression compression) {
+  public PreparePublish preparePublish(String topic, Compression compression) {
+    return preparePublish(topic, (CompressionCodec) compression);
+  }
+
+  @Override
+  public PreparePublish preparePublish(final String topic, final CompressionCodec compression) {
     final Map<Integer, MessageSetEncoder> encoders = Maps.newHashMap();
 
     return new PreparePublish() {
+      private int messageCount;
+      private int messageBytes;
+
       @Override
       public PreparePublish add(byte[] payload, Object partitionKey) {
         return add(ByteBuffer.wrap(payload), partitionKey);
@@ -102,9 +228,12 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
 
       @Override
       public PreparePublish add(ByteBuffer payload, Object partitionKey) {
-        // TODO: Partition
-        int partition = 0;
+        int partition = getPartition(topic, partitionKey);
+        messageCount++;
+        messageBytes += payload.remaining();
 
+        // One encoder per partition. Each partition is served by one broker, hence it's one encoder per
+        // (broker, partition). All of them are sent in parallel on publish.
         MessageSetEncoder encoder = encoders.get(partition);
         if (encoder == null) {
           encoder = getEncoder(compression);
@@ -117,114 +246,771 @@ public final class SimpleKafkaClient extends AbstractIdleService implements Kafk
 
       @Override
       public ListenableFuture<?> publish() {
+        // Memory is acquired for the whole batch on publish, so that a batch never waits for itself.
+        final int bytes = messageBytes;
+        boolean acquired;
+        try {
+          acquired = memoryBudget.acquire(bytes, messageCount);
+        } catch (BufferExhaustedException e) {
+          // Raised with the FAIL overflow policy. Messages of this publish are discarded as in DROP.
+          encoders.clear();
+          return Futures.immediateFailedFuture(e);
+        } catch (InterruptedException e) {
+          encoders.clear();
+          Thread.currentThread().interrupt();
+          throw Throwables.propagate(e);
+        } finally {
+          messageCount = 0;
+          messageBytes = 0;
+        }
+        if (!acquired) {
+          encoders.clear();
+          return Futures.immediateFailedFuture(
+            new BufferExhaustedException("Messages dropped. Producer memory of "
+                                           + memoryBudget.getMaxBufferedBytes() + " bytes exhausted."));
+        }
+
         List<ListenableFuture<?>> futures = Lists.newArrayListWithCapacity(encoders.size());
         for (Map.Entry<Integer, MessageSetEncoder> entry : encoders.entrySet()) {
-          futures.add(doPublish(topic, entry.getKey(), entry.getValue().finish()));
+          int partition = entry.getKey();
+          try {
+            futures.add(publishMessageSet(topic, partition, entry.getValue().finish()));
+          } catch (Throwable t) {
+            futures.add(Futures.immediateFailedFuture(t));
+          }
         }
         encoders.clear();
+        if (multiProducer != null) {
+          multiProducer.send();
+        }
+
+        // Release the memory when all message sets are completed, whether they succeeded or not.
+        Futures.successfulAsList(futures).addListener(new Runnable() {
+          @Override
+          public void run() {
+            memoryBudget.release(bytes);
+          }
+        }, MoreExecutors.sameThreadExecutor());
+
         return Futures.allAsList(futures);
       }
 
-      private ListenableFuture<?> doPublish(String topic, int partition, ChannelBuffer messageSet) {
-        final KafkaRequest request = KafkaRequest.createProduce(topic, partition, messageSet);
-        final SettableFuture<?> result = SettableFuture.create();
-        final ConnectionPool.ConnectResult connection =
-              connectionPool.connect(getTopicBroker(topic, partition).getAddress());
+    };
+  }
 
-        connection.getChannelFuture().addListener(new ChannelFutureListener() {
-          @Override
-          public void operationComplete(ChannelFuture future) throws Exception {
-            try {
-              future.getChannel().write(request).addListener(getPublishChannelFutureListener(result, null, connection));
-            } catch (Exception e) {
-              result.setException(e);
-            }
-          }
-        });
+  @Override
+  public Publisher getPublisher(final String topic, final CompressionCodec compression) {
+    return new Publisher() {
+      @Override
+      public ListenableFuture<Void> send(byte[] payload, Object partitionKey) {
+        return send(ByteBuffer.wrap(payload), partitionKey);
+      }
 
-        return result;
+      @Override
+      public ListenableFuture<Void> send(ByteBuffer payload, Object partitionKey) {
+        return accumulator.append(topic, getPartition(topic, partitionKey),
+                                  compression, ChannelBuffers.wrappedBuffer(payload));
       }
     };
   }
 
   @Override
-  public Iterator<FetchedMessage> consume(final String topic, final int partition, long offset, int maxSize) {
+  public ProducerMetrics getProducerMetrics() {
+    return new ProducerMetrics() {
+      @Override
+      public long getBufferedBytes() {
+        return memoryBudget.getBufferedBytes();
+      }
+
+      @Override
+      public long getMaxBufferedBytes() {
+        return memoryBudget.getMaxBufferedBytes();
+      }
+
+      @Override
+      public long getDroppedMessages() {
+        return memoryBudget.getDroppedMessages();
+      }
+
+      @Override
+      public long getPublishCount() {
+        return publishLatency.getCount();
+      }
+
+      @Override
+      public long getPublishLatencyMean(TimeUnit unit) {
+        return publishLatency.getMean(unit);
+      }
+
+      @Override
+      public long getPublishLatency(double percentile, TimeUnit unit) {
+        return publishLatency.getPercentile(percentile, unit);
+      }
+    };
+  }
+
+  @Override
+  public ListenableFuture<long[]> getOffsets(String topic, final int partition, final long time,
+                                             final int maxOffsets) {
+    Preconditions.checkArgument(maxOffsets > 0, "Max offsets must be positive.");
+    return Futures.transform(brokerCache.getTopicBroker(topic, partition), new AsyncFunction<TopicBroker, long[]>() {
+      @Override
+      public ListenableFuture<long[]> apply(TopicBroker topicBroker) {
+        return getOffsets(topicBroker, time, maxOffsets);
+      }
+    });
+  }
+
+  @Override
+  public Iterator<FetchedMessage> consume(String topic, int partition, long offset, int maxSize) {
+    BlockingMessageIterator iterator = new BlockingMessageIterator();
+    iterator.setCancellable(consume(topic, partition, offset, maxSize, iterator));
+    return iterator;
+  }
+
+  @Override
+  public Cancellable consume(String topic, int partition, long offset, int maxSize, MessageCallback callback) {
     Preconditions.checkArgument(maxSize >= 10, "Message size cannot be smaller than 10.");
 
-    // Connect to broker. Consumer connection are long connection. No need to worry about reuse.
-    final AtomicReference<ChannelFuture> channelFutureRef = new AtomicReference<ChannelFuture>(
-          connectionPool.connect(getTopicBroker(topic, partition).getAddress()).getChannelFuture());
+    MessageFetcher fetcher = new MessageFetcher(topic, partition, offset, maxSize,
+                                                createFetchSender(topic, partition), scheduler,
+                                                callbackExecutor, callback, fetchConfig);
+    fetcher.start();
+    return fetcher;
+  }
 
-    return new MessageFetcher(topic, partition, offset, maxSize, new KafkaRequestSender() {
+  private KafkaRequestSender createFetchSender(final String topic, final int partition) {
+    final PartitionFetchSender partitionSender = new PartitionFetchSender(topic, partition, brokerCache,
+                                                                          connectionPool, scheduler, fetchConfig);
+    if (!multiFetch) {
+      return partitionSender;
+    }
 
+    // Resolve the broker on every send, which is a cached lookup once the broker is known.
+    // Requests other than FETCH can't be part of MULTI_FETCH, hence are sent on the partition connection.
+    return new KafkaRequestSender() {
       @Override
       public void send(final KafkaRequest request) {
-        try {
-          // Try to send the request
-          Channel channel = channelFutureRef.get().getChannel();
-          if (!channel.write(request).await().isSuccess()) {
-            // If failed, retry
-            channel.close();
-            ChannelFuture channelFuture = connectionPool.connect(
-                                              getTopicBroker(topic, partition).getAddress()).getChannelFuture();
-            channelFutureRef.set(channelFuture);
-            channelFuture.addListener(new ChannelFutureListener() {
-              @Override
-              public void operationComplete(ChannelFuture channelFuture) throws Exception {
-                send(request);
-              }
-            });
+        TopicBroker topicBroker = brokerCache.lookup(topic, partition);
+        if (topicBroker == null || request.getType() != KafkaRequest.Type.FETCH) {
+          partitionSender.send(request);
+          return;
+        }
+        if (!partitionSender.failIfMoved(request, topicBroker)) {
+          multiFetcher.getSender(topicBroker.getAddress()).send(request.forPartition(topicBroker.getPartition()));
+        }
+      }
+
+      @Override
+      public void close() {
+        partitionSender.close();
+      }
+    };
+  }
+
+  private int getPartition(String topic, Object partitionKey) {
+    int partitionSize = brokerCache.getPartitionSize(topic);
+    int partition = partitioner.getPartition(partitionKey, partitionSize);
+    Preconditions.checkState(partition >= 0 && partition < partitionSize,
+                             "Partition %s out of range [0, %s) for topic %s", partition, partitionSize, topic);
+    return partition;
+  }
+
+  /**
+   * Publishes an encoded message set, retrying on failure. When MULTI_PRODUCE is enabled, the first attempt is
+   * only enqueued and {@link MultiProducer#send()} needs to be called.
+   */
+  private ListenableFuture<Object> publishMessageSet(String topic, int partition, ChannelBuffer messageSet) {
+    PublishRetry publish = new PublishRetry(topic, partition, messageSet);
+    publish.attempt();
+    return publish.result;
+  }
+
+  /**
+   * Publishes an encoded message set once. If the broker of the partition is not known yet, the message set
+   * is published when the broker becomes known.
+   */
+  private ListenableFuture<Object> publishMessageSetOnce(final String topic, final int partition,
+                                                         final ChannelBuffer messageSet) {
+    TopicBroker topicBroker = brokerCache.lookup(topic, partition);
+    if (topicBroker != null) {
+      return publishMessageSet(topicBroker, messageSet);
+    }
+    return Futures.transform(brokerCache.getTopicBroker(topic, partition),
+                             new AsyncFunction<TopicBroker, Object>() {
+      @Override
+      public ListenableFuture<Object> apply(TopicBroker topicBroker) {
+        ListenableFuture<Object> result = publishMessageSet(topicBroker, messageSet);
+        if (multiProducer != null) {
+          multiProducer.send();
+        }
+        return result;
+      }
+    });
+  }
+
+  private ListenableFuture<Object> publishMessageSet(TopicBroker topicBroker, ChannelBuffer messageSet) {
+    final String topic = topicBroker.getTopic();
+    final int partition = topicBroker.getPartition();
+    if (multiProducer != null) {
+      return multiProducer.enqueue(topicBroker.getAddress(), topic, partition, messageSet);
+    }
+
+    final long startNanos = System.nanoTime();
+    final KafkaRequest request = KafkaRequest.createProduce(topic, partition, messageSet);
+    final SettableFuture<Object> result = SettableFuture.create();
+    final ConnectionPool.ConnectResult connection = connectionPool.connect(topicBroker.getAddress());
+
+    connection.getChannelFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          result.setException(future.getCause());
+          return;
+        }
+        Futures.addCallback(produceWriter.write(future.getChannel(), request, topic, partition, startNanos),
+                            new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void value) {
+            connection.release();
+            result.set(null);
           }
-        } catch (InterruptedException e) {
-          // Ignore it
-          LOG.info("Interrupted when sending consume request", e);
+
+          @Override
+          public void onFailure(Throwable t) {
+            connection.release();
+            result.setException(t);
+          }
+        });
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Encodes and publishes a batch collected by the {@link ProducerAccumulator}.
+   */
+  private void publishBatch(final ProducerAccumulator.Batch batch) {
+    try {
+      MessageSetEncoder encoder = getEncoder(batch.getCodec());
+      for (ChannelBuffer payload : batch.getPayloads()) {
+        encoder.add(payload);
+      }
+      Futures.addCallback(publishMessageSet(batch.getTopic(), batch.getPartition(), encoder.finish()),
+                          new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object result) {
+          batch.completed(null);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          batch.completed(t);
+        }
+      });
+    } catch (Throwable t) {
+      batch.completed(t);
+    }
+  }
+
+  private ListenableFuture<long[]> getOffsets(TopicBroker topicBroker, long time, int maxOffsets) {
+    final SettableFuture<long[]> result = SettableFuture.create();
+    final ConnectionPool.ConnectResult connection = connectionPool.connect(topicBroker.getAddress());
+    final KafkaRequest request = KafkaRequest.createOffsets(topicBroker.getTopic(), topicBroker.getPartition(),
+                                                            time, maxOffsets,
+                                                            new ResponseHandler() {
+      @Override
+      public void received(KafkaResponse response) {
+        connection.release();
+        if (response.getErrorCode() == KafkaResponse.ErrorCode.OK) {
+          result.set(response.getOffsets());
+        } else {
+          result.setException(new IllegalStateException("Failed to get offsets: " + response.getErrorCode()));
+        }
+      }
+
+      @Override
+      public void failed(Throwable cause) {
+        connection.release();
+        result.setException(cause);
+      }
+    });
+
+    connection.getChannelFuture().addListener(new ChannelFutureListener() {
+      @Override
+      public void operationComplete(ChannelFuture future) throws Exception {
+        if (!future.isSuccess()) {
+          result.setException(future.getCause());
+          return;
         }
+        // Fails the result if the channel is closed before the response arrives.
+        final ChannelFuture closeFuture = future.getChannel().getCloseFuture();
+        final ChannelFutureListener closeListener = new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception {
+            result.setException(new ClosedChannelException());
+          }
+        };
+        closeFuture.addListener(closeListener);
+        result.addListener(new Runnable() {
+          @Override
+          public void run() {
+            closeFuture.removeListener(closeListener);
+          }
+        }, MoreExecutors.sameThreadExecutor());
+
+        future.getChannel().write(request).addListener(new ChannelFutureListener() {
+          @Override
+          public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+              future.getChannel().close();
+              result.setException(future.getCause());
+            }
+          }
+        });
       }
     });
+    return result;
   }
 
-  private TopicBroker getTopicBroker(String topic, int partition) {
-    TopicBroker topicBroker = brokerCache.getBrokerAddress(topic, partition);
-    while (topicBroker == null) {
+  /**
+   * Publish of a message set that is retried with backoff on failure. While waiting for retry, it is in
+   * {@link #waitingRetries}, and it is retried right away if brokers change. Whoever removes it from there runs
+   * the retry.
+   */
+  private final class PublishRetry implements Runnable {
+
+    private final String topic;
+    private final int partition;
+    private final ChannelBuffer messageSet;
+    private final SettableFuture<Object> result;
+    private int retries;
+    private long backoffMillis;
+
+    PublishRetry(String topic, int partition, ChannelBuffer messageSet) {
+      this.topic = topic;
+      this.partition = partition;
+      this.messageSet = messageSet;
+      this.result = SettableFuture.create();
+    }
+
+    @Override
+    public void run() {
+      if (waitingRetries.remove(this)) {
+        attempt();
+        if (multiProducer != null) {
+          multiProducer.send();
+        }
+      }
+    }
+
+    void abort() {
+      if (waitingRetries.remove(this)) {
+        result.setException(new IllegalStateException("Client stopped before publish to " + topic + ", "
+                                                        + partition + " succeeded."));
+      }
+    }
+
+    void attempt() {
+      ListenableFuture<Object> future;
       try {
-        TimeUnit.MILLISECONDS.sleep(BROKER_POLL_INTERVAL);
-      } catch (InterruptedException e) {
-        return null;
+        future = publishMessageSetOnce(topic, partition, messageSet.duplicate());
+      } catch (Throwable t) {
+        future = Futures.immediateFailedFuture(t);
+      }
+      Futures.addCallback(future, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object value) {
+          result.set(value);
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          retry(t);
+        }
+      });
+    }
+
+    private void retry(Throwable cause) {
+      if (retries++ >= maxPublishRetries || !isRunning()) {
+        result.setException(cause);
+        return;
+      }
+      backoffMillis = backoffMillis <= 0 ? minPublishBackoffMillis
+                                         : Math.min(backoffMillis * 2, maxPublishBackoffMillis);
+      LOG.warn("Failed to publish to " + topic + ", " + partition + ". Retry in " + backoffMillis + " ms.", cause);
+      waitingRetries.add(this);
+      try {
+        scheduler.schedule(this, backoffMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        abort();
       }
-      topicBroker = brokerCache.getBrokerAddress(topic, partition);
     }
-    return topicBroker;
   }
 
-  private MessageSetEncoder getEncoder(Compression compression) {
-    switch (compression) {
-      case GZIP:
-        return new GZipMessageSetEncoder();
-      case SNAPPY:
-        return new SnappyMessageSetEncoder();
-      default:
-        return new IdentityMessageSetEncoder();
+  private MessageSetEncoder getEncoder(CompressionCodec codec) {
+    if (codec.getCode() == Compression.NONE.getCode()) {
+      return new IdentityMessageSetEncoder();
     }
+    CompressionStats stats = compressionStats.get(codec);
+    if (stats == null) {
+      stats = new CompressionStats();
+      CompressionStats oldStats = compressionStats.putIfAbsent(codec, stats);
+      stats = oldStats == null ? stats : oldStats;
+    }
+    return new CompressedMessageSetEncoder(codec, stats);
   }
 
-  private <V> ChannelFutureListener getPublishChannelFutureListener(final SettableFuture<V> result, final V resultObj,
-                                                                    final ConnectionPool.ConnectionReleaser releaser) {
-    return new ChannelFutureListener() {
-      @Override
-      public void operationComplete(ChannelFuture future) throws Exception {
-        try {
-          if (future.isSuccess()) {
-            result.set(resultObj);
-          } else if (future.isCancelled()) {
-            result.cancel(true);
-          } else {
-            result.setException(future.getCause());
+  /**
+   * Builder for creating {@link SimpleKafkaClient} with custom settings.
+   */
+  public static final class Builder {
+
+    private final String zkConnectStr;
+    private Partitioner partitioner = new HashPartitioner();
+    private boolean multiProduce;
+    private boolean multiFetch;
+    private int lowWatermark = 2;
+    private int highWatermark = 4;
+    private long minFetchBackoff = 100;
+    private long maxFetchBackoff = 1000;
+    private boolean verifyCRC;
+    private long lingerMillis = 10;
+    private int maxBatchBytes = 256 * 1024;
+    private long bufferMemory = 32 * 1024 * 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private boolean acknowledgedPublish;
+    private int channelsPerBroker;
+    private int maxPublishRetries = 3;
+    private long minPublishBackoff = 100;
+    private long maxPublishBackoff = 1000;
+    private boolean resetToEarliest = true;
+    private int maxConnectionsPerBroker;
+    private long idleConnectionTimeoutMillis = TimeUnit.MINUTES.toMillis(5);
+    private long connectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+    private boolean sharedIOThreads = true;
+    private int ioWorkerThreads = 4;
+    private boolean tcpNoDelay = true;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private final Map<Integer, CompressionCodec> codecs = Maps.newHashMap();
+
+    /**
+     * Creates a {@link Builder} with the given ZooKeeper connection string.
+     * @param zkConnectStr ZooKeeper connection string for discovering Kafka brokers.
+     * @return A new instance of Builder.
+     */
+    public static Builder of(String zkConnectStr) {
+      return new Builder(zkConnectStr);
+    }
+
+    /**
+     * Sets the {@link Partitioner} for deciding which partition a published message goes to.
+     * By default the partition is computed from the hash code of the partition key.
+     * @param partitioner The partitioner to use.
+     * @return This builder.
+     */
+    public Builder setPartitioner(Partitioner partitioner) {
+      this.partitioner = Preconditions.checkNotNull(partitioner);
+      return this;
+    }
+
+    /**
+     * Sets whether to group message sets going to the same broker into one MULTI_PRODUCE request, across
+     * partitions and topics. When enabled, message sets published while a request to the same broker is
+     * being written are batched into the next request. By default it is disabled.
+     * @param multiProduce {@code true} to enable MULTI_PRODUCE batching.
+     * @return This builder.
+     */
+    public Builder setMultiProduce(boolean multiProduce) {
+      this.multiProduce = multiProduce;
+      return this;
+    }
+
+    /**
+     * Sets whether consumers should share one connection per broker and poll all their partitions with
+     * MULTI_FETCH requests. By default it is disabled, and each consumer has its own connection.
+     * @param multiFetch {@code true} to enable MULTI_FETCH polling.
+     * @return This builder.
+     */
+    public Builder setMultiFetch(boolean multiFetch) {
+      this.multiFetch = multiFetch;
+      return this;
+    }
+
+    /**
+     * Sets the prefetch watermarks in number of fetched message batches per consumer that are not yet processed
+     * by the consumer callback. Fetching of a partition pauses when the high watermark is reached, and resumes
+     * when it drops to the low watermark. Default is 2 and 4.
+     * @param lowWatermark Low watermark, must be smaller than the high watermark.
+     * @param highWatermark High watermark, must be at least 1.
+     * @return This builder.
+     */
+    public Builder setPrefetchWatermarks(int lowWatermark, int highWatermark) {
+      Preconditions.checkArgument(highWatermark > 0, "High watermark must be at least 1.");
+      Preconditions.checkArgument(lowWatermark >= 0 && lowWatermark < highWatermark,
+                                  "Low watermark must be in [0, highWatermark).");
+      this.lowWatermark = lowWatermark;
+      this.highWatermark = highWatermark;
+      return this;
+    }
+
+    /**
+     * Sets the backoff when fetches return no message. The delay starts from the min backoff and doubles on
+     * each consecutive empty fetch, up to the max backoff. Default is 100 ms to 1 second.
+     * @param minBackoff Delay after the first empty fetch.
+     * @param maxBackoff Cap of the delay.
+     * @param unit {@link TimeUnit} of the delays.
+     * @return This builder.
+     */
+    public Builder setFetchBackoff(long minBackoff, long maxBackoff, TimeUnit unit) {
+      Preconditions.checkArgument(minBackoff > 0 && minBackoff <= maxBackoff, "Backoff must be in (0, maxBackoff].");
+      this.minFetchBackoff = unit.toMillis(minBackoff);
+      this.maxFetchBackoff = unit.toMillis(maxBackoff);
+      return this;
+    }
+
+    /**
+     * Sets whether to verify the CRC of every fetched message. A message that fails verification terminates
+     * the consumer with a {@link com.continuuity.kafka.client.CorruptedMessageException}. By default it is
+     * disabled.
+     * @param verifyCRC {@code true} to verify CRC.
+     * @return This builder.
+     */
+    public Builder setVerifyCRC(boolean verifyCRC) {
+      this.verifyCRC = verifyCRC;
+      return this;
+    }
+
+    /**
+     * Sets how long messages sent through a {@link Publisher} wait for more messages to the same partition
+     * before the batch is published. Default is 10 milliseconds.
+     * @param linger Linger time.
+     * @param unit {@link TimeUnit} of linger time.
+     * @return This builder.
+     */
+    public Builder setLinger(long linger, TimeUnit unit) {
+      Preconditions.checkArgument(linger >= 0, "Linger time cannot be negative.");
+      this.lingerMillis = unit.toMillis(linger);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of uncompressed payload bytes in a batch of a {@link Publisher}. A batch is
+     * published as soon as it is full, regardless of the linger time. Default is 256KB.
+     * @param maxBatchBytes Maximum batch size in bytes.
+     * @return This builder.
+     */
+    public Builder setMaxBatchBytes(int maxBatchBytes) {
+      Preconditions.checkArgument(maxBatchBytes > 0, "Max batch bytes must be positive.");
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /**
+     * Sets the memory budget for payload bytes that are buffered or being published, shared by all
+     * {@link Publisher} and {@link PreparePublish} of the client. Messages sent through a {@link Publisher}
+     * are accounted when sent, while a {@link PreparePublish} is accounted as a whole when published.
+     * Default is 32MB with {@link OverflowPolicy#BLOCK}.
+     * @param bufferMemory Maximum number of buffered bytes.
+     * @param overflowPolicy What to do with a message that would exceed the budget.
+     * @return This builder.
+     */
+    public Builder setBufferMemory(long bufferMemory, OverflowPolicy overflowPolicy) {
+      Preconditions.checkArgument(bufferMemory > 0, "Buffer memory must be positive.");
+      this.bufferMemory = bufferMemory;
+      this.overflowPolicy = Preconditions.checkNotNull(overflowPolicy);
+      return this;
+    }
+
+    /**
+     * Sets whether publish futures are completed only after the broker has appended the messages. Kafka doesn't
+     * respond to produce requests, hence each produce request is followed by an OFFSETS request on the same
+     * connection, and the publish is completed when the OFFSETS response arrives. By default it is disabled,
+     * and publish is completed when the request is written to the socket.
+     * @param acknowledgedPublish {@code true} to enable acknowledged publish.
+     * @return This builder.
+     */
+    public Builder setAcknowledgedPublish(boolean acknowledgedPublish) {
+      this.acknowledgedPublish = acknowledgedPublish;
+      return this;
+    }
+
+    /**
+     * Sets the number of connections shared by all requests to the same broker. Requests are pipelined on the
+     * shared connections and responses are matched to requests in the order they were sent. By default it is
+     * {@code 0}, meaning each request takes a connection exclusively until its response is received.
+     * @param channelsPerBroker Number of shared connections per broker, or {@code 0} for exclusive connections.
+     * @return This builder.
+     */
+    public Builder setChannelsPerBroker(int channelsPerBroker) {
+      Preconditions.checkArgument(channelsPerBroker >= 0, "Channels per broker must not be negative.");
+      this.channelsPerBroker = channelsPerBroker;
+      return this;
+    }
+
+    /**
+     * Sets how failed publishes are retried. Each retry looks up the broker of the partition again, so that
+     * publish continues on another broker when a broker goes away. The delay before a retry starts from the min
+     * backoff and doubles on each retry, up to the max backoff; publishes waiting for retry are retried right
+     * away when brokers change. Default is 3 retries with 100 ms to 1 second backoff.
+     * @param maxRetries Maximum number of retries, {@code 0} to not retry.
+     * @param minBackoff Delay before the first retry.
+     * @param maxBackoff Cap of the delay.
+     * @param unit {@link TimeUnit} of the delays.
+     * @return This builder.
+     */
+    public Builder setPublishRetry(int maxRetries, long minBackoff, long maxBackoff, TimeUnit unit) {
+      Preconditions.checkArgument(maxRetries >= 0, "Max retries must not be negative.");
+      Preconditions.checkArgument(minBackoff > 0 && minBackoff <= maxBackoff, "Backoff must be in (0, maxBackoff].");
+      this.maxPublishRetries = maxRetries;
+      this.minPublishBackoff = unit.toMillis(minBackoff);
+      this.maxPublishBackoff = unit.toMillis(maxBackoff);
+      return this;
+    }
+
+    /**
+     * Sets where consumers continue when the fetch offset is out of range, e.g. because the log segments were
+     * deleted by retention. By default it continues from the earliest offset.
+     * @param resetToEarliest {@code true} to continue from the earliest offset, {@code false} from the latest.
+     * @return This builder.
+     */
+    public Builder setResetOffsetToEarliest(boolean resetToEarliest) {
+      this.resetToEarliest = resetToEarliest;
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of connections to the same broker when connections are not shared through
+     * {@link #setChannelsPerBroker(int)}. When the limit is reached, requests share the least used connection
+     * instead of opening a new one. By default there is no limit.
+     * @param maxConnectionsPerBroker Maximum number of connections per broker, or {@code 0} for no limit.
+     * @return This builder.
+     */
+    public Builder setMaxConnectionsPerBroker(int maxConnectionsPerBroker) {
+      Preconditions.checkArgument(maxConnectionsPerBroker >= 0, "Max connections per broker must not be negative.");
+      this.maxConnectionsPerBroker = maxConnectionsPerBroker;
+      return this;
+    }
+
+    /**
+     * Sets how long an unused connection is kept open before it is closed. By default it is 5 minutes.
+     * @param timeout The timeout, or {@code 0} to never close unused connections.
+     * @param unit Unit of the timeout.
+     * @return This builder.
+     */
+    public Builder setIdleConnectionTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout >= 0, "Idle connection timeout must not be negative.");
+      this.idleConnectionTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the timeout for connecting to a broker. By default it is 10 seconds.
+     * @param timeout The timeout.
+     * @param unit Unit of the timeout.
+     * @return This builder.
+     */
+    public Builder setConnectTimeout(long timeout, TimeUnit unit) {
+      Preconditions.checkArgument(timeout > 0, "Connect timeout must be positive.");
+      this.connectTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /**
+     * Sets the Netty I/O threads used by the client. Shared I/O threads are used by all clients in the same JVM
+     * with the same number of worker threads and are stopped when the last of those clients stops. By default,
+     * I/O threads are shared with 4 worker threads.
+     * @param shared {@code true} to share I/O threads with other clients, {@code false} to create new ones.
+     * @param workerThreads Number of I/O worker threads.
+     * @return This builder.
+     */
+    public Builder setIOThreads(boolean shared, int workerThreads) {
+      Preconditions.checkArgument(workerThreads > 0, "Number of worker threads must be positive.");
+      this.sharedIOThreads = shared;
+      this.ioWorkerThreads = workerThreads;
+      return this;
+    }
+
+    /**
+     * Sets the {@code TCP_NODELAY} option of broker connections. By default it is enabled.
+     * @param tcpNoDelay {@code true} to disable Nagle's algorithm.
+     * @return This builder.
+     */
+    public Builder setTcpNoDelay(boolean tcpNoDelay) {
+      this.tcpNoDelay = tcpNoDelay;
+      return this;
+    }
+
+    /**
+     * Sets the socket send and receive buffer sizes of broker connections. By default the system defaults
+     * are used.
+     * @param sendBufferSize Size of the send buffer in bytes, or {@code 0} for the system default.
+     * @param receiveBufferSize Size of the receive buffer in bytes, or {@code 0} for the system default.
+     * @return This builder.
+     */
+    public Builder setSocketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+      Preconditions.checkArgument(sendBufferSize >= 0 && receiveBufferSize >= 0,
+                                  "Socket buffer sizes must not be negative.");
+      this.sendBufferSize = sendBufferSize;
+      this.receiveBufferSize = receiveBufferSize;
+      return this;
+    }
+
+    /**
+     * Registers a {@link CompressionCodec} for decompressing fetched messages. Codecs in {@link Compression} and
+     * {@link CompressionCodecs} are always registered. A codec with the same code as a registered one
+     * replaces it.
+     * @param codec The codec to register.
+     * @return This builder.
+     */
+    public Builder addCompressionCodec(CompressionCodec codec) {
+      Preconditions.checkArgument(codec.getCode() > 0 && codec.getCode() <= Byte.MAX_VALUE,
+                                  "Compression code must be in [1, 127].");
+      codecs.put(codec.getCode(), codec);
+      return this;
+    }
+
+    /**
+     * Creates an instance of {@link SimpleKafkaClient} with the settings of this builder.
+     * @return A new instance of {@link SimpleKafkaClient}.
+     */
+    public SimpleKafkaClient build() {
+      return new SimpleKafkaClient(this);
+    }
+
+    private Builder(String zkConnectStr) {
+      this.zkConnectStr = zkConnectStr;
+      for (Compression compression : Compression.values()) {
+        codecs.put(compression.getCode(), compression);
+      }
+      codecs.put(CompressionCodecs.SNAPPY_BLOCK_CODE, CompressionCodecs.snappyBlock());
+    }
+  }
+
+  /**
+   * Sends batches from the {@link ProducerAccumulator} until it is closed and drained.
+   */
+  private final class ProducerSender implements Runnable {
+
+    @Override
+    public void run() {
+      try {
+        List<ProducerAccumulator.Batch> batches = accumulator.drain();
+        while (!batches.isEmpty()) {
+          for (ProducerAccumulator.Batch batch : batches) {
+            publishBatch(batch);
           }
-        } finally {
-          releaser.release();
+          if (multiProducer != null) {
+            multiProducer.send();
+          }
+          batches = accumulator.drain();
         }
+      } catch (InterruptedException e) {
+        LOG.info("Producer sender interrupted.");
       }
-    };
+    }
   }
 
   private static final class KafkaChannelPipelineFactory implements ChannelPipelineFactory {
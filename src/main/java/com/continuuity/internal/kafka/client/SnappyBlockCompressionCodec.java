@@ -0,0 +1,55 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+
+/**
+ * {@link CompressionCodec} that compresses a message set as one raw Snappy block, without the stream framing
+ * of {@link SnappyCompressionCodec}. It takes a single native call per batch in each direction, but messages
+ * compressed with it can only be read by this client.
+ */
+final class SnappyBlockCompressionCodec implements CompressionCodec {
+
+  @Override
+  public int getCode() {
+    return CompressionCodecs.SNAPPY_BLOCK_CODE;
+  }
+
+  @Override
+  public void compress(ChannelBuffer input, ChannelBuffer output) throws IOException {
+    int len = input.readableBytes();
+    output.ensureWritableBytes(Snappy.maxCompressedLength(len));
+    int writerIdx = output.writerIndex();
+    int size = Snappy.compress(input.array(), input.arrayOffset() + input.readerIndex(), len,
+                               output.array(), output.arrayOffset() + writerIdx);
+    output.writerIndex(writerIdx + size);
+  }
+
+  @Override
+  public ChannelBuffer decompress(ChannelBuffer input) throws IOException {
+    return new MessageSetDecompressor().snappyBlockUncompress(input);
+  }
+
+  @Override
+  public String toString() {
+    return "snappy-block";
+  }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.xerial.snappy.Snappy;
+import org.xerial.snappy.SnappyCodec;
+
+import java.io.IOException;
+
+/**
+ * {@link CompressionCodec} in the format of {@link org.xerial.snappy.SnappyOutputStream}, as used by Kafka.
+ * Blocks are compressed directly into the output buffer.
+ */
+final class SnappyCompressionCodec implements CompressionCodec {
+
+  // Same as the block size used by SnappyOutputStream
+  private static final int BLOCK_SIZE = 32 * 1024;
+
+  @Override
+  public int getCode() {
+    return Compression.SNAPPY.getCode();
+  }
+
+  @Override
+  public void compress(ChannelBuffer input, ChannelBuffer output) throws IOException {
+    output.writeBytes(SnappyCodec.MAGIC_HEADER);
+    output.writeInt(SnappyCodec.DEFAULT_VERSION);
+    output.writeInt(SnappyCodec.MINIMUM_COMPATIBLE_VERSION);
+
+    byte[] in = input.array();
+    int off = input.arrayOffset() + input.readerIndex();
+    int end = off + input.readableBytes();
+    while (off < end) {
+      // Each block is [LENGTH][SNAPPY_BLOCK]
+      int len = Math.min(BLOCK_SIZE, end - off);
+      output.ensureWritableBytes(4 + Snappy.maxCompressedLength(len));
+      int writerIdx = output.writerIndex();
+      int size = Snappy.compress(in, off, len, output.array(), output.arrayOffset() + writerIdx + 4);
+      output.setInt(writerIdx, size);
+      output.writerIndex(writerIdx + 4 + size);
+      off += len;
+    }
+  }
+
+  @Override
+  public ChannelBuffer decompress(ChannelBuffer input) throws IOException {
+    return new MessageSetDecompressor().snappyUncompress(input);
+  }
+
+  @Override
+  public String toString() {
+    return "snappy";
+  }
+}
@@ -15,20 +15,29 @@
  */
 package com.continuuity.internal.kafka.client;
 
+import com.google.common.base.Objects;
+
 import java.net.InetSocketAddress;
 
 /**
- *
+ * The broker that serves a topic partition, together with the partition number local to that broker, which is
+ * the one to use in requests sent to it.
  */
 final class TopicBroker {
 
   private final String topic;
   private final InetSocketAddress address;
+  private final int partition;
   private final int partitionSize;
 
-  TopicBroker(String topic, InetSocketAddress address, int partitionSize) {
+  /**
+   * @param partition Partition number local to the broker.
+   * @param partitionSize Number of partitions of the topic across all brokers.
+   */
+  TopicBroker(String topic, InetSocketAddress address, int partition, int partitionSize) {
     this.topic = topic;
     this.address = address;
+    this.partition = partition;
     this.partitionSize = partitionSize;
   }
 
@@ -40,7 +49,32 @@ final class TopicBroker {
     return address;
   }
 
+  /**
+   * @return The partition number local to the broker.
+   */
+  int getPartition() {
+    return partition;
+  }
+
   int getPartitionSize() {
     return partitionSize;
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    TopicBroker other = (TopicBroker) o;
+    return topic.equals(other.topic) && address.equals(other.address)
+      && partition == other.partition && partitionSize == other.partitionSize;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hashCode(topic, address, partition, partitionSize);
+  }
 }
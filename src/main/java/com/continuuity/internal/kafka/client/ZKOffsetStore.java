@@ -0,0 +1,198 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.OffsetStore;
+import com.continuuity.zookeeper.NodeData;
+import com.continuuity.zookeeper.ZKClient;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An {@link OffsetStore} that keeps offsets in ZooKeeper, one node per topic partition under a base path.
+ * At most one write per partition is in progress at a time; offsets committed during a write are written
+ * together afterwards.
+ */
+public final class ZKOffsetStore implements OffsetStore {
+
+  private final ZKClient zkClient;
+  private final String basePath;
+  private final ConcurrentMap<String, PartitionCommitter> committers;
+
+  /**
+   * Creates an offset store.
+   *
+   * @param zkClient Client for accessing ZooKeeper.
+   * @param basePath Base path for storing offsets.
+   */
+  public ZKOffsetStore(ZKClient zkClient, String basePath) {
+    this.zkClient = zkClient;
+    this.basePath = basePath;
+    this.committers = Maps.newConcurrentMap();
+  }
+
+  @Override
+  public ListenableFuture<Long> getOffset(String topic, int partition) {
+    final SettableFuture<Long> result = SettableFuture.create();
+    Futures.addCallback(zkClient.getData(getPath(topic, partition)), new FutureCallback<NodeData>() {
+      @Override
+      public void onSuccess(NodeData nodeData) {
+        try {
+          result.set(Long.parseLong(new String(nodeData.getData(), Charsets.UTF_8)));
+        } catch (NumberFormatException e) {
+          result.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (isCode(t, KeeperException.Code.NONODE)) {
+          result.set(-1L);
+        } else {
+          result.setException(t);
+        }
+      }
+    });
+    return result;
+  }
+
+  @Override
+  public ListenableFuture<Long> commit(String topic, int partition, long offset) {
+    String path = getPath(topic, partition);
+    PartitionCommitter committer = committers.get(path);
+    if (committer == null) {
+      committer = new PartitionCommitter(path);
+      PartitionCommitter existing = committers.putIfAbsent(path, committer);
+      committer = existing == null ? committer : existing;
+    }
+    return committer.commit(offset);
+  }
+
+  private String getPath(String topic, int partition) {
+    return basePath + "/" + topic + "/" + partition;
+  }
+
+  private static boolean isCode(Throwable t, KeeperException.Code code) {
+    return t instanceof KeeperException && ((KeeperException) t).code() == code;
+  }
+
+  /**
+   * Writes the data to the given path, creating the node if it doesn't exist.
+   */
+  private void write(final String path, final byte[] data, final SettableFuture<Object> result) {
+    Futures.addCallback(zkClient.setData(path, data), new FutureCallback<Object>() {
+      @Override
+      public void onSuccess(Object value) {
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(Throwable t) {
+        if (!isCode(t, KeeperException.Code.NONODE)) {
+          result.setException(t);
+          return;
+        }
+        Futures.addCallback(zkClient.create(path, data, CreateMode.PERSISTENT, true), new FutureCallback<Object>() {
+          @Override
+          public void onSuccess(Object value) {
+            result.set(value);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            if (isCode(t, KeeperException.Code.NODEEXISTS)) {
+              // Created concurrently, set the data again.
+              write(path, data, result);
+            } else {
+              result.setException(t);
+            }
+          }
+        });
+      }
+    });
+  }
+
+  private final class PartitionCommitter {
+
+    private final String path;
+    private final List<SettableFuture<Long>> pendingFutures;
+    private long pendingOffset;
+    private boolean writing;
+
+    PartitionCommitter(String path) {
+      this.path = path;
+      this.pendingFutures = Lists.newArrayList();
+    }
+
+    ListenableFuture<Long> commit(long offset) {
+      SettableFuture<Long> result = SettableFuture.create();
+      synchronized (this) {
+        pendingOffset = offset;
+        pendingFutures.add(result);
+        if (writing) {
+          return result;
+        }
+        writing = true;
+      }
+      writeNext();
+      return result;
+    }
+
+    private void writeNext() {
+      final long offset;
+      final List<SettableFuture<Long>> futures;
+      synchronized (this) {
+        if (pendingFutures.isEmpty()) {
+          writing = false;
+          return;
+        }
+        offset = pendingOffset;
+        futures = Lists.newArrayList(pendingFutures);
+        pendingFutures.clear();
+      }
+
+      SettableFuture<Object> written = SettableFuture.create();
+      write(path, Long.toString(offset).getBytes(Charsets.UTF_8), written);
+      Futures.addCallback(written, new FutureCallback<Object>() {
+        @Override
+        public void onSuccess(Object value) {
+          for (SettableFuture<Long> future : futures) {
+            future.set(offset);
+          }
+          writeNext();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+          for (SettableFuture<Long> future : futures) {
+            future.setException(t);
+          }
+          writeNext();
+        }
+      });
+    }
+  }
+}
@@ -13,24 +13,16 @@
  * License for the specific language governing permissions and limitations under
  * the License.
  */
-package com.continuuity.internal.kafka.client;
-
-import org.xerial.snappy.SnappyOutputStream;
-
-import java.io.IOException;
-import java.io.OutputStream;
+package com.continuuity.kafka.client;
 
 /**
- *
+ * Exception raised when a message cannot be published because the producer memory budget is exhausted.
  */
-final class SnappyMessageSetEncoder extends AbstractCompressedMessageSetEncoder {
+public final class BufferExhaustedException extends RuntimeException {
 
-  SnappyMessageSetEncoder() {
-    super(Compression.SNAPPY);
-  }
+  private static final long serialVersionUID = 1L;
 
-  @Override
-  protected OutputStream createCompressedStream(OutputStream os) throws IOException {
-    return new SnappyOutputStream(os);
+  public BufferExhaustedException(String message) {
+    super(message);
   }
 }
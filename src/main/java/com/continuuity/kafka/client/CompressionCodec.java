@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+import java.io.IOException;
+
+/**
+ * Codec for compressing message sets. The code of the codec is written to the attributes of the compressed
+ * message, and is used for finding the codec to decompress fetched messages. Implementations must be
+ * thread safe.
+ */
+public interface CompressionCodec {
+
+  /**
+   * @return The code written to the message attributes. {@code 0} means no compression, while {@code 1} and
+   *         {@code 2} are GZIP and Snappy as defined by Kafka.
+   */
+  int getCode();
+
+  /**
+   * Compresses the readable bytes of the input buffer and appends the result to the output buffer.
+   *
+   * @param input Buffer to compress. It is always backed by an array.
+   * @param output Buffer to write to. It grows on demand and is always backed by an array.
+   */
+  void compress(ChannelBuffer input, ChannelBuffer output) throws IOException;
+
+  /**
+   * Decompresses the readable bytes of the given buffer.
+   *
+   * @param input Buffer to decompress.
+   * @return A buffer containing the uncompressed data.
+   */
+  ChannelBuffer decompress(ChannelBuffer input) throws IOException;
+}
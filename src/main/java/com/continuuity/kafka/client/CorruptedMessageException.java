@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+/**
+ * Exception thrown when a fetched message fails checksum verification.
+ */
+public final class CorruptedMessageException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String topic;
+  private final int partition;
+  private final long offset;
+
+  public CorruptedMessageException(String topic, int partition, long offset, int expectedCRC, int actualCRC) {
+    super(String.format("Corrupted message in %s:%d at offset %d. Expected CRC %d, actual CRC %d.",
+                        topic, partition, offset, expectedCRC, actualCRC));
+    this.topic = topic;
+    this.partition = partition;
+    this.offset = offset;
+  }
+
+  public String getTopic() {
+    return topic;
+  }
+
+  public int getPartition() {
+    return partition;
+  }
+
+  /**
+   * @return Offset of the corrupted message, or of the compressed message set that contains it.
+   */
+  public long getOffset() {
+    return offset;
+  }
+}
@@ -16,6 +16,8 @@
 package com.continuuity.kafka.client;
 
 import com.continuuity.internal.kafka.client.Compression;
+import com.continuuity.zookeeper.Cancellable;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service;
 
 import java.util.Iterator;
@@ -25,7 +27,72 @@ import java.util.Iterator;
  */
 public interface KafkaClient extends Service {
 
+  /**
+   * Time for {@link #getOffsets(String, int, long, int)} to get the earliest offset.
+   */
+  long EARLIEST_OFFSET = -2L;
+
+  /**
+   * Time for {@link #getOffsets(String, int, long, int)} to get the latest offset, which is the offset of the
+   * next published message.
+   */
+  long LATEST_OFFSET = -1L;
+
+  /**
+   * Prepares to publish messages to the given topic.
+   *
+   * @param topic Topic to publish to.
+   * @param compression {@link CompressionCodec} for compressing each published message set.
+   * @return A {@link PreparePublish} for adding messages and publishing them.
+   */
+  PreparePublish preparePublish(String topic, CompressionCodec compression);
+
+  /**
+   * Same as {@link #preparePublish(String, CompressionCodec)}. Kept for compatibility with callers compiled
+   * against the {@link Compression} signature.
+   */
   PreparePublish preparePublish(String topic, Compression compression);
 
+  /**
+   * Returns a {@link Publisher} for the given topic. Messages sent through publishers of the same client are
+   * batched per partition and published by the client in the background.
+   *
+   * @param topic Topic to publish to.
+   * @param compression {@link CompressionCodec} for compressing each published batch.
+   * @return A thread safe {@link Publisher}.
+   */
+  Publisher getPublisher(String topic, CompressionCodec compression);
+
+  /**
+   * @return {@link ProducerMetrics} of this client.
+   */
+  ProducerMetrics getProducerMetrics();
+
+  /**
+   * Fetches offsets of a topic partition from the broker. Kafka only keeps offsets of log segment boundaries,
+   * hence for a timestamp, the result is the start offsets of segments that were last modified before that time.
+   *
+   * @param topic Topic of the partition.
+   * @param partition Partition to get offsets for.
+   * @param time {@link #EARLIEST_OFFSET}, {@link #LATEST_OFFSET} or a timestamp in milliseconds.
+   * @param maxOffsets Maximum number of offsets to return.
+   * @return A future that will be completed with the offsets, in descending order.
+   */
+  ListenableFuture<long[]> getOffsets(String topic, int partition, long time, int maxOffsets);
+
   Iterator<FetchedMessage> consume(String topic, int partition, long offset, int maxSize);
+
+  /**
+   * Starts consuming messages from the given topic partition asynchronously. Messages are pushed to the
+   * given callback; the next fetch is issued while the callback is processing the current batch, up to a
+   * bounded number of batches that are fetched but not yet processed.
+   *
+   * @param topic Topic to consume from.
+   * @param partition Partition to consume from.
+   * @param offset Offset to start consuming from.
+   * @param maxSize Maximum number of bytes to fetch per request.
+   * @param callback Callback to receive messages.
+   * @return A {@link Cancellable} for stopping the consumption.
+   */
+  Cancellable consume(String topic, int partition, long offset, int maxSize, MessageCallback callback);
 }
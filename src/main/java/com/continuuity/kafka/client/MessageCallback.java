@@ -0,0 +1,41 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+import java.util.Iterator;
+
+/**
+ * Callback for receiving messages asynchronously from {@link KafkaClient}.
+ */
+public interface MessageCallback {
+
+  /**
+   * Invoked when a batch of messages is fetched. Calls for the same consumer are never concurrent and are
+   * in offset order. The next batch is prefetched while this method is running; returning from this method
+   * signals readiness for more messages.
+   *
+   * @param messages Iterator of fetched messages.
+   */
+  void onReceived(Iterator<FetchedMessage> messages);
+
+  /**
+   * Invoked when the consumption is finished. No more call to {@link #onReceived(Iterator)} will be made
+   * after this method is called.
+   *
+   * @param cause The reason of the failure, or {@code null} if the consumption is cancelled.
+   */
+  void finished(Throwable cause);
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Stores offsets of consumed topic partitions, so that consumers can resume from where they left off.
+ */
+public interface OffsetStore {
+
+  /**
+   * Returns the committed offset of the given topic partition.
+   *
+   * @param topic Topic of the partition.
+   * @param partition The partition.
+   * @return A future that will be completed with the committed offset, or {@code -1} if there is none.
+   */
+  ListenableFuture<Long> getOffset(String topic, int partition);
+
+  /**
+   * Commits the offset of the given topic partition, which is the offset to resume consuming from. Commits of
+   * the same partition that happen while a previous one is in progress are coalesced, with only the latest
+   * offset persisted.
+   *
+   * @param topic Topic of the partition.
+   * @param partition The partition.
+   * @param offset Offset to commit.
+   * @return A future that will be completed when the offset, or a later one, is persisted.
+   */
+  ListenableFuture<Long> commit(String topic, int partition, long offset);
+}
@@ -0,0 +1,38 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+/**
+ * Behavior when publishing a message would exceed the producer memory budget of a {@link KafkaClient}.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Blocks the publishing thread until enough buffered data has been published.
+   */
+  BLOCK,
+
+  /**
+   * Drops the message. Futures of dropped messages fail with {@link BufferExhaustedException}.
+   */
+  DROP,
+
+  /**
+   * Throws {@link BufferExhaustedException} to the thread sending through a {@link Publisher}. For
+   * {@link PreparePublish#publish()}, the returned future fails with it and the prepared messages are discarded.
+   */
+  FAIL
+}
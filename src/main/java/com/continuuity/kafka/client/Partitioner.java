@@ -0,0 +1,32 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+/**
+ * Computes the partition that a message should be published to, based on the partition key given in
+ * {@link PreparePublish#add(java.nio.ByteBuffer, Object)}.
+ */
+public interface Partitioner {
+
+  /**
+   * Returns the partition for the given key.
+   *
+   * @param key The partition key provided when adding the message. It could be {@code null}.
+   * @param numPartitions Number of partitions available for the topic. Always greater than zero.
+   * @return The partition, which must be in the range of {@code [0, numPartitions)}.
+   */
+  int getPartition(Object key, int numPartitions);
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the producer side of a {@link KafkaClient}.
+ */
+public interface ProducerMetrics {
+
+  /**
+   * @return Number of payload bytes that are buffered or being published.
+   */
+  long getBufferedBytes();
+
+  /**
+   * @return Maximum number of payload bytes that can be buffered or being published.
+   */
+  long getMaxBufferedBytes();
+
+  /**
+   * @return Number of messages dropped because the memory budget was exhausted.
+   */
+  long getDroppedMessages();
+
+  /**
+   * @return Number of message sets published.
+   */
+  long getPublishCount();
+
+  /**
+   * @return Mean latency of publishing a message set, from the time it is handed to the network layer until it
+   *         is written, or acknowledged by the broker if acknowledged publish is enabled.
+   */
+  long getPublishLatencyMean(TimeUnit unit);
+
+  /**
+   * Returns the publish latency at the given percentile, rounded up to the next power of two microseconds.
+   *
+   * @param percentile Percentile in (0, 100].
+   * @param unit Unit of the result.
+   */
+  long getPublishLatency(double percentile, TimeUnit unit);
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.kafka.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Publishes messages to a topic. Messages sent from all threads are batched per partition by the client and
+ * published asynchronously. Implementations are thread safe.
+ */
+public interface Publisher {
+
+  ListenableFuture<Void> send(byte[] payload, Object partitionKey);
+
+  /**
+   * Sends a message. The content of the payload buffer must not be modified until the returned future
+   * is completed.
+   *
+   * @param payload Message payload.
+   * @param partitionKey Key for computing the partition of the message.
+   * @return A future that will be completed when the batch containing the message is published.
+   */
+  ListenableFuture<Void> send(ByteBuffer payload, Object partitionKey);
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.continuuity.weave.api.logging.LogEntry;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes {@link LogEntry} encoded in the binary log format. The format is
+ *
+ * <pre>
+ * [MAGIC][VERSION][STRING_COUNT]([LENGTH][UTF8])*
+ * [TIMESTAMP][LEVEL][NAME][HOST][CLASS][METHOD][FILE][LINE][THREAD][MESSAGE]
+ * [STACK_COUNT]([CLASS][METHOD][FILE][LINE])*
+ * </pre>
+ *
+ * Counts and lengths are varints, {@code TIMESTAMP} is a big endian long, {@code LEVEL} is the ordinal of
+ * {@link LogEntry.Level} and {@code LINE} is a zigzag varint. String fields are varint references to the string
+ * table of the record, {@code 0} for {@code null} and {@code i + 1} for the i-th string, so that names repeated
+ * within a record, most notably in stack traces, are stored once.
+ */
+public final class BinaryLogEntryDecoder {
+
+  static final int MAGIC = 0xCE;
+  static final int VERSION = 1;
+
+  private static final LogEntry.Level[] LEVELS = LogEntry.Level.values();
+
+  /**
+   * Returns {@code true} if the given buffer contains a binary encoded log entry. Json encoded log entries
+   * always start with {@code '{'}.
+   */
+  public static boolean isBinary(ByteBuffer buffer) {
+    return buffer.hasRemaining() && (buffer.get(buffer.position()) & 0xff) == MAGIC;
+  }
+
+  /**
+   * Decodes a {@link LogEntry} from the given buffer. The position of the buffer is not changed.
+   *
+   * @throws IllegalArgumentException if the buffer is not a supported binary log entry.
+   */
+  public static LogEntry decode(ByteBuffer buffer) {
+    ByteBuffer buf = buffer.duplicate();
+    try {
+      Preconditions.checkArgument((buf.get() & 0xff) == MAGIC, "Not a binary log entry.");
+      int version = buf.get() & 0xff;
+      Preconditions.checkArgument(version == VERSION, "Unsupported binary log entry version %s.", version);
+
+      // Each string takes at least one byte for its length.
+      String[] strings = new String[readCount(buf, 1)];
+      for (int i = 0; i < strings.length; i++) {
+        strings[i] = readUTF8(buf, readVarInt(buf));
+      }
+
+      long timestamp = buf.getLong();
+      LogEntry.Level level = LEVELS[buf.get()];
+      String name = readString(buf, strings);
+      String host = readString(buf, strings);
+      String className = readString(buf, strings);
+      String method = readString(buf, strings);
+      String file = readString(buf, strings);
+      int line = readZigZag(buf);
+      String thread = readString(buf, strings);
+      String message = readString(buf, strings);
+
+      // Each element takes at least one byte for each of its four fields.
+      StackTraceElement[] stackTraces = new StackTraceElement[readCount(buf, 4)];
+      for (int i = 0; i < stackTraces.length; i++) {
+        String traceClass = readString(buf, strings);
+        String traceMethod = readString(buf, strings);
+        String traceFile = readString(buf, strings);
+        stackTraces[i] = new StackTraceElement(traceClass, traceMethod, traceFile, readZigZag(buf));
+      }
+
+      return new DefaultLogEntry(name, host, timestamp, level, className, method, file, line, thread, message,
+                                 stackTraces);
+    } catch (RuntimeException e) {
+      if (e instanceof IllegalArgumentException) {
+        throw e;
+      }
+      throw new IllegalArgumentException("Corrupted binary log entry.", e);
+    }
+  }
+
+  /**
+   * Reads a count of items that take at least the given number of bytes each. Counts that can't fit in the
+   * remaining bytes are rejected before any array is allocated for them.
+   */
+  private static int readCount(ByteBuffer buf, int minItemSize) {
+    int count = readVarInt(buf);
+    if (count < 0 || count > buf.remaining() / minItemSize) {
+      throw new IllegalArgumentException("Corrupted binary log entry, invalid count " + count + ".");
+    }
+    return count;
+  }
+
+  private static String readString(ByteBuffer buf, String[] strings) {
+    int ref = readVarInt(buf);
+    return ref == 0 ? null : strings[ref - 1];
+  }
+
+  private static String readUTF8(ByteBuffer buf, int len) {
+    if (len > buf.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String str;
+    if (buf.hasArray()) {
+      str = new String(buf.array(), buf.arrayOffset() + buf.position(), len, Charsets.UTF_8);
+      buf.position(buf.position() + len);
+    } else {
+      byte[] bytes = new byte[len];
+      buf.get(bytes);
+      str = new String(bytes, Charsets.UTF_8);
+    }
+    return str;
+  }
+
+  private static int readZigZag(ByteBuffer buf) {
+    int value = readVarInt(buf);
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int readVarInt(ByteBuffer buf) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = buf.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint.");
+  }
+
+  private BinaryLogEntryDecoder() {
+  }
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import com.continuuity.weave.api.logging.LogEntry;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A {@link LogEventEncoder} that encodes {@link ILoggingEvent} in the binary format read by
+ * {@link BinaryLogEntryDecoder}. Instances are not thread safe, as buffers are reused across events.
+ */
+final class BinaryLogEventEncoder implements LogEventEncoder {
+
+  private static final String UNKNOWN = "?";
+
+  private final String hostname;
+  private final Map<String, Integer> stringIndices;
+  private final Buffer strings;
+  private final Buffer fields;
+
+  BinaryLogEventEncoder(String hostname) {
+    this.hostname = hostname;
+    this.stringIndices = Maps.newHashMap();
+    this.strings = new Buffer(256);
+    this.fields = new Buffer(256);
+  }
+
+  @Override
+  public ByteBuffer encode(ILoggingEvent event) {
+    stringIndices.clear();
+    strings.reset();
+    fields.reset();
+
+    StackTraceElement[] callerData = event.hasCallerData() ? event.getCallerData() : null;
+    StackTraceElement caller = (callerData == null || callerData.length == 0) ? null : callerData[0];
+
+    fields.writeLong(event.getTimeStamp());
+    fields.writeByte(LogEntry.Level.valueOf(event.getLevel().toString()).ordinal());
+    writeString(event.getLoggerName());
+    writeString(hostname);
+    writeString(caller == null ? UNKNOWN : caller.getClassName());
+    writeString(caller == null ? UNKNOWN : caller.getMethodName());
+    writeString(caller == null ? UNKNOWN : caller.getFileName());
+    fields.writeVarInt(zigZag(caller == null ? -1 : caller.getLineNumber()));
+    writeString(event.getThreadName());
+    writeString(event.getFormattedMessage());
+
+    IThrowableProxy throwable = event.getThrowableProxy();
+    StackTraceElementProxy[] stackTraces = throwable == null ? null : throwable.getStackTraceElementProxyArray();
+    if (stackTraces == null) {
+      fields.writeVarInt(0);
+    } else {
+      fields.writeVarInt(stackTraces.length);
+      for (StackTraceElementProxy stackTrace : stackTraces) {
+        StackTraceElement element = stackTrace.getStackTraceElement();
+        writeString(element.getClassName());
+        writeString(element.getMethodName());
+        writeString(element.getFileName());
+        fields.writeVarInt(zigZag(element.getLineNumber()));
+      }
+    }
+
+    Buffer header = new Buffer(7);
+    header.writeByte(BinaryLogEntryDecoder.MAGIC);
+    header.writeByte(BinaryLogEntryDecoder.VERSION);
+    header.writeVarInt(stringIndices.size());
+
+    ByteBuffer result = ByteBuffer.allocate(header.size + strings.size + fields.size);
+    result.put(header.bytes, 0, header.size)
+          .put(strings.bytes, 0, strings.size)
+          .put(fields.bytes, 0, fields.size)
+          .flip();
+    return result;
+  }
+
+  /**
+   * Writes the string table reference of the given string, adding it to the table if it is not there yet.
+   * Reference {@code 0} is for {@code null}.
+   */
+  private void writeString(String str) {
+    if (str == null) {
+      fields.writeVarInt(0);
+      return;
+    }
+    Integer idx = stringIndices.get(str);
+    if (idx == null) {
+      idx = stringIndices.size();
+      stringIndices.put(str, idx);
+      byte[] bytes = str.getBytes(Charsets.UTF_8);
+      strings.writeVarInt(bytes.length);
+      strings.writeBytes(bytes);
+    }
+    fields.writeVarInt(idx + 1);
+  }
+
+  private static int zigZag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  /**
+   * A growable byte array.
+   */
+  private static final class Buffer {
+    private byte[] bytes;
+    private int size;
+
+    Buffer(int capacity) {
+      this.bytes = new byte[capacity];
+    }
+
+    void reset() {
+      size = 0;
+    }
+
+    void writeByte(int b) {
+      ensureCapacity(1);
+      bytes[size++] = (byte) b;
+    }
+
+    void writeLong(long value) {
+      ensureCapacity(8);
+      for (int shift = 56; shift >= 0; shift -= 8) {
+        bytes[size++] = (byte) (value >>> shift);
+      }
+    }
+
+    void writeVarInt(int value) {
+      ensureCapacity(5);
+      while ((value & ~0x7f) != 0) {
+        bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      bytes[size++] = (byte) value;
+    }
+
+    void writeBytes(byte[] src) {
+      ensureCapacity(src.length);
+      System.arraycopy(src, 0, bytes, size, src.length);
+      size += src.length;
+    }
+
+    private void ensureCapacity(int len) {
+      if (size + len > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + len));
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link LogEventEncoder} that encodes {@link ILoggingEvent} into json, as decoded by {@link LogEntryDecoder}.
+ */
+final class JsonLogEventEncoder implements LogEventEncoder {
+
+  private static final String UNKNOWN = "?";
+
+  private final String hostname;
+
+  JsonLogEventEncoder(String hostname) {
+    this.hostname = hostname;
+  }
+
+  @Override
+  public ByteBuffer encode(ILoggingEvent event) {
+    StackTraceElement[] callerData = event.hasCallerData() ? event.getCallerData() : null;
+    StackTraceElement caller = (callerData == null || callerData.length == 0) ? null : callerData[0];
+
+    StringWriter result = new StringWriter();
+    JsonWriter writer = new JsonWriter(result);
+
+    try {
+      try {
+        writer.beginObject();
+        writer.name("name").value(event.getLoggerName());
+        writer.name("host").value(hostname);
+        writer.name("timestamp").value(Long.toString(event.getTimeStamp()));
+        writer.name("level").value(event.getLevel().toString());
+        writer.name("className").value(caller == null ? UNKNOWN : caller.getClassName());
+        writer.name("method").value(caller == null ? UNKNOWN : caller.getMethodName());
+        writer.name("file").value(caller == null || caller.getFileName() == null ? UNKNOWN : caller.getFileName());
+        writer.name("line").value(caller == null ? -1 : caller.getLineNumber());
+        writer.name("thread").value(event.getThreadName());
+        writer.name("message").value(event.getFormattedMessage());
+        writer.name("stackTraces");
+        encodeStackTraces(event.getThrowableProxy(), writer);
+
+        writer.endObject();
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+
+    return Charsets.UTF_8.encode(result.toString());
+  }
+
+  private void encodeStackTraces(IThrowableProxy throwable, JsonWriter writer) throws IOException {
+    writer.beginArray();
+    try {
+      if (throwable == null) {
+        return;
+      }
+
+      for (StackTraceElementProxy stackTrace : throwable.getStackTraceElementProxyArray()) {
+        writer.beginObject();
+
+        StackTraceElement element = stackTrace.getStackTraceElement();
+        writer.name("className").value(element.getClassName());
+        writer.name("method").value(element.getMethodName());
+        writer.name("file").value(element.getFileName());
+        writer.name("line").value(element.getLineNumber());
+
+        writer.endObject();
+      }
+    } finally {
+      writer.endArray();
+    }
+  }
+}
@@ -15,69 +15,109 @@
  */
 package com.continuuity.weave.internal.logging;
 
-import ch.qos.logback.classic.pattern.ClassOfCallerConverter;
-import ch.qos.logback.classic.pattern.FileOfCallerConverter;
-import ch.qos.logback.classic.pattern.LineOfCallerConverter;
-import ch.qos.logback.classic.pattern.MethodOfCallerConverter;
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
-import ch.qos.logback.classic.spi.IThrowableProxy;
-import ch.qos.logback.classic.spi.StackTraceElementProxy;
-import ch.qos.logback.core.AppenderBase;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import com.continuuity.internal.kafka.client.Compression;
+import com.continuuity.internal.kafka.client.CompressionCodecs;
 import com.continuuity.internal.kafka.client.SimpleKafkaClient;
+import com.continuuity.kafka.client.BufferExhaustedException;
+import com.continuuity.kafka.client.CompressionCodec;
 import com.continuuity.kafka.client.KafkaClient;
-import com.continuuity.kafka.client.PreparePublish;
-import com.continuuity.weave.internal.utils.Threads;
-import com.google.common.base.Charsets;
+import com.continuuity.kafka.client.OverflowPolicy;
+import com.continuuity.kafka.client.Publisher;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Throwables;
-import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
-import com.google.gson.stream.JsonWriter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- *
+ * Appender that publishes log entries to kafka. Logging threads only put events into a bounded
+ * {@link LogEventRingBuffer}; a single drain thread encodes and publishes them. If a spill directory is set,
+ * log entries that cannot be published are written to a {@link LogSpillBuffer} and replayed in order once
+ * publishing recovers. Entries that were already being published when kafka became unavailable are spilled once
+ * their failure is known, hence they can end up behind entries spilled in the meantime.
  */
-public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
+public final class KafkaAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
 
   private static final Logger LOG = LoggerFactory.getLogger(KafkaAppender.class);
-
-  private final LogEventConverter eventConverter;
-  private final AtomicReference<PreparePublish> publisher;
-  private final Runnable flushTask;
+  private static final long DRAIN_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final long DROP_REPORT_INTERVAL_MS = 10000;
+  private static final long STOP_TIMEOUT_MS = 5000;
+  private static final long SPILL_RETRY_MS = 5000;
+  private static final int MAX_REPLAY_IN_FLIGHT = 1024;
+
+  private final AtomicReference<Publisher> publisher;
+  private final FutureCallback<Void> publishCallback;
+  private final List<String> callerDataLoggers;
   /**
-   * Rough count of how many entries are being buffered. It's just approximate, not exact.
+   * Log entries failed to publish, to be spilled by the drain thread.
    */
-  private final AtomicInteger bufferedSize;
+  private final Queue<ByteBuffer> failedEntries;
+  private final AtomicInteger inFlight;
+  /**
+   * Sampling interval and event count for each level, indexed by {@link #levelIndex(Level)}.
+   */
+  private final AtomicIntegerArray sampleIntervals;
+  private final AtomicLongArray sampleCounts;
+  private final KafkaClient providedClient;
 
+  private LogEventRingBuffer ringBuffer;
+  private LogEventEncoder eventEncoder;
   private KafkaClient kafkaClient;
+  private Thread drainThread;
+  private LogSpillBuffer spillBuffer;
+  private volatile long lastFailureTime;
+  private volatile long spillDropped;
+  private volatile boolean drainWaiting;
+  private volatile boolean stopping;
   private String zkConnectStr;
   private String hostname;
   private String topic;
-  private Queue<String> buffer;
-  private int flushLimit = 20;
+  private int maxBatchBytes = 256 * 1024;
   private int flushPeriod = 500;
-  private ScheduledExecutorService scheduler;
+  private long maxBufferBytes = 8 * 1024 * 1024;
+  private CompressionCodec compression = Compression.SNAPPY;
+  private String format = "json";
+  private int bufferSize = 8192;
+  private LogEventRingBuffer.OverflowPolicy overflowPolicy = LogEventRingBuffer.OverflowPolicy.DROP_DEBUG;
+  private Level callerDataLevel = Level.OFF;
+  private String spillDir;
+  private int spillSegmentBytes = 4 * 1024 * 1024;
+  private long maxSpillBytes = 64 * 1024 * 1024;
 
   public KafkaAppender() {
-    eventConverter = new LogEventConverter();
-    publisher = new AtomicReference<PreparePublish>();
-    flushTask = createFlushTask();
-    bufferedSize = new AtomicInteger();
-    buffer = new ConcurrentLinkedQueue<String>();
+    this(null);
+  }
+
+  /**
+   * Creates an appender that publishes through the given client instead of one created from the zookeeper
+   * connection string. The client is started and stopped with the appender.
+   */
+  KafkaAppender(KafkaClient kafkaClient) {
+    providedClient = kafkaClient;
+    publisher = new AtomicReference<Publisher>();
+    publishCallback = createPublishCallback();
+    callerDataLoggers = Lists.newCopyOnWriteArrayList();
+    failedEntries = new ConcurrentLinkedQueue<ByteBuffer>();
+    inFlight = new AtomicInteger();
+    sampleIntervals = new AtomicIntegerArray(5);
+    sampleCounts = new AtomicLongArray(5);
   }
 
   public void setZookeeper(String zkConnectStr) {
@@ -92,27 +132,146 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
     this.topic = topic;
   }
 
-  public void setFlushLimit(int flushLimit) {
-    this.flushLimit = flushLimit;
+  /**
+   * Sets the maximum number of bytes of log entries in one batch published to kafka.
+   */
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  /**
+   * Sets the maximum number of bytes of log entries that are being published. Log entries are dropped
+   * when it is reached, so that an unavailable kafka cannot exhaust the memory.
+   */
+  public void setMaxBufferBytes(long maxBufferBytes) {
+    this.maxBufferBytes = maxBufferBytes;
   }
 
+  /**
+   * Sets the maximum time in milliseconds that log entries wait to be batched before being published.
+   */
   public void setFlushPeriod(int flushPeriod) {
     this.flushPeriod = flushPeriod;
   }
 
+  /**
+   * Sets the compression of log entries, as accepted by {@link CompressionCodecs#forName(String)}.
+   * Default is {@code snappy}.
+   */
+  public void setCompression(String compression) {
+    this.compression = CompressionCodecs.forName(compression);
+  }
+
+  /**
+   * Sets the encoding of log entries, either {@code json} or the more compact {@code binary}, which is decoded by
+   * {@link BinaryLogEntryDecoder}. Default is {@code json}.
+   */
+  public void setFormat(String format) {
+    Preconditions.checkArgument("json".equals(format) || "binary".equals(format), "Unsupported format %s", format);
+    this.format = format;
+  }
+
+  /**
+   * Sets the number of log events that can wait to be published, rounded up to a power of two. Default is 8192.
+   */
+  public void setBufferSize(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Sets what happens to log events when the buffer is full, one of {@code drop_oldest}, {@code drop_debug} or
+   * {@code block}. Default is {@code drop_debug}.
+   */
+  public void setOverflowPolicy(String overflowPolicy) {
+    this.overflowPolicy = LogEventRingBuffer.OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+  }
+
+  /**
+   * Sets the minimum level of log events that carry caller data, i.e. source class, method, file and line.
+   * Capturing caller data takes a stack trace on the logging thread, hence default is {@code OFF}.
+   */
+  public void setCallerDataLevel(String level) {
+    this.callerDataLevel = Level.toLevel(level, Level.OFF);
+  }
+
+  /**
+   * Adds a logger, including its descendants, whose log events always carry caller data.
+   */
+  public void addCallerDataLogger(String loggerName) {
+    callerDataLoggers.add(loggerName);
+  }
+
+  /**
+   * Sets the directory for spilling log entries while kafka is unavailable. Spilling is disabled if not set.
+   */
+  public void setSpillDir(String spillDir) {
+    this.spillDir = spillDir;
+  }
+
+  /**
+   * Sets the size of each spill segment file. Default is 4MB.
+   */
+  public void setSpillSegmentBytes(int spillSegmentBytes) {
+    this.spillSegmentBytes = spillSegmentBytes;
+  }
+
+  /**
+   * Sets the maximum total size of spill segment files. Oldest log entries are dropped when it is reached.
+   * Default is 64MB.
+   */
+  public void setMaxSpillBytes(long maxSpillBytes) {
+    this.maxSpillBytes = maxSpillBytes;
+  }
+
+  /**
+   * Publishes only one in every {@code interval} log events of the given level; {@code 1} publishes all.
+   * Events skipped by sampling are not counted as dropped.
+   */
+  public void setSampleInterval(Level level, int interval) {
+    Preconditions.checkArgument(interval > 0, "Sampling interval must be positive.");
+    sampleIntervals.set(levelIndex(level), interval);
+  }
+
+  /**
+   * Returns the number of log events dropped because the buffer or the spill files were full.
+   */
+  public long getDroppedEvents() {
+    LogEventRingBuffer ringBuffer = this.ringBuffer;
+    return ringBuffer == null ? 0L : ringBuffer.getDropped() + spillDropped;
+  }
+
   @Override
   public void start() {
-    Preconditions.checkNotNull(zkConnectStr);
-
-    scheduler = Executors.newSingleThreadScheduledExecutor(Threads.createDaemonThreadFactory("kafka-logger"));
+    Preconditions.checkState(providedClient != null || zkConnectStr != null, "Zookeeper is not set.");
 
-    kafkaClient = new SimpleKafkaClient(zkConnectStr);
+    ringBuffer = new LogEventRingBuffer(bufferSize, overflowPolicy);
+    eventEncoder = "binary".equals(format) ? new BinaryLogEventEncoder(hostname) : new JsonLogEventEncoder(hostname);
+    stopping = false;
+    spillBuffer = null;
+    if (spillDir != null) {
+      try {
+        spillBuffer = new LogSpillBuffer(new File(spillDir), spillSegmentBytes, maxSpillBytes);
+      } catch (IOException e) {
+        LOG.error("Failed to open log spill directory " + spillDir + ". Spilling is disabled.", e);
+      }
+    }
+    drainThread = createDrainThread();
+
+    if (providedClient != null) {
+      kafkaClient = providedClient;
+    } else {
+      kafkaClient = SimpleKafkaClient.Builder.of(zkConnectStr)
+                                             .setLinger(flushPeriod, TimeUnit.MILLISECONDS)
+                                             .setMaxBatchBytes(maxBatchBytes)
+                                             .setBufferMemory(maxBufferBytes, OverflowPolicy.DROP)
+                                             .build();
+    }
     Futures.addCallback(kafkaClient.start(), new FutureCallback<Object>() {
       @Override
       public void onSuccess(Object result) {
         LOG.info("Kafka client started: " + zkConnectStr);
-        publisher.set(kafkaClient.preparePublish(topic, Compression.SNAPPY));
-        scheduler.scheduleWithFixedDelay(flushTask, 0, flushPeriod, TimeUnit.MILLISECONDS);
+        publisher.set(kafkaClient.getPublisher(topic, compression));
+        LockSupport.unpark(drainThread);
       }
 
       @Override
@@ -122,128 +281,266 @@ public final class KafkaAppender extends AppenderBase<ILoggingEvent> {
       }
     });
 
+    drainThread.start();
     super.start();
   }
 
   @Override
   public void stop() {
-    scheduler.shutdownNow();
-    kafkaClient.stopAndWait();
     super.stop();
+
+    // Publishes what is left in the buffer before stopping the client.
+    stopping = true;
+    ringBuffer.close();
+    LockSupport.unpark(drainThread);
+    try {
+      drainThread.join(STOP_TIMEOUT_MS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // Stopping the client publishes or fails the entries in flight. Failed ones are spilled here, as the drain
+    // thread is gone. If it is still running, the spill buffer is left to it, as it is not thread safe.
+    kafkaClient.stopAndWait();
+    if (spillBuffer != null && !drainThread.isAlive()) {
+      spillFailed();
+      spillBuffer.flush();
+    }
   }
 
   @Override
   protected void append(ILoggingEvent eventObject) {
-    buffer.offer(eventConverter.convert(eventObject));
-    if (bufferedSize.incrementAndGet() >= flushLimit && publisher.get() != null) {
-      // Try to do a extra flush
-      scheduler.submit(flushTask);
+    int levelIdx = levelIndex(eventObject.getLevel());
+    int interval = sampleIntervals.get(levelIdx);
+    if (interval > 1 && sampleCounts.getAndIncrement(levelIdx) % interval != 0) {
+      return;
+    }
+
+    // Captures the thread dependent states before the event is handed to the drain thread.
+    eventObject.prepareForDeferredProcessing();
+    ILoggingEvent event = eventObject;
+    if (needsCallerData(eventObject)) {
+      eventObject.getCallerData();
+    } else {
+      // Otherwise it would be computed on the drain thread, which is wasted work with a meaningless result.
+      // The event is shared with other appenders, hence it is wrapped instead of modified.
+      event = new NoCallerDataLoggingEvent(eventObject);
+    }
+
+    // The drain thread never blocks on the buffer, as it is the one that frees it up.
+    Thread drainThread = this.drainThread;
+    if (ringBuffer.offer(event, Thread.currentThread() != drainThread) && drainWaiting) {
+      LockSupport.unpark(drainThread);
     }
   }
 
   /**
-   * Creates a {@link Runnable} that writes all logs in the buffer into kafka
-   * @return The Runnable task
+   * Maps TRACE, DEBUG, INFO, WARN and ERROR to 0 to 4.
    */
-  private Runnable createFlushTask() {
-    return new Runnable() {
+  private static int levelIndex(Level level) {
+    return Math.max(0, Math.min(level.toInt() / Level.DEBUG_INT, 4));
+  }
+
+  private boolean needsCallerData(ILoggingEvent event) {
+    if (event.getLevel().isGreaterOrEqual(callerDataLevel)) {
+      return true;
+    }
+    String loggerName = event.getLoggerName();
+    for (String name : callerDataLoggers) {
+      if (loggerName.startsWith(name)
+        && (loggerName.length() == name.length() || loggerName.charAt(name.length()) == '.')) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Thread createDrainThread() {
+    Thread thread = new Thread("kafka-appender-drain") {
       @Override
       public void run() {
-        // If the publisher is not available, simply return.
-        PreparePublish publisher = KafkaAppender.this.publisher.get();
-        if (publisher == null) {
-          return;
-        }
-
-        int count = 0;
-        for (String json : Iterables.consumingIterable(buffer)) {
-          publisher.add(Charsets.UTF_8.encode(json), 0);
-          count++;
-        }
-        if (count == 0) {
-          return;
-        }
-        bufferedSize.set(0);
-        final int finalCount = count;
-        Futures.addCallback(publisher.publish(), new FutureCallback<Object>() {
-          @Override
-          public void onSuccess(Object result) {
-            if (LOG.isDebugEnabled()) {
-              LOG.debug("Log entries published, size=" + finalCount);
-            }
+        long reportedDrops = 0L;
+        long lastReportTime = 0L;
+
+        while (true) {
+          Publisher publisher = getPublisher();
+          boolean progress = spillFailed() | replay(publisher);
+          ILoggingEvent event = (publisher == null && spillBuffer == null) ? null : ringBuffer.poll();
+          if (event != null) {
+            publish(publisher, event);
+            continue;
+          }
+          if (progress) {
+            continue;
+          }
+          if (stopping && (ringBuffer.isEmpty() || (publisher == null && spillBuffer == null))) {
+            break;
           }
 
-          @Override
-          public void onFailure(Throwable t) {
-            LOG.error("Failed to push logs to kafka. Log entries dropped.", t);
+          long drops = getDroppedEvents();
+          long now = System.currentTimeMillis();
+          if (drops != reportedDrops && now - lastReportTime >= DROP_REPORT_INTERVAL_MS) {
+            LOG.warn("Log events dropped due to full buffer: " + (drops - reportedDrops));
+            reportedDrops = drops;
+            lastReportTime = now;
           }
-        });
+          waitForEvents(publisher);
+        }
+
+        if (spillBuffer != null) {
+          spillFailed();
+          spillBuffer.flush();
+        }
       }
     };
+    thread.setDaemon(true);
+    return thread;
   }
 
   /**
-   * Helper class to convert {@link ILoggingEvent} into json string.
+   * Returns the publisher if log entries can be published, or {@code null} if the kafka client is not started
+   * or publishing failed recently while spilling is enabled.
    */
-  private final class LogEventConverter {
+  private Publisher getPublisher() {
+    Publisher publisher = this.publisher.get();
+    if (publisher != null && spillBuffer != null
+      && System.currentTimeMillis() - lastFailureTime < SPILL_RETRY_MS) {
+      return null;
+    }
+    return publisher;
+  }
 
-    private final ClassOfCallerConverter classNameConverter = new ClassOfCallerConverter();
-    private final MethodOfCallerConverter methodConverter = new MethodOfCallerConverter();
-    private final FileOfCallerConverter fileConverter = new FileOfCallerConverter();
-    private final LineOfCallerConverter lineConverter = new LineOfCallerConverter();
+  /**
+   * Parks the drain thread until events are appended or the publisher becomes available. The flag is set before
+   * the emptiness recheck, so that an append racing with it either is seen or unparks the thread.
+   */
+  private void waitForEvents(Publisher publisher) {
+    drainWaiting = true;
+    try {
+      if (!stopping && (ringBuffer.isEmpty() || (publisher == null && spillBuffer == null))) {
+        LockSupport.parkNanos(this, DRAIN_WAIT_NANOS);
+      }
+    } finally {
+      drainWaiting = false;
+    }
+  }
 
-    private String convert(ILoggingEvent event) {
-      StringWriter result = new StringWriter();
-      JsonWriter writer = new JsonWriter(result);
+  private void publish(Publisher publisher, ILoggingEvent event) {
+    ByteBuffer entry;
+    try {
+      entry = eventEncoder.encode(event);
+    } catch (Throwable t) {
+      LOG.error("Failed to encode log event: " + event.getFormattedMessage(), t);
+      return;
+    }
 
-      try {
-        try {
-          writer.beginObject();
-          writer.name("name").value(event.getLoggerName());
-          writer.name("host").value(hostname);
-          writer.name("timestamp").value(Long.toString(event.getTimeStamp()));
-          writer.name("level").value(event.getLevel().toString());
-          writer.name("className").value(classNameConverter.convert(event));
-          writer.name("method").value(methodConverter.convert(event));
-          writer.name("file").value(fileConverter.convert(event));
-          writer.name("line").value(lineConverter.convert(event));
-          writer.name("thread").value(event.getThreadName());
-          writer.name("message").value(event.getFormattedMessage());
-          writer.name("stackTraces");
-          encodeStackTraces(event.getThrowableProxy(), writer);
-
-          writer.endObject();
-        } finally {
-          writer.close();
-        }
-      } catch (IOException e) {
-        throw Throwables.propagate(e);
+    // Entries go behind the spilled ones until they are all replayed, to keep the order.
+    if (publisher != null && (spillBuffer == null || spillBuffer.isEmpty())) {
+      send(publisher, entry);
+    } else {
+      spill(entry);
+    }
+  }
+
+  private void send(Publisher publisher, final ByteBuffer entry) {
+    try {
+      if (spillBuffer == null) {
+        Futures.addCallback(publisher.send(entry, 0), publishCallback);
+        return;
       }
 
-      return result.toString();
-    }
+      inFlight.incrementAndGet();
+      Futures.addCallback(publisher.send(entry, 0), new FutureCallback<Void>() {
+        @Override
+        public void onSuccess(Void result) {
+          inFlight.decrementAndGet();
+        }
 
-    private void encodeStackTraces(IThrowableProxy throwable, JsonWriter writer) throws IOException {
-      writer.beginArray();
-      try {
-        if (throwable == null) {
-          return;
+        @Override
+        public void onFailure(Throwable t) {
+          if (lastFailureTime == 0L) {
+            LOG.warn("Failed to push logs to kafka. Spilling log entries to " + spillDir, t);
+          }
+          lastFailureTime = System.currentTimeMillis();
+          failedEntries.add(entry);
+          inFlight.decrementAndGet();
         }
+      });
+    } catch (Throwable t) {
+      LOG.error("Failed to publish log entry.", t);
+    }
+  }
 
-        for (StackTraceElementProxy stackTrace : throwable.getStackTraceElementProxyArray()) {
-          writer.beginObject();
+  /**
+   * Publishes the oldest spilled entry if publishing is possible and not too many replayed entries are pending.
+   *
+   * @return {@code true} if an entry is replayed.
+   */
+  private boolean replay(Publisher publisher) {
+    if (publisher == null || spillBuffer == null || stopping || inFlight.get() >= MAX_REPLAY_IN_FLIGHT) {
+      return false;
+    }
+    ByteBuffer entry = spillBuffer.poll();
+    if (entry == null) {
+      if (lastFailureTime != 0L && inFlight.get() == 0) {
+        LOG.info("Resumed pushing logs to kafka.");
+        lastFailureTime = 0L;
+      }
+      return false;
+    }
+    send(publisher, entry);
+    return true;
+  }
 
-          StackTraceElement element = stackTrace.getStackTraceElement();
-          writer.name("className").value(element.getClassName());
-          writer.name("method").value(element.getMethodName());
-          writer.name("file").value(element.getFileName());
-          writer.name("line").value(element.getLineNumber());
+  /**
+   * Moves entries failed to publish to the spill buffer. They are appended behind the entries already spilled,
+   * which may be newer.
+   *
+   * @return {@code true} if there is any.
+   */
+  private boolean spillFailed() {
+    if (spillBuffer == null) {
+      return false;
+    }
+    boolean spilled = false;
+    ByteBuffer entry = failedEntries.poll();
+    while (entry != null) {
+      spill(entry);
+      spilled = true;
+      entry = failedEntries.poll();
+    }
+    return spilled;
+  }
+
+  private void spill(ByteBuffer entry) {
+    long failures = spillDropped - spillBuffer.getDropped();
+    try {
+      spillBuffer.append(entry);
+    } catch (IOException e) {
+      LOG.error("Failed to spill log entry to " + spillDir, e);
+      failures++;
+    }
+    spillDropped = spillBuffer.getDropped() + failures;
+  }
+
+  /**
+   * Creates a {@link FutureCallback} for logging publish failures. Entries in the same batch fail with the same
+   * cause, which is only logged once. Entries dropped due to the memory limit are not logged, as they are
+   * counted in the {@link com.continuuity.kafka.client.ProducerMetrics} of the client.
+   */
+  private FutureCallback<Void> createPublishCallback() {
+    final AtomicReference<Throwable> lastFailure = new AtomicReference<Throwable>();
+    return new FutureCallback<Void>() {
+      @Override
+      public void onSuccess(Void result) {
+        // No-op
+      }
 
-          writer.endObject();
+      @Override
+      public void onFailure(Throwable t) {
+        if (!(t instanceof BufferExhaustedException) && lastFailure.getAndSet(t) != t) {
+          LOG.error("Failed to push logs to kafka. Log entries dropped.", t);
         }
-      } finally {
-        writer.endArray();
       }
-    }
+    };
   }
 }
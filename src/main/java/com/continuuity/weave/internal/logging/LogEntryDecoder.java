@@ -16,6 +16,7 @@
 package com.continuuity.weave.internal.logging;
 
 import com.continuuity.weave.api.logging.LogEntry;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
@@ -47,64 +48,22 @@ public final class LogEntryDecoder implements JsonDeserializer<LogEntry> {
     final String thread = jsonObj.get("thread").getAsString();
     final String message = jsonObj.get("message").getAsString();
 
-    final StackTraceElement[] stackTraces = context.deserialize(jsonObj.get("stackTraces").getAsJsonArray(),
-                                                                StackTraceElement[].class);
+    final StackTraceElement[] stackTraces = decodeStackTraces(jsonObj.get("stackTraces").getAsJsonArray());
 
-    return new LogEntry() {
-      @Override
-      public String getLoggerName() {
-        return name;
-      }
-
-      @Override
-      public String getHost() {
-        return host;
-      }
-
-      @Override
-      public long getTimestamp() {
-        return timestamp;
-      }
-
-      @Override
-      public Level getLogLevel() {
-        return level;
-      }
-
-      @Override
-      public String getSourceClassName() {
-        return className;
-      }
-
-      @Override
-      public String getSourceMethodName() {
-        return method;
-      }
-
-      @Override
-      public String getFileName() {
-        return file;
-      }
-
-      @Override
-      public int getLineNumber() {
-        return line;
-      }
-
-      @Override
-      public String getThreadName() {
-        return thread;
-      }
-
-      @Override
-      public String getMessage() {
-        return message;
-      }
+    return new DefaultLogEntry(name, host, timestamp, level, className, method, file, line, thread, message,
+                               stackTraces);
+  }
 
-      @Override
-      public StackTraceElement[] getStackTraces() {
-        return stackTraces;
-      }
-    };
+  private StackTraceElement[] decodeStackTraces(JsonArray stackTraces) {
+    StackTraceElement[] result = new StackTraceElement[stackTraces.size()];
+    int idx = 0;
+    for (JsonElement element : stackTraces) {
+      JsonObject obj = element.getAsJsonObject();
+      JsonElement file = obj.get("file");
+      result[idx++] = new StackTraceElement(obj.get("className").getAsString(), obj.get("method").getAsString(),
+                                            file == null || file.isJsonNull() ? null : file.getAsString(),
+                                            obj.get("line").getAsInt());
+    }
+    return result;
   }
 }
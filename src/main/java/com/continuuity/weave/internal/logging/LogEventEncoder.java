@@ -0,0 +1,29 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes {@link ILoggingEvent} into the payload of a kafka message. Caller data is only encoded if the event
+ * already has it, as computing it on the encoding thread gives a meaningless result.
+ */
+interface LogEventEncoder {
+
+  ByteBuffer encode(ILoggingEvent event);
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock free ring buffer of {@link ILoggingEvent}. Slots are preallocated and each one carries a
+ * sequence number telling whether it is free for the producer or filled for the consumer of a given position,
+ * so that producers only contend on a CAS of the tail position. Events that don't fit are handled according to
+ * the {@link OverflowPolicy}.
+ */
+final class LogEventRingBuffer {
+
+  /**
+   * Behavior when an event is offered to a full buffer.
+   */
+  enum OverflowPolicy {
+    /**
+     * Drops the oldest event in the buffer to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drops DEBUG and TRACE events once the buffer is three quarters full, so that the remaining capacity is
+     * kept for events of higher levels. Other events are dropped when the buffer is full.
+     */
+    DROP_DEBUG,
+
+    /**
+     * Blocks the logging thread until there is room.
+     */
+    BLOCK
+  }
+
+  private static final long BLOCK_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final int mask;
+  private final AtomicReferenceArray<ILoggingEvent> events;
+  private final AtomicLongArray sequences;
+  private final AtomicLong head;
+  private final AtomicLong tail;
+  private final AtomicLong dropped;
+  private final OverflowPolicy policy;
+  private final int debugLimit;
+  private volatile boolean closed;
+
+  /**
+   * Creates a buffer with capacity of the given size rounded up to a power of two.
+   */
+  LogEventRingBuffer(int size, OverflowPolicy policy) {
+    Preconditions.checkArgument(size > 0 && size <= (1 << 30), "Invalid buffer size %s", size);
+    int capacity = Integer.highestOneBit(size);
+    capacity = capacity < size ? capacity << 1 : capacity;
+
+    this.mask = capacity - 1;
+    this.events = new AtomicReferenceArray<ILoggingEvent>(capacity);
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+    this.head = new AtomicLong();
+    this.tail = new AtomicLong();
+    this.dropped = new AtomicLong();
+    this.policy = policy;
+    this.debugLimit = capacity - capacity / 4;
+  }
+
+  /**
+   * Adds an event to the buffer, applying the overflow policy if it is full.
+   *
+   * @param event The event to add.
+   * @param canBlock {@code false} to drop instead of block for the {@link OverflowPolicy#BLOCK} policy.
+   * @return {@code true} if the event is added, {@code false} if it is dropped.
+   */
+  boolean offer(ILoggingEvent event, boolean canBlock) {
+    if (policy == OverflowPolicy.DROP_DEBUG && !event.getLevel().isGreaterOrEqual(Level.INFO) && size() >= debugLimit) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    while (!tryOffer(event)) {
+      if (policy == OverflowPolicy.DROP_OLDEST) {
+        if (poll() != null) {
+          dropped.incrementAndGet();
+        }
+      } else if (policy == OverflowPolicy.BLOCK && canBlock && !closed) {
+        LockSupport.parkNanos(this, BLOCK_WAIT_NANOS);
+      } else {
+        dropped.incrementAndGet();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes and returns the oldest event in the buffer, or {@code null} if the buffer is empty.
+   */
+  ILoggingEvent poll() {
+    long pos = head.get();
+    while (true) {
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - (pos + 1);
+      if (diff < 0) {
+        return null;
+      }
+      if (diff == 0 && head.compareAndSet(pos, pos + 1)) {
+        ILoggingEvent event = events.get(idx);
+        events.lazySet(idx, null);
+        // Frees the slot for the producer of the next round.
+        sequences.lazySet(idx, pos + mask + 1);
+        return event;
+      }
+      pos = head.get();
+    }
+  }
+
+  boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Returns the number of events in the buffer. It's just approximate under concurrent modification.
+   */
+  int size() {
+    long size = tail.get() - head.get();
+    return (int) Math.max(0L, Math.min(size, mask + 1));
+  }
+
+  /**
+   * Returns the number of events dropped so far.
+   */
+  long getDropped() {
+    return dropped.get();
+  }
+
+  /**
+   * Releases threads blocked in {@link #offer(ILoggingEvent, boolean)}. Events offered afterwards to a full buffer
+   * are dropped.
+   */
+  void close() {
+    closed = true;
+  }
+
+  private boolean tryOffer(ILoggingEvent event) {
+    long pos = tail.get();
+    while (true) {
+      int idx = (int) pos & mask;
+      long diff = sequences.get(idx) - pos;
+      if (diff < 0) {
+        return false;
+      }
+      if (diff == 0 && tail.compareAndSet(pos, pos + 1)) {
+        events.lazySet(idx, event);
+        // Publishes the event to the consumer. The volatile write orders it after the event write.
+        sequences.set(idx, pos + 1);
+        return true;
+      }
+      pos = tail.get();
+    }
+  }
+}
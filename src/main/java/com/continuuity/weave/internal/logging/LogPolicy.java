@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+/**
+ * Changes log levels and sampling of the current process at runtime. Only effective when logback is the
+ * logging backend.
+ */
+public final class LogPolicy {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogPolicy.class);
+
+  /**
+   * Sets the level of the given logger.
+   *
+   * @param loggerName Name of the logger, {@link Logger#ROOT_LOGGER_NAME} for the root logger.
+   * @param level Name of the level, as in {@link com.continuuity.weave.api.logging.LogEntry.Level}.
+   * @return {@code true} if the level is changed.
+   */
+  public static boolean setLogLevel(String loggerName, String level) {
+    LoggerContext context = getLoggerContext();
+    if (context == null) {
+      return false;
+    }
+    // Logback doesn't have FATAL.
+    Level logbackLevel = "FATAL".equalsIgnoreCase(level) ? Level.ERROR : Level.toLevel(level, null);
+    if (logbackLevel == null) {
+      LOG.warn("Ignoring unknown log level " + level + " for logger " + loggerName);
+      return false;
+    }
+    context.getLogger(loggerName).setLevel(logbackLevel);
+    LOG.info("Log level of " + loggerName + " set to " + logbackLevel);
+    return true;
+  }
+
+  /**
+   * Sets every {@link KafkaAppender} attached to the root logger to publish only one in every {@code interval}
+   * log events of the given level.
+   *
+   * @return {@code true} if any appender is changed.
+   */
+  public static boolean setSampleInterval(String level, int interval) {
+    LoggerContext context = getLoggerContext();
+    if (context == null) {
+      return false;
+    }
+    Level logbackLevel = "FATAL".equalsIgnoreCase(level) ? Level.ERROR : Level.toLevel(level, null);
+    if (logbackLevel == null || interval <= 0) {
+      LOG.warn("Ignoring invalid log sampling " + interval + " for level " + level);
+      return false;
+    }
+
+    boolean changed = false;
+    Iterator<Appender<ILoggingEvent>> iterator = context.getLogger(Logger.ROOT_LOGGER_NAME).iteratorForAppenders();
+    while (iterator.hasNext()) {
+      Appender<ILoggingEvent> appender = iterator.next();
+      if (appender instanceof KafkaAppender) {
+        ((KafkaAppender) appender).setSampleInterval(logbackLevel, interval);
+        changed = true;
+      }
+    }
+    if (changed) {
+      LOG.info("Log sampling of " + logbackLevel + " set to one in " + interval);
+    }
+    return changed;
+  }
+
+  private static LoggerContext getLoggerContext() {
+    ILoggerFactory loggerFactory = LoggerFactory.getILoggerFactory();
+    if (loggerFactory instanceof LoggerContext) {
+      return (LoggerContext) loggerFactory;
+    }
+    LOG.warn("Log policy is not supported for " + loggerFactory.getClass().getName());
+    return null;
+  }
+
+  private LogPolicy() {
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A FIFO of log records spilled to memory mapped segment files in a directory. Each record is
+ * {@code [LENGTH][PAYLOAD]}, with the length written after the payload so that a partially written record is
+ * never read. Zero length marks the end of a segment, as new segment files are zero filled. When the total
+ * size of segments exceeds the limit, the oldest segment is discarded.
+ * <p/>
+ * A polled record is marked consumed by negating its length, so that segments left by a previous process are
+ * replayed from the first record not polled. Records polled but not yet written to disk can be delivered again
+ * after a crash. Instances are not thread safe.
+ */
+final class LogSpillBuffer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LogSpillBuffer.class);
+  private static final String SEGMENT_PREFIX = "spill-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File dir;
+  private final int segmentSize;
+  private final long maxBytes;
+  private final LinkedList<Segment> segments;
+  private long nextSegmentId;
+  private long dropped;
+
+  LogSpillBuffer(File dir, int segmentSize, long maxBytes) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create spill directory " + dir);
+    }
+    this.dir = dir;
+    this.segmentSize = segmentSize;
+    this.maxBytes = maxBytes;
+    this.segments = Lists.newLinkedList();
+    recover();
+  }
+
+  /**
+   * Appends a record. The position of the given buffer is not changed.
+   *
+   * @return {@code true} if the record is appended, {@code false} if it is larger than a segment.
+   */
+  boolean append(ByteBuffer record) throws IOException {
+    int size = record.remaining();
+    if (size + 4 > segmentSize) {
+      dropped++;
+      return false;
+    }
+
+    Segment tail = segments.peekLast();
+    if (tail == null || tail.writePos + 4 + size > tail.buffer.capacity()) {
+      tail = rotate();
+    }
+
+    ByteBuffer buffer = tail.buffer.duplicate();
+    buffer.position(tail.writePos + 4);
+    buffer.put(record.duplicate());
+    tail.buffer.putInt(tail.writePos, size);
+    tail.writePos += 4 + size;
+    return true;
+  }
+
+  /**
+   * Removes and returns the oldest record, or {@code null} if there is none.
+   */
+  ByteBuffer poll() {
+    while (!segments.isEmpty()) {
+      Segment head = segments.getFirst();
+      int size = head.nextSize();
+      if (size > 0) {
+        ByteBuffer record = ByteBuffer.allocate(size);
+        ByteBuffer buffer = head.buffer.duplicate();
+        buffer.position(head.readPos + 4).limit(head.readPos + 4 + size);
+        record.put(buffer).flip();
+        head.buffer.putInt(head.readPos, -size);
+        head.readPos += 4 + size;
+        return record;
+      }
+      if (segments.size() == 1) {
+        return null;
+      }
+      delete(segments.removeFirst());
+    }
+    return null;
+  }
+
+  boolean isEmpty() {
+    // Segments other than the head always have records.
+    return segments.isEmpty() || (segments.size() == 1 && segments.getFirst().nextSize() <= 0);
+  }
+
+  /**
+   * Returns the number of records discarded due to the size limit.
+   */
+  long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Flushes the segments to disk.
+   */
+  void flush() {
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+  }
+
+  private Segment rotate() throws IOException {
+    // Removes the tail segment if it is fully consumed.
+    if (segments.size() == 1 && segments.getFirst().nextSize() <= 0) {
+      delete(segments.removeFirst());
+    }
+
+    Segment segment = open(new File(dir, SEGMENT_PREFIX + nextSegmentId++ + SEGMENT_SUFFIX), segmentSize);
+    segments.add(segment);
+
+    while (segments.size() > 1 && (long) segments.size() * segmentSize > maxBytes) {
+      Segment head = segments.removeFirst();
+      int count = 0;
+      while (head.nextSize() > 0) {
+        head.readPos += 4 + head.nextSize();
+        count++;
+      }
+      dropped += count;
+      LOG.warn("Log spill buffer is full. Discarded " + count + " log records in " + head.file);
+      delete(head);
+    }
+    return segment;
+  }
+
+  private void recover() throws IOException {
+    File[] files = dir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    List<File> segmentFiles = files == null ? Collections.<File>emptyList() : Arrays.asList(files);
+    Collections.sort(segmentFiles, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        long id1 = getSegmentId(o1);
+        long id2 = getSegmentId(o2);
+        return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+      }
+    });
+
+    for (File file : segmentFiles) {
+      nextSegmentId = getSegmentId(file) + 1;
+      Segment segment = open(file, (int) file.length());
+      // Records are consumed in order, hence reading resumes at the first one with a positive length.
+      int readPos = -1;
+      int size = segment.sizeAt(0);
+      while (size != 0) {
+        if (size > 0 && readPos < 0) {
+          readPos = segment.writePos;
+        }
+        segment.writePos += 4 + Math.abs(size);
+        size = segment.sizeAt(segment.writePos);
+      }
+      segment.readPos = readPos < 0 ? segment.writePos : readPos;
+      if (segment.readPos == segment.writePos) {
+        delete(segment);
+      } else {
+        segments.add(segment);
+      }
+    }
+    if (!segments.isEmpty()) {
+      LOG.info("Recovered " + segments.size() + " log spill segments from " + dir);
+    }
+  }
+
+  private long getSegmentId(File file) {
+    String name = file.getName();
+    try {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  private Segment open(File file, int size) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(size);
+      return new Segment(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+    } finally {
+      Closeables.closeQuietly(raf);
+    }
+  }
+
+  private void delete(Segment segment) {
+    if (!segment.file.delete()) {
+      LOG.warn("Failed to delete log spill segment " + segment.file);
+    }
+  }
+
+  /**
+   * A memory mapped segment file.
+   */
+  private static final class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int readPos;
+    private int writePos;
+
+    Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Returns the size of the record at the read position, or a non-positive value if there is none.
+     */
+    int nextSize() {
+      return Math.max(sizeAt(readPos), 0);
+    }
+
+    /**
+     * Returns the length of the record at the given position, negative if it is consumed, or {@code 0} if there
+     * is none.
+     */
+    int sizeAt(int pos) {
+      if (pos + 4 > buffer.capacity()) {
+        return 0;
+      }
+      int size = buffer.getInt(pos);
+      return (size != Integer.MIN_VALUE && pos + 4 + Math.abs(size) <= buffer.capacity()) ? size : 0;
+    }
+  }
+}
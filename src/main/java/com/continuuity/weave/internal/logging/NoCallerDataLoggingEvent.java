@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggerContextVO;
+import org.slf4j.Marker;
+
+import java.util.Map;
+
+/**
+ * An {@link ILoggingEvent} that has no caller data, so that it is never computed for it. Used instead of
+ * modifying the given event, which is shared by all appenders of the logger.
+ */
+final class NoCallerDataLoggingEvent implements ILoggingEvent {
+
+  private static final StackTraceElement[] NO_CALLER_DATA = new StackTraceElement[0];
+
+  private final ILoggingEvent event;
+
+  NoCallerDataLoggingEvent(ILoggingEvent event) {
+    this.event = event;
+  }
+
+  @Override
+  public StackTraceElement[] getCallerData() {
+    return NO_CALLER_DATA;
+  }
+
+  @Override
+  public boolean hasCallerData() {
+    return false;
+  }
+
+  @Override
+  public String getThreadName() {
+    return event.getThreadName();
+  }
+
+  @Override
+  public Level getLevel() {
+    return event.getLevel();
+  }
+
+  @Override
+  public String getMessage() {
+    return event.getMessage();
+  }
+
+  @Override
+  public Object[] getArgumentArray() {
+    return event.getArgumentArray();
+  }
+
+  @Override
+  public String getFormattedMessage() {
+    return event.getFormattedMessage();
+  }
+
+  @Override
+  public String getLoggerName() {
+    return event.getLoggerName();
+  }
+
+  @Override
+  public LoggerContextVO getLoggerContextVO() {
+    return event.getLoggerContextVO();
+  }
+
+  @Override
+  public IThrowableProxy getThrowableProxy() {
+    return event.getThrowableProxy();
+  }
+
+  @Override
+  public Marker getMarker() {
+    return event.getMarker();
+  }
+
+  @Override
+  public Map<String, String> getMDCPropertyMap() {
+    return event.getMDCPropertyMap();
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  public Map<String, String> getMdc() {
+    return event.getMdc();
+  }
+
+  @Override
+  public long getTimeStamp() {
+    return event.getTimeStamp();
+  }
+
+  @Override
+  public void prepareForDeferredProcessing() {
+    event.prepareForDeferredProcessing();
+  }
+}
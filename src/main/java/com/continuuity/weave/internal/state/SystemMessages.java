@@ -16,12 +16,22 @@
 package com.continuuity.weave.internal.state;
 
 import com.continuuity.weave.api.Command;
+import org.slf4j.Logger;
 
 /**
  * Collection of predefined system messages.
  */
 public final class SystemMessages {
 
+  /**
+   * Command for changing log levels and sampling of runnables. Options are {@link #LOG_LEVEL_PREFIX} followed by
+   * logger name mapped to level name, and {@link #LOG_SAMPLE_PREFIX} followed by level name mapped to the sampling
+   * interval.
+   */
+  public static final String LOG_POLICY = "logPolicy";
+  public static final String LOG_LEVEL_PREFIX = "level:";
+  public static final String LOG_SAMPLE_PREFIX = "sample:";
+
   private static final Command STOP_COMMAND = Command.Builder.of("stop").build();
 
   public static Message stopApplication() {
@@ -32,6 +42,38 @@ public final class SystemMessages {
     return new SimpleMessage(Message.Type.SYSTEM, Message.Scope.RUNNABLE, runnableName, STOP_COMMAND);
   }
 
+  /**
+   * Creates a message for setting the log level of a logger.
+   *
+   * @param runnableName Name of the runnable, or {@code null} for all runnables.
+   * @param loggerName Name of the logger, or {@code null} for the root logger.
+   * @param level Name of the log level.
+   */
+  public static Message setLogLevel(String runnableName, String loggerName, String level) {
+    String name = loggerName == null ? Logger.ROOT_LOGGER_NAME : loggerName;
+    return logPolicy(runnableName, Command.Builder.of(LOG_POLICY).addOption(LOG_LEVEL_PREFIX + name, level).build());
+  }
+
+  /**
+   * Creates a message for sending only one in every {@code interval} log events of the given level.
+   *
+   * @param runnableName Name of the runnable, or {@code null} for all runnables.
+   * @param level Name of the log level.
+   * @param interval The sampling interval, {@code 1} to send all.
+   */
+  public static Message setLogSampling(String runnableName, String level, int interval) {
+    return logPolicy(runnableName, Command.Builder.of(LOG_POLICY)
+                                                  .addOption(LOG_SAMPLE_PREFIX + level, Integer.toString(interval))
+                                                  .build());
+  }
+
+  private static Message logPolicy(String runnableName, Command command) {
+    if (runnableName == null) {
+      return new SimpleMessage(Message.Type.SYSTEM, Message.Scope.ALL_RUNNABLE, null, command);
+    }
+    return new SimpleMessage(Message.Type.SYSTEM, Message.Scope.RUNNABLE, runnableName, command);
+  }
+
   private SystemMessages() {
   }
 }
@@ -158,7 +158,7 @@ public abstract class AbstractServiceController implements ServiceController {
    * @param <V> Type of the completion result
    * @return A {@link ListenableFuture} that will be completed when message is processed.
    */
-  private <V> ListenableFuture<V> sendMessage(final Message message, final V completionResult) {
+  protected final <V> ListenableFuture<V> sendMessage(final Message message, final V completionResult) {
     return Futures.transform(zkClient.create(getZKPath("messages/msg"), MessageCodec.encode(message),
                                              CreateMode.PERSISTENT_SEQUENTIAL), new AsyncFunction<String, V>() {
       @Override
@@ -23,9 +23,11 @@ import com.continuuity.weave.internal.api.RunIds;
 import com.continuuity.weave.internal.json.WeaveSpecificationAdapter;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCallback;
+import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.internal.state.ZKServiceDecorator;
 import com.continuuity.zookeeper.ZKClients;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Function;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
@@ -262,11 +264,36 @@ public final class ApplicationMasterService implements Service {
   }
 
   private ListenableFuture<String> processMessage(String messageId, Message message) {
+    if (message.getType() == Message.Type.SYSTEM
+      && SystemMessages.LOG_POLICY.equals(message.getCommand().getCommand())) {
+      return forwardToRunnables(messageId, message);
+    }
+
     SettableFuture<String> result = SettableFuture.create();
     // TODO: Handling custom message
     return result;
   }
 
+  /**
+   * Forwards a message to the containers of the runnable it targets, or to all containers if the scope is
+   * {@link Message.Scope#ALL_RUNNABLE}. Containers launched afterwards don't receive it.
+   */
+  private ListenableFuture<String> forwardToRunnables(final String messageId, Message message) {
+    List<ListenableFuture<String>> futures = Lists.newArrayList();
+    for (WeaveContainerLauncher launcher : launchers) {
+      if (message.getScope() == Message.Scope.ALL_RUNNABLE
+        || launcher.getRunnableName().equals(message.getRunnableName())) {
+        futures.add(launcher.sendMessage(message));
+      }
+    }
+    return Futures.transform(Futures.allAsList(futures), new Function<List<String>, String>() {
+      @Override
+      public String apply(List<String> input) {
+        return messageId;
+      }
+    });
+  }
+
   private Resource createCapability(ResourceSpecification resourceSpec) {
     Resource capability = Records.newRecord(Resource.class);
 
@@ -19,6 +19,7 @@ import com.continuuity.weave.api.LocalFile;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.RuntimeSpecification;
 import com.continuuity.weave.api.WeaveSpecification;
+import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCodec;
 import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.internal.utils.YarnUtils;
@@ -26,6 +27,7 @@ import com.continuuity.zookeeper.ZKClient;
 import com.google.common.util.concurrent.AbstractIdleService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.apache.hadoop.yarn.api.records.LocalResource;
 import org.apache.hadoop.yarn.api.records.LocalResourceType;
@@ -71,6 +73,20 @@ public final class WeaveContainerLauncher extends AbstractIdleService {
     this.zkConnectStr = zkConnectStr;
   }
 
+  public String getRunnableName() {
+    return runnableName;
+  }
+
+  /**
+   * Sends a message to the runnable running in the container.
+   *
+   * @return A {@link ListenableFuture} that will be completed when the message is created in ZK.
+   */
+  public ListenableFuture<String> sendMessage(Message message) {
+    return zkClient.create("/" + runId + "/messages/msg", MessageCodec.encode(message),
+                           CreateMode.PERSISTENT_SEQUENTIAL);
+  }
+
   @Override
   protected void startUp() throws Exception {
     RuntimeSpecification runtimeSpec = weaveSpec.getRunnables().get(runnableName);
@@ -102,10 +118,9 @@ public final class WeaveContainerLauncher extends AbstractIdleService {
   @Override
   protected void shutDown() throws Exception {
     // TODO: Need to unify with WeaveController
-    byte[] data = MessageCodec.encode(SystemMessages.stopRunnable(runnableName));
     final SettableFuture<String> deleteFuture = SettableFuture.create();
     // TODO: Should wait for instance node to go away as well.
-    Futures.addCallback(zkClient.create("/" + runId + "/messages/msg", data, CreateMode.PERSISTENT_SEQUENTIAL),
+    Futures.addCallback(sendMessage(SystemMessages.stopRunnable(runnableName)),
                         new FutureCallback<String>() {
                           @Override
                           public void onSuccess(String result) {
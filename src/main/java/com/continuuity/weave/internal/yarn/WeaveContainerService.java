@@ -19,8 +19,10 @@ import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveContext;
 import com.continuuity.weave.api.WeaveRunnable;
 import com.continuuity.weave.api.WeaveRunnableSpecification;
+import com.continuuity.weave.internal.logging.LogPolicy;
 import com.continuuity.weave.internal.state.Message;
 import com.continuuity.weave.internal.state.MessageCallback;
+import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.internal.state.ZKServiceDecorator;
 import com.continuuity.weave.internal.utils.Instances;
 import com.google.common.base.Preconditions;
@@ -37,6 +39,7 @@ import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Map;
 import java.util.concurrent.Executor;
 
 /**
@@ -77,11 +80,35 @@ public final class WeaveContainerService implements Service {
   }
 
   private ListenableFuture<String> processMessage(String messageId, Message message) {
+    if (message.getType() == Message.Type.SYSTEM
+      && SystemMessages.LOG_POLICY.equals(message.getCommand().getCommand())) {
+      applyLogPolicy(message.getCommand().getOptions());
+      return Futures.immediateFuture(messageId);
+    }
+
     SettableFuture<String> result = SettableFuture.create();
 
     return result;
   }
 
+  private void applyLogPolicy(Map<String, String> options) {
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      String key = option.getKey();
+      if (key.startsWith(SystemMessages.LOG_LEVEL_PREFIX)) {
+        LogPolicy.setLogLevel(key.substring(SystemMessages.LOG_LEVEL_PREFIX.length()), option.getValue());
+      } else if (key.startsWith(SystemMessages.LOG_SAMPLE_PREFIX)) {
+        try {
+          LogPolicy.setSampleInterval(key.substring(SystemMessages.LOG_SAMPLE_PREFIX.length()),
+                                      Integer.parseInt(option.getValue()));
+        } catch (NumberFormatException e) {
+          LOG.warn("Ignoring invalid log sampling interval " + option.getValue());
+        }
+      } else {
+        LOG.warn("Ignoring unknown log policy option " + key);
+      }
+    }
+  }
+
   private Supplier<? extends JsonElement> createLiveNodeSupplier() {
     return new Supplier<JsonElement>() {
       @Override
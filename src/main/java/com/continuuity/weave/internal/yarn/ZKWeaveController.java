@@ -16,18 +16,25 @@
 package com.continuuity.weave.internal.yarn;
 
 import com.continuuity.internal.kafka.client.SimpleKafkaClient;
+import com.continuuity.internal.kafka.client.ZKOffsetStore;
 import com.continuuity.kafka.client.FetchedMessage;
 import com.continuuity.kafka.client.KafkaClient;
+import com.continuuity.kafka.client.OffsetStore;
+import com.continuuity.weave.api.Command;
 import com.continuuity.weave.api.RunId;
 import com.continuuity.weave.api.WeaveController;
 import com.continuuity.weave.api.logging.LogEntry;
 import com.continuuity.weave.api.logging.LogHandler;
+import com.continuuity.weave.internal.logging.BinaryLogEntryDecoder;
 import com.continuuity.weave.internal.logging.LogEntryDecoder;
+import com.continuuity.weave.internal.state.Message;
+import com.continuuity.weave.internal.state.SystemMessages;
 import com.continuuity.weave.internal.utils.Services;
 import com.continuuity.zookeeper.RetryStrategies;
 import com.continuuity.zookeeper.ZKClientService;
 import com.continuuity.zookeeper.ZKClientServices;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -39,6 +46,7 @@ import com.google.gson.GsonBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -53,10 +61,12 @@ final class ZKWeaveController extends AbstractServiceController implements Weave
 
   private static final Logger LOG = LoggerFactory.getLogger(ZKWeaveController.class);
   private static final String LOG_TOPIC = "log";
+  private static final String LOG_OFFSETS_PATH = "offsets";
 
   private final ZKClientService zkClient;
   private final Queue<LogHandler> logHandlers;
   private final KafkaClient kafkaClient;
+  private final OffsetStore offsetStore;
   private final Thread logPoller;
 
   ZKWeaveController(String zkConnect, int zkTimeout, RunId runId, Collection<LogHandler> logHandlers) {
@@ -69,6 +79,8 @@ final class ZKWeaveController extends AbstractServiceController implements Weave
                                       RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS)));
     this.logHandlers = new ConcurrentLinkedQueue<LogHandler>(logHandlers);
     this.kafkaClient = new SimpleKafkaClient(String.format("%s/%s/kafka", zkConnect, runId));
+    // Offsets of the log topic are kept, so that a reattached controller resumes from where it left off.
+    this.offsetStore = new ZKOffsetStore(zkClient, String.format("/%s/%s", runId, LOG_OFFSETS_PATH));
     this.logPoller = createLogPoller();
   }
 
@@ -126,20 +138,51 @@ final class ZKWeaveController extends AbstractServiceController implements Weave
     logHandlers.add(handler);
   }
 
+  @Override
+  public ListenableFuture<Command> setLogLevel(String runnableName, String loggerName, LogEntry.Level level) {
+    Message message = SystemMessages.setLogLevel(runnableName, loggerName, level.name());
+    return sendMessage(message, message.getCommand());
+  }
+
+  @Override
+  public ListenableFuture<Command> setLogSampling(String runnableName, LogEntry.Level level, int interval) {
+    Preconditions.checkArgument(interval > 0, "Sampling interval must be positive.");
+    Message message = SystemMessages.setLogSampling(runnableName, level.name(), interval);
+    return sendMessage(message, message.getCommand());
+  }
+
   private Thread createLogPoller() {
     Thread poller = new Thread("weave-log-poller") {
       @Override
       public void run() {
         LOG.info("Weave log poller thread started.");
         Gson gson = new GsonBuilder().registerTypeAdapter(LogEntry.class, new LogEntryDecoder()).create();
-        Iterator<FetchedMessage> messageIterator = kafkaClient.consume(LOG_TOPIC, 0, 0, 1048576);
+        Iterator<FetchedMessage> messageIterator = kafkaClient.consume(LOG_TOPIC, 0, getStartOffset(), 1048576);
         while (messageIterator.hasNext()) {
-          String json = Charsets.UTF_8.decode(messageIterator.next().getBuffer()).toString();
-          LogEntry entry = gson.fromJson(json, LogEntry.class);
+          FetchedMessage message = messageIterator.next();
+          ByteBuffer buffer = message.getBuffer();
+          LogEntry entry;
+          if (BinaryLogEntryDecoder.isBinary(buffer)) {
+            entry = BinaryLogEntryDecoder.decode(buffer);
+          } else {
+            entry = gson.fromJson(Charsets.UTF_8.decode(buffer).toString(), LogEntry.class);
+          }
           if (entry != null) {
             invokeHandlers(entry);
           }
+          offsetStore.commit(LOG_TOPIC, 0, message.getOffset());
+        }
+      }
+
+      private long getStartOffset() {
+        try {
+          return Math.max(offsetStore.getOffset(LOG_TOPIC, 0).get(), 0L);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } catch (Exception e) {
+          LOG.warn("Failed to get committed log offset. Start from the beginning.", e);
         }
+        return 0L;
       }
 
       private void invokeHandlers(LogEntry entry) {
@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Test for the built-in {@link CompressionCodec}s.
+ */
+public class CompressionCodecTest {
+
+  @Test
+  public void testGZip() throws IOException {
+    testRoundTrip(Compression.GZIP);
+    testRoundTrip(CompressionCodecs.gzip(Deflater.BEST_SPEED));
+
+    // Output grows beyond the initial size, which is capped relative to the compressed size
+    byte[] zeros = new byte[1000000];
+    Assert.assertEquals(ChannelBuffers.wrappedBuffer(zeros),
+                        Compression.GZIP.decompress(compress(Compression.GZIP, zeros)));
+
+    // Trailer mismatch, with ISIZE of 0, a bit off and very large, or a different CRC32
+    byte[] data = createData();
+    for (int isize : new int[] { 0, data.length + 1, Integer.MAX_VALUE, -1 }) {
+      ChannelBuffer compressed = compress(Compression.GZIP, data);
+      compressed.setInt(compressed.writerIndex() - 4, Integer.reverseBytes(isize));
+      assertGZipFailure(compressed, "Corrupted GZIP data");
+    }
+    ChannelBuffer compressed = compress(Compression.GZIP, data);
+    int crcIndex = compressed.writerIndex() - 8;
+    compressed.setInt(crcIndex, ~compressed.getInt(crcIndex));
+    assertGZipFailure(compressed, "Corrupted GZIP data");
+
+    // Header fields running past the end of the input: FEXTRA length, FNAME and FCOMMENT without terminator
+    int[][] headers = {
+      { 0x1f, 0x8b, 8, 4, 0, 0, 0, 0, 0, 0, 0xff, 0xff, 1, 2 },
+      { 0x1f, 0x8b, 8, 4, 0, 0, 0, 0, 0, 0, 1 },
+      { 0x1f, 0x8b, 8, 8, 0, 0, 0, 0, 0, 0, 'a', 'b', 'c' },
+      { 0x1f, 0x8b, 8, 16, 0, 0, 0, 0, 0, 0, 'a', 'b', 'c' }
+    };
+    for (int[] header : headers) {
+      ChannelBuffer truncated = ChannelBuffers.buffer(header.length);
+      for (int b : header) {
+        truncated.writeByte(b);
+      }
+      assertGZipFailure(truncated, "Truncated GZIP header");
+    }
+  }
+
+  @Test
+  public void testSnappy() throws IOException {
+    testRoundTrip(Compression.SNAPPY);
+  }
+
+  @Test
+  public void testSnappyBlock() throws IOException {
+    testRoundTrip(CompressionCodecs.snappyBlock());
+  }
+
+  @Test
+  public void testForName() {
+    Assert.assertSame(Compression.NONE, CompressionCodecs.forName("none"));
+    Assert.assertSame(Compression.GZIP, CompressionCodecs.forName(" GZIP "));
+    Assert.assertSame(Compression.SNAPPY, CompressionCodecs.forName("snappy"));
+    Assert.assertSame(CompressionCodecs.snappyBlock(), CompressionCodecs.forName("snappy-block"));
+    Assert.assertEquals(CompressionCodecs.SNAPPY_BLOCK_CODE, CompressionCodecs.forName("snappy-block").getCode());
+
+    CompressionCodec gzip = CompressionCodecs.forName("gzip:9");
+    Assert.assertEquals(Compression.GZIP.getCode(), gzip.getCode());
+    Assert.assertEquals("gzip:9", gzip.toString());
+
+    for (String invalid : new String[] { "lz4", "gzip:10", "gzip:x" }) {
+      try {
+        CompressionCodecs.forName(invalid);
+        Assert.fail("Expected failure for " + invalid);
+      } catch (IllegalArgumentException e) {
+        // Expected
+      }
+    }
+  }
+
+  private void testRoundTrip(CompressionCodec codec) throws IOException {
+    byte[] data = createData();
+    ChannelBuffer compressed = compress(codec, data);
+    Assert.assertTrue(compressed.readableBytes() < data.length);
+    Assert.assertEquals(ChannelBuffers.wrappedBuffer(data), codec.decompress(compressed.duplicate()));
+
+    // Input that is not backed by an array
+    ChannelBuffer direct = ChannelBuffers.directBuffer(compressed.readableBytes());
+    direct.writeBytes(compressed.duplicate());
+    Assert.assertEquals(ChannelBuffers.wrappedBuffer(data), codec.decompress(direct));
+
+    // Per fetcher decompressor gives the same result
+    MessageSetDecompressor decompressor = new MessageSetDecompressor();
+    try {
+      Assert.assertEquals(ChannelBuffers.wrappedBuffer(data), decompressor.decompress(codec, compressed.duplicate()));
+      Assert.assertEquals(ChannelBuffers.wrappedBuffer(data), decompressor.decompress(codec, compressed.duplicate()));
+    } finally {
+      decompressor.close();
+    }
+
+    // Empty input
+    ChannelBuffer empty = compress(codec, new byte[0]);
+    Assert.assertFalse(codec.decompress(empty).readable());
+  }
+
+  private void assertGZipFailure(ChannelBuffer compressed, String message) {
+    MessageSetDecompressor decompressor = new MessageSetDecompressor();
+    try {
+      decompressor.decompress(Compression.GZIP, compressed);
+      Assert.fail("Expected failure: " + message);
+    } catch (IOException e) {
+      Assert.assertEquals(message, e.getMessage());
+    } finally {
+      decompressor.close();
+    }
+  }
+
+  private ChannelBuffer compress(CompressionCodec codec, byte[] data) throws IOException {
+    ChannelBuffer compressed = ChannelBuffers.dynamicBuffer();
+    codec.compress(ChannelBuffers.wrappedBuffer(data), compressed);
+    return compressed;
+  }
+
+  /**
+   * Creates compressible data that spans multiple compression blocks.
+   */
+  private byte[] createData() {
+    byte[] data = new byte[100000];
+    Random random = new Random(0);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return data;
+  }
+}
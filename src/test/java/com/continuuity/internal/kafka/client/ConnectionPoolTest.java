@@ -0,0 +1,172 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.collect.Sets;
+import junit.framework.Assert;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link ConnectionPool}.
+ */
+public class ConnectionPoolTest {
+
+  private ServerBootstrap serverBootstrap;
+  private Channel serverChannel;
+  private InetSocketAddress address;
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void init() {
+    serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                            Executors.newCachedThreadPool()));
+    serverChannel = serverBootstrap.bind(new InetSocketAddress("localhost", 0));
+    address = new InetSocketAddress("localhost", ((InetSocketAddress) serverChannel.getLocalAddress()).getPort());
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+    serverChannel.close().awaitUninterruptibly();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Test
+  public void testExclusive() throws Exception {
+    ConnectionPool pool = createPool(2, 0, 0);
+    try {
+      ConnectionPool.ConnectResult first = pool.connect(address);
+      ConnectionPool.ConnectResult second = pool.connect(address);
+      Channel firstChannel = getChannel(first);
+      Channel secondChannel = getChannel(second);
+      Assert.assertNotSame(firstChannel, secondChannel);
+
+      // Limit reached, shares an opened connection
+      ConnectionPool.ConnectResult third = pool.connect(address);
+      Channel thirdChannel = getChannel(third);
+      Assert.assertTrue(thirdChannel == firstChannel || thirdChannel == secondChannel);
+
+      // Released connections are reused, each by one request
+      third.release();
+      first.release();
+      second.release();
+      ConnectionPool.ConnectResult reused = pool.connect(address);
+      ConnectionPool.ConnectResult reused2 = pool.connect(address);
+      Set<Channel> reusedChannels = Sets.newIdentityHashSet();
+      reusedChannels.add(getChannel(reused));
+      reusedChannels.add(getChannel(reused2));
+      Assert.assertEquals(Sets.newHashSet(firstChannel, secondChannel), reusedChannels);
+      reused2.release();
+
+      // Closed connection is not reused
+      reused.release();
+      firstChannel.close().await();
+      secondChannel.close().await();
+      Channel newChannel = getChannel(pool.connect(address));
+      Assert.assertFalse(newChannel == firstChannel || newChannel == secondChannel);
+      Assert.assertTrue(newChannel.isConnected());
+    } finally {
+      pool.close().await();
+    }
+  }
+
+  @Test
+  public void testMultiplexed() throws Exception {
+    ConnectionPool pool = createPool(0, 0, 2);
+    try {
+      Set<Channel> channels = Sets.newIdentityHashSet();
+      for (int i = 0; i < 6; i++) {
+        ConnectionPool.ConnectResult result = pool.connect(address);
+        channels.add(getChannel(result));
+        result.release();
+      }
+      Assert.assertEquals(2, channels.size());
+
+      // Closed connection is replaced on the next use of its slot
+      Channel closed = channels.iterator().next();
+      closed.close().await();
+      Set<Channel> newChannels = Sets.newIdentityHashSet();
+      for (int i = 0; i < 2; i++) {
+        newChannels.add(getChannel(pool.connect(address)));
+      }
+      Assert.assertEquals(2, newChannels.size());
+      Assert.assertFalse(newChannels.contains(closed));
+    } finally {
+      pool.close().await();
+    }
+  }
+
+  @Test
+  public void testIdleEviction() throws Exception {
+    ConnectionPool pool = createPool(0, 100, 0);
+    try {
+      ConnectionPool.ConnectResult result = pool.connect(address);
+      Channel channel = getChannel(result);
+
+      // Leased connection is not evicted
+      TimeUnit.MILLISECONDS.sleep(300);
+      Assert.assertTrue(channel.isConnected());
+
+      result.release();
+      Assert.assertTrue(channel.getCloseFuture().await(5, TimeUnit.SECONDS));
+      Assert.assertNotSame(channel, getChannel(pool.connect(address)));
+    } finally {
+      pool.close().await();
+    }
+  }
+
+  @Test
+  public void testDedicated() throws Exception {
+    ConnectionPool pool = createPool(1, 0, 0);
+    Channel pooled = getChannel(pool.connect(address));
+    Channel dedicated = pool.connectDedicated(address).await().getChannel();
+    Assert.assertNotSame(pooled, dedicated);
+    Assert.assertTrue(dedicated.isConnected());
+
+    // Dedicated connections are closed with the pool
+    pool.close().await();
+    Assert.assertFalse(dedicated.isOpen());
+  }
+
+  private ConnectionPool createPool(int maxConnections, long idleTimeoutMillis, int multiplexedChannels) {
+    ClientBootstrap bootstrap = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(),
+                                                                                      Executors.newCachedThreadPool()));
+    return new ConnectionPool(bootstrap, scheduler, maxConnections, idleTimeoutMillis, TimeUnit.MILLISECONDS,
+                              multiplexedChannels);
+  }
+
+  private Channel getChannel(ConnectionPool.ConnectResult result) throws InterruptedException {
+    ChannelFuture future = result.getChannelFuture().await();
+    Assert.assertTrue(future.isSuccess());
+    return future.getChannel();
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+/**
+ * Test for {@link HashPartitioner}.
+ */
+public class HashPartitionerTest {
+
+  @Test
+  public void testKeyed() {
+    HashPartitioner partitioner = new HashPartitioner();
+
+    // Same key always goes to the same partition
+    int partition = partitioner.getPartition("key", 7);
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(partition, partitioner.getPartition("key", 7));
+    }
+
+    // Negative hash code still gives a valid partition
+    Object negative = new Object() {
+      @Override
+      public int hashCode() {
+        return Integer.MIN_VALUE + 3;
+      }
+    };
+    int p = partitioner.getPartition(negative, 5);
+    Assert.assertTrue(p >= 0 && p < 5);
+  }
+
+  @Test
+  public void testRoundRobin() {
+    HashPartitioner partitioner = new HashPartitioner();
+    int[] counts = new int[3];
+    for (int i = 0; i < 30; i++) {
+      counts[partitioner.getPartition(null, 3)]++;
+    }
+    for (int count : counts) {
+      Assert.assertEquals(10, count);
+    }
+  }
+}
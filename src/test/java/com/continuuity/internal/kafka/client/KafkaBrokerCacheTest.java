@@ -0,0 +1,158 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.weave.zk.InMemoryZKServer;
+import com.continuuity.zookeeper.ZKClientService;
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.apache.zookeeper.CreateMode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for {@link KafkaBrokerCache}.
+ */
+public class KafkaBrokerCacheTest {
+
+  private InMemoryZKServer zkServer;
+  private ZKClientService zkClient;
+  private KafkaBrokerCache brokerCache;
+
+  @Before
+  public void init() {
+    zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+    zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+    brokerCache = new KafkaBrokerCache(zkClient);
+  }
+
+  @After
+  public void finish() {
+    brokerCache.stopAndWait();
+    zkClient.stopAndWait();
+    zkServer.stopAndWait();
+  }
+
+  @Test
+  public void testPartitions() throws Exception {
+    registerBroker(1);
+    registerBroker(2);
+    registerTopic("topic", 1, 2);
+    registerTopic("topic", 2, 1);
+    registerTopic("single", 1, 1);
+    registerTopic("single", 2, 1);
+    brokerCache.startAndWait();
+
+    waitForPartitionSize("topic", 3);
+    waitForPartitionSize("single", 2);
+
+    // Partitions are numbered across brokers in broker id order
+    assertBroker("topic", 0, 1, 0);
+    assertBroker("topic", 1, 1, 1);
+    assertBroker("topic", 2, 2, 0);
+    Assert.assertNull(brokerCache.lookup("topic", 3));
+
+    // One partition on each broker gives two partitions, one on each broker
+    assertBroker("single", 0, 1, 0);
+    assertBroker("single", 1, 2, 0);
+
+    // Unknown topic goes to the broker with the smallest id
+    assertBroker("unknown", 0, 1, 0);
+    Assert.assertEquals(1, brokerCache.getPartitionSize("unknown"));
+    Assert.assertNull(brokerCache.lookup("unknown", 1));
+  }
+
+  @Test
+  public void testBrokerChange() throws Exception {
+    registerBroker(1);
+    registerBroker(2);
+    registerTopic("topic", 1, 1);
+    registerTopic("topic", 2, 1);
+    brokerCache.startAndWait();
+    waitForPartitionSize("topic", 2);
+    assertBroker("topic", 1, 2, 0);
+
+    final AtomicInteger changes = new AtomicInteger();
+    brokerCache.addChangeListener(new Runnable() {
+      @Override
+      public void run() {
+        changes.incrementAndGet();
+      }
+    }, MoreExecutors.sameThreadExecutor());
+
+    // A broker without partitions of any topic doesn't change any partition
+    registerBroker(3);
+    TimeUnit.MILLISECONDS.sleep(500);
+    Assert.assertEquals(0, changes.get());
+
+    // Partitions of a broker that goes away keep their numbers and are unavailable
+    zkClient.delete("/brokers/topics/topic/2").get();
+    zkClient.delete("/brokers/ids/2").get();
+    waitForChanges(changes, 1);
+    Assert.assertEquals(2, brokerCache.getPartitionSize("topic"));
+    assertBroker("topic", 0, 1, 0);
+    Assert.assertNull(brokerCache.lookup("topic", 1));
+
+    // The partitions are served again when the broker comes back
+    int count = changes.get();
+    registerBroker(2);
+    registerTopic("topic", 2, 1);
+    for (int i = 0; i < 100 && brokerCache.lookup("topic", 1) == null; i++) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    assertBroker("topic", 1, 2, 0);
+    Assert.assertTrue(changes.get() > count);
+  }
+
+  private void registerBroker(int id) throws Exception {
+    zkClient.create("/brokers/ids/" + id, ("creator:localhost:" + (9000 + id)).getBytes(Charsets.UTF_8),
+                    CreateMode.PERSISTENT).get();
+  }
+
+  private void registerTopic(String topic, int brokerId, int partitions) throws Exception {
+    zkClient.create("/brokers/topics/" + topic + "/" + brokerId, Integer.toString(partitions).getBytes(Charsets.UTF_8),
+                    CreateMode.PERSISTENT).get();
+  }
+
+  private void assertBroker(String topic, int partition, int brokerId, int localPartition) {
+    TopicBroker topicBroker = brokerCache.lookup(topic, partition);
+    Assert.assertNotNull(topicBroker);
+    Assert.assertEquals(9000 + brokerId, topicBroker.getAddress().getPort());
+    Assert.assertEquals(localPartition, topicBroker.getPartition());
+  }
+
+  private void waitForPartitionSize(String topic, int size) throws InterruptedException {
+    for (int i = 0; i < 100 && brokerCache.getPartitionSize(topic) != size; i++) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Assert.assertEquals(size, brokerCache.getPartitionSize(topic));
+  }
+
+  private void waitForChanges(AtomicInteger changes, int count) throws InterruptedException {
+    for (int i = 0; i < 100 && changes.get() < count; i++) {
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    Assert.assertTrue(changes.get() >= count);
+  }
+}
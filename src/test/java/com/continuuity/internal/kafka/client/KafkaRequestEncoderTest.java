@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.base.Charsets;
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Test for {@link KafkaRequestEncoder}.
+ */
+public class KafkaRequestEncoderTest {
+
+  @Test
+  public void testEncode() throws Exception {
+    ChannelBuffer body = ChannelBuffers.wrappedBuffer("message".getBytes(Charsets.UTF_8));
+    ChannelBuffer encoded = encode(KafkaRequest.createProduce("topic", 3, body));
+
+    Assert.assertEquals(encoded.readableBytes() - 4, encoded.readInt());
+    Assert.assertEquals(KafkaRequest.Type.PRODUCE.getId(), encoded.readShort());
+    Assert.assertEquals("topic", encoded.readBytes(encoded.readShort()).toString(Charsets.UTF_8));
+    Assert.assertEquals(3, encoded.readInt());
+    Assert.assertEquals("message", encoded.toString(Charsets.UTF_8));
+
+    // The body is shared, not copied
+    body.setByte(0, 'M');
+    Assert.assertEquals("Message", encoded.toString(Charsets.UTF_8));
+  }
+
+  @Test
+  public void testNoCopy() throws Exception {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) threadMXBean;
+    Assume.assumeTrue(mxBean.isThreadAllocatedMemorySupported() && mxBean.isThreadAllocatedMemoryEnabled());
+
+    int bodySize = 1024 * 1024;
+    int requests = 100;
+    ChannelBuffer body = ChannelBuffers.buffer(bodySize);
+    body.writerIndex(bodySize);
+
+    // Warm up
+    for (int i = 0; i < requests; i++) {
+      encode(KafkaRequest.createProduce("topic", 0, body));
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = mxBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < requests; i++) {
+      encode(KafkaRequest.createProduce("topic", 0, body));
+    }
+    long allocated = mxBean.getThreadAllocatedBytes(threadId) - before;
+
+    // Encoding must not allocate in proportion to the body size.
+    Assert.assertTrue("Allocated " + allocated + " bytes", allocated < bodySize);
+  }
+
+  private ChannelBuffer encode(KafkaRequest request) throws Exception {
+    return (ChannelBuffer) new KafkaRequestEncoder().encode(null, null, request);
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void testPercentile() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Assert.assertEquals(0, histogram.getPercentile(99, TimeUnit.MICROSECONDS));
+    Assert.assertEquals(0, histogram.getMean(TimeUnit.MICROSECONDS));
+
+    for (int i = 0; i < 90; i++) {
+      histogram.record(100, TimeUnit.MICROSECONDS);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(1, TimeUnit.MILLISECONDS);
+    }
+
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(190, histogram.getMean(TimeUnit.MICROSECONDS));
+
+    // Percentiles are reported as the upper bound of the power of two bucket
+    Assert.assertEquals(128, histogram.getPercentile(50, TimeUnit.MICROSECONDS));
+    Assert.assertEquals(128, histogram.getPercentile(90, TimeUnit.MICROSECONDS));
+    Assert.assertEquals(1024, histogram.getPercentile(91, TimeUnit.MICROSECONDS));
+    Assert.assertEquals(1024, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+  }
+
+  @Test
+  public void testBounds() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    // Sub-microsecond latencies go to the first bucket, very large ones to the last
+    histogram.record(10, TimeUnit.NANOSECONDS);
+    Assert.assertEquals(1, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+    histogram.record(100, TimeUnit.DAYS);
+    Assert.assertEquals(1L << 39, histogram.getPercentile(100, TimeUnit.MICROSECONDS));
+  }
+}
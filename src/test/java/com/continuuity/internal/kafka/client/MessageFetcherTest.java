@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.CompressionCodec;
+import com.continuuity.kafka.client.FetchedMessage;
+import com.continuuity.kafka.client.KafkaClient;
+import com.continuuity.kafka.client.MessageCallback;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link MessageFetcher}.
+ */
+public class MessageFetcherTest {
+
+  private ScheduledExecutorService scheduler;
+  private RecordingSender sender;
+
+  @Before
+  public void init() {
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    sender = new RecordingSender();
+  }
+
+  @After
+  public void finish() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testCallback() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    MessageFetcher fetcher = createFetcher(createConfig(1, 2, false), MoreExecutors.sameThreadExecutor(), callback);
+    fetcher.start();
+
+    KafkaRequest request = sender.next();
+    Assert.assertEquals(KafkaRequest.Type.FETCH, request.getType());
+    Assert.assertEquals(0L, request.getBody().getLong(0));
+
+    request.getResponseHandler().received(fetchResponse("m1", "m2"));
+    Assert.assertEquals(2, callback.messages.size());
+    Assert.assertEquals("m1", Charsets.UTF_8.decode(callback.messages.get(0).getBuffer()).toString());
+    Assert.assertEquals(messageSize("m1"), callback.messages.get(0).getOffset());
+    Assert.assertEquals(messageSize("m1") * 2, callback.messages.get(1).getOffset());
+
+    // Next fetch continues after the last message
+    Assert.assertEquals(messageSize("m1") * 2, sender.next().getBody().getLong(0));
+
+    fetcher.cancel();
+    Assert.assertTrue(callback.finished);
+    Assert.assertNull(callback.failure);
+    Assert.assertTrue(sender.closed);
+  }
+
+  @Test
+  public void testOffsetReset() throws Exception {
+    RecordingCallback callback = new RecordingCallback();
+    MessageFetcher fetcher = createFetcher(createConfig(1, 2, true), MoreExecutors.sameThreadExecutor(), callback);
+    fetcher.start();
+
+    // Out of range offset continues from the earliest offset
+    sender.next().getResponseHandler().received(
+      new KafkaResponse(KafkaResponse.ErrorCode.OFFSET_OUT_OF_RANGE, ChannelBuffers.EMPTY_BUFFER, 6));
+    KafkaRequest request = sender.next();
+    Assert.assertEquals(KafkaRequest.Type.OFFSETS, request.getType());
+    Assert.assertEquals(KafkaClient.EARLIEST_OFFSET, request.getBody().getLong(0));
+    request.getResponseHandler().received(offsetsResponse(100L));
+
+    request = sender.next();
+    Assert.assertEquals(KafkaRequest.Type.FETCH, request.getType());
+    Assert.assertEquals(100L, request.getBody().getLong(0));
+
+    // Offset is resolved again when the partition moved to another broker
+    request.getResponseHandler().failed(new PartitionMovedException("Moved"));
+    request = sender.next();
+    Assert.assertEquals(KafkaRequest.Type.OFFSETS, request.getType());
+    Assert.assertEquals(KafkaClient.EARLIEST_OFFSET, request.getBody().getLong(0));
+    request.getResponseHandler().received(offsetsResponse(20L));
+    Assert.assertEquals(20L, sender.next().getBody().getLong(0));
+
+    // Other failures retry the fetch at the same offset
+    long startTime = System.nanoTime();
+    sender.requests.clear();
+    fetcher.failed(new IOException("Connection closed"));
+    Assert.assertEquals(20L, sender.next().getBody().getLong(0));
+    Assert.assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(100));
+
+    fetcher.cancel();
+    Assert.assertTrue(callback.messages.isEmpty());
+  }
+
+  @Test
+  public void testWatermark() throws Exception {
+    ManualExecutor callbackExecutor = new ManualExecutor();
+    RecordingCallback callback = new RecordingCallback();
+    MessageFetcher fetcher = createFetcher(createConfig(0, 2, false), callbackExecutor, callback);
+    fetcher.start();
+
+    // Prefetch while below the high watermark
+    sender.next().getResponseHandler().received(fetchResponse("m1"));
+    sender.next().getResponseHandler().received(fetchResponse("m2"));
+
+    // High watermark reached, no more fetch until the callback catches up
+    Assert.assertNull(sender.requests.poll(200, TimeUnit.MILLISECONDS));
+    Assert.assertTrue(callback.messages.isEmpty());
+
+    callbackExecutor.runAll();
+    Assert.assertEquals(2, callback.messages.size());
+    Assert.assertEquals(messageSize("m1") * 2, sender.next().getBody().getLong(0));
+
+    fetcher.cancel();
+  }
+
+  @Test
+  public void testBackoff() throws Exception {
+    MessageFetcher fetcher = createFetcher(createConfig(1, 2, false), MoreExecutors.sameThreadExecutor(),
+                                           new RecordingCallback());
+    fetcher.start();
+
+    // Backoff doubles on empty fetches, capped by the max backoff
+    long[] minDelays = { 100, 200, 200 };
+    KafkaRequest request = sender.next();
+    for (long minDelay : minDelays) {
+      long startTime = System.nanoTime();
+      request.getResponseHandler().received(fetchResponse());
+      request = sender.next();
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+      Assert.assertTrue("Delay " + elapsed + " shorter than " + minDelay, elapsed >= minDelay);
+      Assert.assertTrue("Delay " + elapsed + " too long", elapsed < minDelay + 1000);
+    }
+
+    // Backoff is reset when messages are fetched
+    request.getResponseHandler().received(fetchResponse("m1"));
+    request = sender.next();
+    long startTime = System.nanoTime();
+    request.getResponseHandler().received(fetchResponse());
+    sender.next();
+    Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime) < 200);
+
+    fetcher.cancel();
+  }
+
+  private MessageFetcher createFetcher(FetchConfig config, Executor callbackExecutor, MessageCallback callback) {
+    return new MessageFetcher("topic", 0, 0L, 1024, sender, scheduler, callbackExecutor, callback, config);
+  }
+
+  private FetchConfig createConfig(int lowWatermark, int highWatermark, boolean resetToEarliest) {
+    return new FetchConfig(lowWatermark, highWatermark, 100, 200, TimeUnit.MILLISECONDS, true, resetToEarliest,
+                           ImmutableMap.<Integer, CompressionCodec>of(Compression.NONE.getCode(), Compression.NONE));
+  }
+
+  private KafkaResponse offsetsResponse(long offset) {
+    ChannelBuffer body = ChannelBuffers.buffer(12);
+    body.writeInt(1);
+    body.writeLong(offset);
+    return new KafkaResponse(KafkaResponse.ErrorCode.OK, body, body.readableBytes() + 6);
+  }
+
+  private long messageSize(String payload) {
+    return 4 + 1 + 4 + payload.length();
+  }
+
+  /**
+   * Creates a FETCH response with uncompressed messages in the magic 0 format.
+   */
+  private KafkaResponse fetchResponse(String... payloads) {
+    ChannelBuffer body = ChannelBuffers.dynamicBuffer();
+    for (String payload : payloads) {
+      ChannelBuffer bytes = ChannelBuffers.copiedBuffer(payload, Charsets.UTF_8);
+      body.writeInt(1 + 4 + bytes.readableBytes());
+      body.writeByte(0);
+      body.writeInt(Checksums.crc32(bytes));
+      body.writeBytes(bytes);
+    }
+    return new KafkaResponse(KafkaResponse.ErrorCode.OK, body, body.readableBytes() + 6);
+  }
+
+  private static final class RecordingSender implements KafkaRequestSender {
+
+    private final BlockingQueue<KafkaRequest> requests = new LinkedBlockingQueue<KafkaRequest>();
+    private volatile boolean closed;
+
+    @Override
+    public void send(KafkaRequest request) {
+      requests.add(request);
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    KafkaRequest next() throws InterruptedException {
+      KafkaRequest request = requests.poll(5, TimeUnit.SECONDS);
+      Assert.assertNotNull(request);
+      return request;
+    }
+  }
+
+  /**
+   * Executor that only runs tasks when asked.
+   */
+  private static final class ManualExecutor implements Executor {
+
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    void runAll() {
+      Runnable task = tasks.poll();
+      while (task != null) {
+        task.run();
+        task = tasks.poll();
+      }
+    }
+  }
+
+  private static final class RecordingCallback implements MessageCallback {
+
+    private final List<FetchedMessage> messages = Lists.newArrayList();
+    private volatile boolean finished;
+    private volatile Throwable failure;
+
+    @Override
+    public void onReceived(Iterator<FetchedMessage> messages) {
+      while (messages.hasNext()) {
+        this.messages.add(messages.next());
+      }
+    }
+
+    @Override
+    public void finished(Throwable cause) {
+      finished = true;
+      failure = cause;
+    }
+  }
+}
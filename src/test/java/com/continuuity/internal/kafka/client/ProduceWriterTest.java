@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link ProduceWriter}, running against a fake broker over the local transport.
+ */
+public class ProduceWriterTest {
+
+  private final BlockingQueue<MessageEvent> brokerRequests = new LinkedBlockingQueue<MessageEvent>();
+  private ServerBootstrap serverBootstrap;
+  private ClientBootstrap clientBootstrap;
+  private Channel channel;
+  private Channel lastBrokerChannel;
+
+  @Before
+  public void init() throws Exception {
+    LocalAddress address = new LocalAddress(LocalAddress.EPHEMERAL);
+    serverBootstrap = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+    serverBootstrap.getPipeline().addLast("broker", new SimpleChannelHandler() {
+      @Override
+      public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        brokerRequests.add(e);
+      }
+    });
+    serverBootstrap.bind(address);
+
+    clientBootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+    clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        return Channels.pipeline(new KafkaResponseDispatcher());
+      }
+    });
+    channel = clientBootstrap.connect(address).await().getChannel();
+  }
+
+  @After
+  public void finish() {
+    channel.close().awaitUninterruptibly();
+    clientBootstrap.releaseExternalResources();
+    serverBootstrap.releaseExternalResources();
+  }
+
+  @Test
+  public void testNotAcknowledged() throws Exception {
+    LatencyHistogram latency = new LatencyHistogram();
+    ProduceWriter writer = new ProduceWriter(false, latency);
+
+    ListenableFuture<Void> result = writer.write(channel, createProduce(), "topic", 0, System.nanoTime());
+    result.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(KafkaRequest.Type.PRODUCE, nextRequest().getType());
+    Assert.assertEquals(1, latency.getCount());
+  }
+
+  @Test
+  public void testAcknowledged() throws Exception {
+    LatencyHistogram latency = new LatencyHistogram();
+    ProduceWriter writer = new ProduceWriter(true, latency);
+
+    ListenableFuture<Void> result = writer.write(channel, createProduce(), "topic", 0, System.nanoTime());
+    Assert.assertEquals(KafkaRequest.Type.PRODUCE, nextRequest().getType());
+    Assert.assertEquals(KafkaRequest.Type.OFFSETS, nextRequest().getType());
+
+    // Not completed until the broker responds to the OFFSETS request
+    Assert.assertFalse(result.isDone());
+    Assert.assertEquals(0, latency.getCount());
+
+    ChannelBuffer body = ChannelBuffers.buffer(12);
+    body.writeInt(1);
+    body.writeLong(100L);
+    Channels.write(lastBrokerChannel, new KafkaResponse(KafkaResponse.ErrorCode.OK, body, body.readableBytes() + 6));
+
+    result.get(5, TimeUnit.SECONDS);
+    Assert.assertEquals(1, latency.getCount());
+  }
+
+  @Test
+  public void testClosedBeforeAcknowledged() throws Exception {
+    ProduceWriter writer = new ProduceWriter(true, new LatencyHistogram());
+
+    ListenableFuture<Void> result = writer.write(channel, createProduce(), "topic", 0, System.nanoTime());
+    nextRequest();
+    nextRequest();
+    lastBrokerChannel.close();
+
+    try {
+      result.get(5, TimeUnit.SECONDS);
+      Assert.fail("Expected failure");
+    } catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+  }
+
+  private KafkaRequest nextRequest() throws InterruptedException {
+    MessageEvent event = brokerRequests.poll(5, TimeUnit.SECONDS);
+    Assert.assertNotNull(event);
+    lastBrokerChannel = event.getChannel();
+    return (KafkaRequest) event.getMessage();
+  }
+
+  private KafkaRequest createProduce() {
+    return KafkaRequest.createProduce("topic", 0, ChannelBuffers.wrappedBuffer(new byte[10]));
+  }
+}
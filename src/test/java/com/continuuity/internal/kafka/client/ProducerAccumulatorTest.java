@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.kafka.client.OverflowPolicy;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link ProducerAccumulator}.
+ */
+public class ProducerAccumulatorTest {
+
+  @Test
+  public void testBatching() throws Exception {
+    ProducerAccumulator accumulator = new ProducerAccumulator(200, TimeUnit.MILLISECONDS, 10,
+                                                              new ProducerMemoryBudget(100, OverflowPolicy.FAIL));
+
+    // Batch is sent when full
+    ListenableFuture<Void> first = accumulator.append("topic", 0, Compression.NONE,
+                                                      ChannelBuffers.wrappedBuffer(new byte[6]));
+    accumulator.append("topic", 0, Compression.NONE, ChannelBuffers.wrappedBuffer(new byte[4]));
+    accumulator.append("topic", 0, Compression.NONE, ChannelBuffers.wrappedBuffer(new byte[4]));
+    accumulator.append("topic", 1, Compression.NONE, ChannelBuffers.wrappedBuffer(new byte[4]));
+
+    long startTime = System.nanoTime();
+    List<ProducerAccumulator.Batch> batches = accumulator.drain();
+    Assert.assertTrue(System.nanoTime() - startTime < TimeUnit.MILLISECONDS.toNanos(200));
+    Assert.assertEquals(1, batches.size());
+    Assert.assertEquals(0, batches.get(0).getPartition());
+    Assert.assertEquals(10, batches.get(0).getBytes());
+
+    batches.get(0).completed(null);
+    Assert.assertTrue(first.isDone());
+
+    // Other batches are sent after the linger time
+    batches = accumulator.drain();
+    Assert.assertTrue(System.nanoTime() - startTime >= TimeUnit.MILLISECONDS.toNanos(200));
+    Assert.assertEquals(2, batches.size());
+
+    // All batches are returned on close
+    accumulator.append("topic", 0, Compression.NONE, ChannelBuffers.wrappedBuffer(new byte[4]));
+    accumulator.close();
+    Assert.assertEquals(1, accumulator.drain().size());
+    Assert.assertTrue(accumulator.drain().isEmpty());
+    Assert.assertTrue(accumulator.append("topic", 0, Compression.NONE,
+                                         ChannelBuffers.wrappedBuffer(new byte[4])).isDone());
+  }
+
+  @Test
+  public void testMemoryBudget() throws Exception {
+    ProducerMemoryBudget memoryBudget = new ProducerMemoryBudget(10, OverflowPolicy.DROP);
+    ProducerAccumulator accumulator = new ProducerAccumulator(0, TimeUnit.MILLISECONDS, 100, memoryBudget);
+
+    accumulator.append("topic", 0, Compression.NONE, ChannelBuffers.wrappedBuffer(new byte[6]));
+    ListenableFuture<Void> dropped = accumulator.append("topic", 0, Compression.NONE,
+                                                        ChannelBuffers.wrappedBuffer(new byte[6]));
+    Assert.assertTrue(dropped.isDone());
+    Assert.assertEquals(6, memoryBudget.getBufferedBytes());
+    Assert.assertEquals(1, memoryBudget.getDroppedMessages());
+
+    // Memory is released when the batch is completed
+    List<ProducerAccumulator.Batch> batches = accumulator.drain();
+    Assert.assertEquals(1, batches.size());
+    batches.get(0).completed(new Exception("Failure"));
+    Assert.assertEquals(0, memoryBudget.getBufferedBytes());
+
+    // A message larger than the budget is admitted when nothing is buffered
+    Assert.assertFalse(accumulator.append("topic", 0, Compression.NONE,
+                                          ChannelBuffers.wrappedBuffer(new byte[20])).isDone());
+    Assert.assertEquals(20, memoryBudget.getBufferedBytes());
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.internal.kafka.client;
+
+import com.continuuity.weave.zk.InMemoryZKServer;
+import com.continuuity.zookeeper.ZKClientService;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test for {@link ZKOffsetStore}.
+ */
+public class ZKOffsetStoreTest {
+
+  private InMemoryZKServer zkServer;
+  private ZKClientService zkClient;
+
+  @Before
+  public void init() {
+    zkServer = InMemoryZKServer.builder().setTickTime(1000).build();
+    zkServer.startAndWait();
+    zkClient = ZKClientService.Builder.of(zkServer.getConnectionStr()).build();
+    zkClient.startAndWait();
+  }
+
+  @After
+  public void finish() {
+    zkClient.stopAndWait();
+    zkServer.stopAndWait();
+  }
+
+  @Test
+  public void testCommit() throws Exception {
+    ZKOffsetStore offsetStore = new ZKOffsetStore(zkClient, "/offsets");
+    Assert.assertEquals(-1L, offsetStore.getOffset("topic", 0).get(5, TimeUnit.SECONDS).longValue());
+
+    Assert.assertEquals(10L, offsetStore.commit("topic", 0, 10).get(5, TimeUnit.SECONDS).longValue());
+    Assert.assertEquals(20L, offsetStore.commit("topic", 0, 20).get(5, TimeUnit.SECONDS).longValue());
+    Assert.assertEquals(30L, offsetStore.commit("topic", 1, 30).get(5, TimeUnit.SECONDS).longValue());
+
+    Assert.assertEquals(20L, offsetStore.getOffset("topic", 0).get(5, TimeUnit.SECONDS).longValue());
+    Assert.assertEquals(30L, offsetStore.getOffset("topic", 1).get(5, TimeUnit.SECONDS).longValue());
+
+    // Offsets are persisted, hence visible to a new store.
+    ZKOffsetStore newStore = new ZKOffsetStore(zkClient, "/offsets");
+    Assert.assertEquals(20L, newStore.getOffset("topic", 0).get(5, TimeUnit.SECONDS).longValue());
+  }
+
+  @Test
+  public void testCoalesce() throws Exception {
+    ZKOffsetStore offsetStore = new ZKOffsetStore(zkClient, "/offsets");
+
+    int commits = 100;
+    List<ListenableFuture<Long>> futures = Lists.newArrayList();
+    for (int i = 0; i < commits; i++) {
+      futures.add(offsetStore.commit("topic", 0, i));
+    }
+
+    // Each future completes with the offset committed or a later one.
+    for (int i = 0; i < commits; i++) {
+      long offset = futures.get(i).get(5, TimeUnit.SECONDS);
+      Assert.assertTrue(offset >= i);
+    }
+    Assert.assertEquals(commits - 1, futures.get(commits - 1).get().longValue());
+    Assert.assertEquals(commits - 1, offsetStore.getOffset("topic", 0).get(5, TimeUnit.SECONDS).longValue());
+
+    // Commits made while the first write is in progress are written together, hence far fewer writes than
+    // commits. The node version counts the updates after creation.
+    int version = zkClient.getData("/offsets/topic/0").get(5, TimeUnit.SECONDS).getStat().getVersion();
+    Assert.assertTrue("Too many writes: " + version, version < commits / 2);
+  }
+}
@@ -5,25 +5,50 @@ import com.continuuity.internal.kafka.client.SimpleKafkaClient;
 import com.continuuity.kafka.client.FetchedMessage;
 import com.continuuity.kafka.client.KafkaClient;
 import com.continuuity.kafka.client.PreparePublish;
+import com.continuuity.kafka.client.Publisher;
+import com.continuuity.weave.kafka.EmbeddedKafkaServer;
+import com.continuuity.weave.zk.InMemoryZKServer;
 import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import junit.framework.Assert;
-import org.junit.Ignore;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
- *
+ * Test {@link SimpleKafkaClient} against an {@link EmbeddedKafkaServer}.
  */
 public class KafkaTest {
 
+  private static InMemoryZKServer zkServer;
+  private static EmbeddedKafkaServer kafkaServer;
+
+  @BeforeClass
+  public static void beforeClass() {
+    zkServer = InMemoryZKServer.builder().build();
+    zkServer.startAndWait();
+    kafkaServer = EmbeddedKafkaServer.builder(zkServer.getConnectionStr()).build();
+    kafkaServer.startAndWait();
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    kafkaServer.stopAndWait();
+    zkServer.stopAndWait();
+  }
+
   @Test
-  @Ignore
   public void testKafka() throws InterruptedException, ExecutionException {
-    KafkaClient kafkaClient = new SimpleKafkaClient("localhost:2181");
+    KafkaClient kafkaClient = new SimpleKafkaClient(zkServer.getConnectionStr());
     kafkaClient.startAndWait();
 
     String topic = "topic" + System.currentTimeMillis();
@@ -51,6 +76,43 @@ public class KafkaTest {
     kafkaClient.stopAndWait();
   }
 
+  @Test
+  public void testPublisher() throws InterruptedException, ExecutionException {
+    KafkaClient kafkaClient = SimpleKafkaClient.Builder.of(zkServer.getConnectionStr())
+                                                       .setMultiProduce(true)
+                                                       .setMultiFetch(true)
+                                                       .setVerifyCRC(true)
+                                                       .setAcknowledgedPublish(true)
+                                                       .build();
+    kafkaClient.startAndWait();
+    try {
+      String topic = "publisher" + System.currentTimeMillis();
+      Publisher publisher = kafkaClient.getPublisher(topic, Compression.SNAPPY);
+      List<ListenableFuture<Void>> futures = Lists.newArrayList();
+      for (int i = 0; i < 100; i++) {
+        futures.add(publisher.send(("Message " + i).getBytes(Charsets.UTF_8), i));
+      }
+      Futures.allAsList(futures).get();
+
+      // All messages are acknowledged, hence the latest offset is the end of the log.
+      long latest = kafkaClient.getOffsets(topic, 0, KafkaClient.LATEST_OFFSET, 1).get()[0];
+      Assert.assertEquals(0L, kafkaClient.getOffsets(topic, 0, KafkaClient.EARLIEST_OFFSET, 1).get()[0]);
+
+      Set<String> messages = Sets.newHashSet();
+      long offset = 0;
+      Iterator<FetchedMessage> consumer = kafkaClient.consume(topic, 0, 0, 1048576);
+      while (messages.size() < 100 && consumer.hasNext()) {
+        FetchedMessage message = consumer.next();
+        messages.add(Charsets.UTF_8.decode(message.getBuffer()).toString());
+        offset = message.getOffset();
+      }
+      Assert.assertEquals(100, messages.size());
+      Assert.assertEquals(latest, offset);
+    } finally {
+      kafkaClient.stopAndWait();
+    }
+  }
+
   private Thread createPublishThread(final KafkaClient kafkaClient, final String topic,
                                      final Compression compression, final String message, final int count) {
     return new Thread() {
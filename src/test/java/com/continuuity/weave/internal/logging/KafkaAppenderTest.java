@@ -0,0 +1,339 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import com.continuuity.internal.kafka.client.Compression;
+import com.continuuity.kafka.client.CompressionCodec;
+import com.continuuity.kafka.client.FetchedMessage;
+import com.continuuity.kafka.client.KafkaClient;
+import com.continuuity.kafka.client.MessageCallback;
+import com.continuuity.kafka.client.PreparePublish;
+import com.continuuity.kafka.client.ProducerMetrics;
+import com.continuuity.kafka.client.Publisher;
+import com.continuuity.weave.api.logging.LogEntry;
+import com.continuuity.zookeeper.Cancellable;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test for {@link KafkaAppender}, publishing through a stub kafka client.
+ */
+public class KafkaAppenderTest {
+
+  private final LoggerContext loggerContext = new LoggerContext();
+
+  @Test
+  public void testDropped() throws Exception {
+    // Nothing is drained until the client is started.
+    StubKafkaClient kafkaClient = new StubKafkaClient(false);
+    KafkaAppender appender = createAppender(kafkaClient);
+    appender.setBufferSize(4);
+    appender.setOverflowPolicy("drop_oldest");
+    appender.start();
+    try {
+      for (int i = 0; i < 10; i++) {
+        append(appender, "test", Level.INFO, Integer.toString(i));
+      }
+      Assert.assertEquals(6L, appender.getDroppedEvents());
+
+      // The newest events are published once the client is started.
+      kafkaClient.startLatch.countDown();
+      for (int i = 6; i < 10; i++) {
+        LogEntry entry = kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(Integer.toString(i), entry.getMessage());
+      }
+      Assert.assertEquals(6L, appender.getDroppedEvents());
+    } finally {
+      kafkaClient.startLatch.countDown();
+      appender.stop();
+    }
+  }
+
+  @Test
+  public void testSampling() throws Exception {
+    StubKafkaClient kafkaClient = new StubKafkaClient(true);
+    KafkaAppender appender = createAppender(kafkaClient);
+    appender.setSampleInterval(Level.DEBUG, 3);
+    appender.start();
+    try {
+      for (int i = 0; i < 9; i++) {
+        append(appender, "test", Level.DEBUG, "debug" + i);
+      }
+      append(appender, "test", Level.INFO, "info0");
+      append(appender, "test", Level.INFO, "info1");
+
+      // One in three debug events and all info events are published.
+      for (String message : new String[] { "debug0", "debug3", "debug6", "info0", "info1" }) {
+        LogEntry entry = kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(message, entry.getMessage());
+      }
+      Assert.assertNull(kafkaClient.publisher.published.poll(100, TimeUnit.MILLISECONDS));
+
+      // Sampled out events are not dropped events.
+      Assert.assertEquals(0L, appender.getDroppedEvents());
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  public void testCallerData() throws Exception {
+    StubKafkaClient kafkaClient = new StubKafkaClient(true);
+    KafkaAppender appender = createAppender(kafkaClient);
+    appender.setCallerDataLevel("WARN");
+    appender.addCallerDataLogger("test.caller");
+    appender.start();
+    try {
+      LoggingEvent noCallerData = append(appender, "test.other", Level.INFO, "info");
+      append(appender, "test.other", Level.WARN, "warn");
+      append(appender, "test.caller.child", Level.DEBUG, "child");
+      append(appender, "test.callerx", Level.INFO, "sibling");
+
+      assertCallerData(kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS), "info", false);
+      assertCallerData(kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS), "warn", true);
+      assertCallerData(kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS), "child", true);
+      assertCallerData(kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS), "sibling", false);
+
+      // The event is shared with other appenders, hence its caller data is left for them to compute.
+      Assert.assertFalse(noCallerData.hasCallerData());
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  public void testSpillAndReplay() throws Exception {
+    StubKafkaClient kafkaClient = new StubKafkaClient(true);
+    kafkaClient.publisher.mode = PublishMode.FAIL;
+    KafkaAppender appender = createAppender(kafkaClient);
+    appender.setSpillDir(Files.createTempDir().getAbsolutePath());
+    appender.start();
+    try {
+      append(appender, "test", Level.INFO, "1");
+
+      // Once publishing failed, new entries are spilled behind the failed one.
+      waitFor(kafkaClient.publisher.attempts, 1);
+      append(appender, "test", Level.INFO, "2");
+      append(appender, "test", Level.INFO, "3");
+      kafkaClient.publisher.mode = PublishMode.PUBLISH;
+
+      // Replayed in order after the spill retry interval.
+      for (int i = 1; i <= 3; i++) {
+        LogEntry entry = kafkaClient.publisher.published.poll(20, TimeUnit.SECONDS);
+        Assert.assertNotNull(entry);
+        Assert.assertEquals(Integer.toString(i), entry.getMessage());
+      }
+    } finally {
+      appender.stop();
+    }
+  }
+
+  @Test
+  public void testSpillOnStop() throws Exception {
+    File spillDir = Files.createTempDir();
+    StubKafkaClient kafkaClient = new StubKafkaClient(true);
+    KafkaAppender appender = createAppender(kafkaClient);
+    appender.setSpillDir(spillDir.getAbsolutePath());
+    appender.setSpillSegmentBytes(4096);
+    appender.start();
+
+    // Entries are spilled until the publisher is available, hence waits for it first.
+    append(appender, "test", Level.INFO, "0");
+    Assert.assertNotNull(kafkaClient.publisher.published.poll(10, TimeUnit.SECONDS));
+
+    kafkaClient.publisher.mode = PublishMode.HOLD;
+    append(appender, "test", Level.INFO, "1");
+    waitFor(kafkaClient.publisher.attempts, 2);
+
+    // The entry in flight fails when the client stops, after the drain thread is done.
+    appender.stop();
+
+    // Entries replayed before are not in the spill files anymore.
+    LogSpillBuffer spillBuffer = new LogSpillBuffer(spillDir, 4096, 1024 * 1024);
+    ByteBuffer spilled = spillBuffer.poll();
+    Assert.assertNotNull(spilled);
+    Assert.assertEquals("1", BinaryLogEntryDecoder.decode(spilled).getMessage());
+    Assert.assertNull(spillBuffer.poll());
+  }
+
+  private KafkaAppender createAppender(KafkaClient kafkaClient) {
+    KafkaAppender appender = new KafkaAppender(kafkaClient);
+    appender.setContext(loggerContext);
+    appender.setHostname("host");
+    appender.setTopic("logs");
+    appender.setFormat("binary");
+    return appender;
+  }
+
+  /**
+   * Appends an event whose caller data, if taken, is this method.
+   */
+  private LoggingEvent append(KafkaAppender appender, String loggerName, Level level, String message) {
+    LoggingEvent event = new LoggingEvent(UnsynchronizedAppenderBase.class.getName(),
+                                          loggerContext.getLogger(loggerName), level, message, null, null);
+    appender.doAppend(event);
+    return event;
+  }
+
+  private void assertCallerData(LogEntry entry, String message, boolean hasCallerData) {
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(message, entry.getMessage());
+    if (hasCallerData) {
+      Assert.assertEquals(KafkaAppenderTest.class.getName(), entry.getSourceClassName());
+      Assert.assertTrue(entry.getLineNumber() > 0);
+    } else {
+      Assert.assertEquals("?", entry.getSourceClassName());
+      Assert.assertEquals(-1, entry.getLineNumber());
+    }
+  }
+
+  private void waitFor(AtomicInteger counter, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (counter.get() < count && System.currentTimeMillis() < deadline) {
+      TimeUnit.MILLISECONDS.sleep(10);
+    }
+    Assert.assertTrue(counter.get() >= count);
+  }
+
+  private enum PublishMode {
+    PUBLISH,
+    FAIL,
+    HOLD
+  }
+
+  /**
+   * Publisher that decodes published entries, fails them or holds them until the client is stopped.
+   */
+  private static final class StubPublisher implements Publisher {
+
+    private final BlockingQueue<LogEntry> published = new LinkedBlockingQueue<LogEntry>();
+    private final Queue<SettableFuture<Void>> held = new ConcurrentLinkedQueue<SettableFuture<Void>>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private volatile PublishMode mode = PublishMode.PUBLISH;
+
+    @Override
+    public ListenableFuture<Void> send(byte[] payload, Object partitionKey) {
+      return send(ByteBuffer.wrap(payload), partitionKey);
+    }
+
+    @Override
+    public ListenableFuture<Void> send(ByteBuffer payload, Object partitionKey) {
+      attempts.incrementAndGet();
+      switch (mode) {
+        case FAIL:
+          return Futures.immediateFailedFuture(new IOException("Kafka is unavailable."));
+        case HOLD:
+          SettableFuture<Void> future = SettableFuture.create();
+          held.add(future);
+          return future;
+        default:
+          published.add(BinaryLogEntryDecoder.decode(payload));
+          return Futures.immediateFuture(null);
+      }
+    }
+
+    void failHeld() {
+      SettableFuture<Void> future = held.poll();
+      while (future != null) {
+        future.setException(new IOException("Client stopped."));
+        future = held.poll();
+      }
+    }
+  }
+
+  /**
+   * Kafka client that only supports publishing through a {@link StubPublisher}.
+   */
+  private static final class StubKafkaClient extends AbstractIdleService implements KafkaClient {
+
+    private final StubPublisher publisher = new StubPublisher();
+    private final CountDownLatch startLatch = new CountDownLatch(1);
+
+    StubKafkaClient(boolean started) {
+      if (started) {
+        startLatch.countDown();
+      }
+    }
+
+    @Override
+    protected void startUp() throws Exception {
+      startLatch.await();
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+      publisher.failHeld();
+    }
+
+    @Override
+    public Publisher getPublisher(String topic, CompressionCodec compression) {
+      return publisher;
+    }
+
+    @Override
+    public PreparePublish preparePublish(String topic, CompressionCodec compression) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public PreparePublish preparePublish(String topic, Compression compression) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ProducerMetrics getProducerMetrics() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ListenableFuture<long[]> getOffsets(String topic, int partition, long time, int maxOffsets) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<FetchedMessage> consume(String topic, int partition, long offset, int maxSize) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Cancellable consume(String topic, int partition, long offset, int maxSize, MessageCallback callback) {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
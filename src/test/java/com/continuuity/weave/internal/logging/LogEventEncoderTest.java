@@ -0,0 +1,97 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import com.continuuity.weave.api.logging.LogEntry;
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ */
+public class LogEventEncoderTest {
+
+  @Test
+  public void testBinaryCodec() {
+    LoggingEvent event = createEvent(new IllegalStateException("Testing"));
+    ByteBuffer binary = new BinaryLogEventEncoder("host1").encode(event);
+    ByteBuffer json = new JsonLogEventEncoder("host1").encode(event);
+
+    Assert.assertTrue(BinaryLogEntryDecoder.isBinary(binary));
+    Assert.assertFalse(BinaryLogEntryDecoder.isBinary(json));
+    Assert.assertTrue(binary.remaining() < json.remaining());
+
+    Gson gson = new GsonBuilder().registerTypeAdapter(LogEntry.class, new LogEntryDecoder()).create();
+    LogEntry expected = gson.fromJson(Charsets.UTF_8.decode(json).toString(), LogEntry.class);
+    LogEntry entry = BinaryLogEntryDecoder.decode(binary);
+
+    Assert.assertEquals(expected.getLoggerName(), entry.getLoggerName());
+    Assert.assertEquals("host1", entry.getHost());
+    Assert.assertEquals(event.getTimeStamp(), entry.getTimestamp());
+    Assert.assertEquals(LogEntry.Level.WARN, entry.getLogLevel());
+    Assert.assertEquals(expected.getSourceClassName(), entry.getSourceClassName());
+    Assert.assertEquals(expected.getSourceMethodName(), entry.getSourceMethodName());
+    Assert.assertEquals(expected.getFileName(), entry.getFileName());
+    Assert.assertEquals(expected.getLineNumber(), entry.getLineNumber());
+    Assert.assertEquals(expected.getThreadName(), entry.getThreadName());
+    Assert.assertEquals("Message 1", entry.getMessage());
+    Assert.assertArrayEquals(expected.getStackTraces(), entry.getStackTraces());
+    Assert.assertTrue(entry.getStackTraces().length > 0);
+
+    // Decode doesn't change the buffer position.
+    Assert.assertEquals(0, binary.position());
+  }
+
+  @Test
+  public void testBinaryNoThrowable() {
+    LogEntry entry = BinaryLogEntryDecoder.decode(new BinaryLogEventEncoder(null).encode(createEvent(null)));
+    Assert.assertNull(entry.getHost());
+    Assert.assertEquals(0, entry.getStackTraces().length);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBinaryCorrupted() {
+    ByteBuffer binary = new BinaryLogEventEncoder("host1").encode(createEvent(null));
+    binary.limit(binary.limit() / 2);
+    BinaryLogEntryDecoder.decode(binary);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testBinaryInvalidCount() {
+    // A string count that is far larger than the entry itself.
+    ByteBuffer binary = ByteBuffer.wrap(new byte[] { (byte) BinaryLogEntryDecoder.MAGIC,
+                                                     (byte) BinaryLogEntryDecoder.VERSION,
+                                                     (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07 });
+    BinaryLogEntryDecoder.decode(binary);
+  }
+
+  private LoggingEvent createEvent(Throwable t) {
+    LoggerContext context = new LoggerContext();
+    LoggingEvent event = new LoggingEvent(LogEventEncoderTest.class.getName(),
+                                          context.getLogger(LogEventEncoderTest.class), Level.WARN,
+                                          "Message {}", t, new Object[] { 1 });
+    event.setCallerData(new Throwable().getStackTrace());
+    return event;
+  }
+}
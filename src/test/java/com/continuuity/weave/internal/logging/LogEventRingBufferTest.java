@@ -0,0 +1,108 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class LogEventRingBufferTest {
+
+  private final LoggerContext context = new LoggerContext();
+
+  @Test
+  public void testDropOldest() {
+    LogEventRingBuffer buffer = new LogEventRingBuffer(3, LogEventRingBuffer.OverflowPolicy.DROP_OLDEST);
+    for (int i = 0; i < 6; i++) {
+      Assert.assertTrue(buffer.offer(createEvent(Level.INFO, i), true));
+    }
+    Assert.assertEquals(2L, buffer.getDropped());
+    for (int i = 2; i < 6; i++) {
+      Assert.assertEquals("" + i, buffer.poll().getMessage());
+    }
+    Assert.assertNull(buffer.poll());
+  }
+
+  @Test
+  public void testDropDebug() {
+    LogEventRingBuffer buffer = new LogEventRingBuffer(8, LogEventRingBuffer.OverflowPolicy.DROP_DEBUG);
+    for (int i = 0; i < 6; i++) {
+      Assert.assertTrue(buffer.offer(createEvent(Level.DEBUG, i), true));
+    }
+    Assert.assertFalse(buffer.offer(createEvent(Level.TRACE, 6), true));
+    Assert.assertTrue(buffer.offer(createEvent(Level.WARN, 7), true));
+    Assert.assertTrue(buffer.offer(createEvent(Level.ERROR, 8), true));
+    Assert.assertFalse(buffer.offer(createEvent(Level.ERROR, 9), true));
+    Assert.assertEquals(2L, buffer.getDropped());
+    Assert.assertEquals(8, buffer.size());
+  }
+
+  @Test
+  public void testBlock() throws InterruptedException {
+    final LogEventRingBuffer buffer = new LogEventRingBuffer(1024, LogEventRingBuffer.OverflowPolicy.BLOCK);
+    final int producers = 4;
+    final int count = 10000;
+    final CountDownLatch done = new CountDownLatch(producers);
+
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    for (int i = 0; i < producers; i++) {
+      final int producer = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < count; j++) {
+            buffer.offer(createEvent(Level.INFO, producer * count + j), true);
+          }
+          done.countDown();
+        }
+      });
+    }
+
+    // Single consumer, all events from each producer must come out in order.
+    int[] next = new int[producers];
+    int received = 0;
+    while (received < producers * count) {
+      ILoggingEvent event = buffer.poll();
+      if (event == null) {
+        Assert.assertTrue(done.getCount() > 0 || !buffer.isEmpty());
+        continue;
+      }
+      int value = Integer.parseInt(event.getMessage());
+      int producer = value / count;
+      Assert.assertEquals(next[producer]++, value % count);
+      received++;
+    }
+    Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    Assert.assertEquals(0L, buffer.getDropped());
+    executor.shutdown();
+  }
+
+  private ILoggingEvent createEvent(Level level, int value) {
+    return new LoggingEvent(LogEventRingBufferTest.class.getName(), context.getLogger(LogEventRingBufferTest.class),
+                            level, Integer.toString(value), null, null);
+  }
+}
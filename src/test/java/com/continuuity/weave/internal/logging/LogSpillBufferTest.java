@@ -0,0 +1,107 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.internal.logging;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ *
+ */
+public class LogSpillBufferTest {
+
+  @Test
+  public void testSpillAndRecover() throws IOException {
+    File dir = Files.createTempDir();
+
+    // Each segment fits three records of 10 bytes.
+    LogSpillBuffer spillBuffer = new LogSpillBuffer(dir, 42, 1024);
+    Assert.assertTrue(spillBuffer.isEmpty());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertTrue(spillBuffer.append(createRecord(i)));
+    }
+    Assert.assertFalse(spillBuffer.append(ByteBuffer.allocate(40)));
+    Assert.assertEquals(1L, spillBuffer.getDropped());
+    Assert.assertEquals(4, dir.list().length);
+
+    for (int i = 0; i < 4; i++) {
+      Assert.assertEquals("record-00" + i, Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    }
+    spillBuffer.flush();
+
+    // Records not polled are replayed after reopen. Fully consumed segment is removed.
+    spillBuffer = new LogSpillBuffer(dir, 42, 1024);
+    Assert.assertEquals(3, dir.list().length);
+    for (int i = 4; i < 10; i++) {
+      Assert.assertEquals("record-00" + i, Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    }
+    Assert.assertNull(spillBuffer.poll());
+    Assert.assertTrue(spillBuffer.isEmpty());
+  }
+
+  @Test
+  public void testDrainAndReopen() throws IOException {
+    File dir = Files.createTempDir();
+    LogSpillBuffer spillBuffer = new LogSpillBuffer(dir, 42, 1024);
+    Assert.assertTrue(spillBuffer.append(createRecord(0)));
+    Assert.assertTrue(spillBuffer.append(createRecord(1)));
+    Assert.assertTrue(spillBuffer.append(createRecord(2)));
+    Assert.assertEquals("record-000", Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    spillBuffer.flush();
+
+    // Polled records are not replayed after reopen.
+    spillBuffer = new LogSpillBuffer(dir, 42, 1024);
+    Assert.assertEquals("record-001", Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    Assert.assertEquals("record-002", Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    Assert.assertTrue(spillBuffer.isEmpty());
+    spillBuffer.flush();
+
+    // Fully drained segment is removed on reopen.
+    spillBuffer = new LogSpillBuffer(dir, 42, 1024);
+    Assert.assertTrue(spillBuffer.isEmpty());
+    Assert.assertNull(spillBuffer.poll());
+    Assert.assertEquals(0, dir.list().length);
+
+    // Appends after reopen go to a new segment.
+    Assert.assertTrue(spillBuffer.append(createRecord(3)));
+    Assert.assertEquals("record-003", Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+  }
+
+  @Test
+  public void testSizeLimit() throws IOException {
+    LogSpillBuffer spillBuffer = new LogSpillBuffer(Files.createTempDir(), 42, 84);
+    for (int i = 0; i < 9; i++) {
+      Assert.assertTrue(spillBuffer.append(createRecord(i)));
+    }
+
+    // Only the last two segments are kept.
+    Assert.assertEquals(3L, spillBuffer.getDropped());
+    for (int i = 3; i < 9; i++) {
+      Assert.assertEquals("record-00" + i, Charsets.UTF_8.decode(spillBuffer.poll()).toString());
+    }
+    Assert.assertNull(spillBuffer.poll());
+  }
+
+  private ByteBuffer createRecord(int i) {
+    return Charsets.UTF_8.encode("record-00" + i);
+  }
+}
@@ -54,6 +54,23 @@ public class MessageCodecTest {
     Assert.assertEquals(ImmutableMap.of("timeout", "1", "timeoutUnit", "SECONDS"), message.getCommand().getOptions());
   }
 
+  @Test
+  public void testLogPolicy() {
+    Message message = MessageCodec.decode(MessageCodec.encode(SystemMessages.setLogLevel("runnable", "a.b", "DEBUG")));
+    Assert.assertEquals(Message.Type.SYSTEM, message.getType());
+    Assert.assertEquals(Message.Scope.RUNNABLE, message.getScope());
+    Assert.assertEquals("runnable", message.getRunnableName());
+    Assert.assertEquals(SystemMessages.LOG_POLICY, message.getCommand().getCommand());
+    Assert.assertEquals(ImmutableMap.of(SystemMessages.LOG_LEVEL_PREFIX + "a.b", "DEBUG"),
+                        message.getCommand().getOptions());
+
+    message = MessageCodec.decode(MessageCodec.encode(SystemMessages.setLogSampling(null, "TRACE", 10)));
+    Assert.assertEquals(Message.Scope.ALL_RUNNABLE, message.getScope());
+    Assert.assertNull(message.getRunnableName());
+    Assert.assertEquals(ImmutableMap.of(SystemMessages.LOG_SAMPLE_PREFIX + "TRACE", "10"),
+                        message.getCommand().getOptions());
+  }
+
   @Test
   public void testFailureDecode() {
     Assert.assertNull(MessageCodec.decode("".getBytes()));
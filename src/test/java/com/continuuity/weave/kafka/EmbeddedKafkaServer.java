@@ -0,0 +1,527 @@
+/**
+ * Copyright 2012-2013 Continuuity,Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.continuuity.weave.kafka;
+
+import com.continuuity.weave.internal.utils.Threads;
+import com.continuuity.zookeeper.RetryStrategies;
+import com.continuuity.zookeeper.ZKClientService;
+import com.continuuity.zookeeper.ZKClientServices;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.Futures;
+import org.apache.zookeeper.CreateMode;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.jboss.netty.channel.group.DefaultChannelGroup;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-process stand-in of a Kafka 0.7 broker for testing and benchmarking. It speaks the subset of the wire
+ * protocol used by {@link com.continuuity.internal.kafka.client.SimpleKafkaClient}: PRODUCE, MULTI_PRODUCE, FETCH,
+ * MULTI_FETCH and OFFSETS. Messages are stored in memory-mapped segment files, and the broker registers itself
+ * and its topics in ZooKeeper the same way a Kafka broker does.
+ */
+public final class EmbeddedKafkaServer extends AbstractIdleService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EmbeddedKafkaServer.class);
+
+  private static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
+  private static final short PRODUCE = 0;
+  private static final short FETCH = 1;
+  private static final short MULTI_FETCH = 2;
+  private static final short MULTI_PRODUCE = 3;
+  private static final short OFFSETS = 4;
+
+  private static final short ERROR_OK = 0;
+  private static final short ERROR_OFFSET_OUT_OF_RANGE = 1;
+  private static final short ERROR_WRONG_PARTITION = 3;
+
+  private static final long LATEST_TIME = -1L;
+  private static final long EARLIEST_TIME = -2L;
+
+  private final ZKClientService zkClient;
+  private final int brokerId;
+  private final int numPartitions;
+  private final int segmentSize;
+  private final File dataDir;
+  private final boolean autoClean;
+  private final ConcurrentMap<String, SegmentedLog> logs;
+  private final ChannelGroup channelGroup;
+  private ServerBootstrap bootstrap;
+  private InetSocketAddress address;
+
+  public static Builder builder(String zkConnectStr) {
+    return new Builder(zkConnectStr);
+  }
+
+  private EmbeddedKafkaServer(String zkConnectStr, int brokerId, int numPartitions,
+                              int segmentSize, File dataDir, boolean autoClean) {
+    this.zkClient = ZKClientServices.retryOnFailure(ZKClientService.Builder.of(zkConnectStr).build(),
+                                                    RetryStrategies.exponentialDelay(100, 2000, TimeUnit.MILLISECONDS));
+    this.brokerId = brokerId;
+    this.numPartitions = numPartitions;
+    this.segmentSize = segmentSize;
+    this.dataDir = dataDir;
+    this.autoClean = autoClean;
+    this.logs = Maps.newConcurrentMap();
+    this.channelGroup = new DefaultChannelGroup();
+  }
+
+  /**
+   * Returns the address that this server is bound to.
+   */
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  protected void startUp() throws Exception {
+    zkClient.startAndWait();
+
+    bootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
+      Executors.newSingleThreadExecutor(Threads.createDaemonThreadFactory("kafka-server-boss")),
+      Executors.newCachedThreadPool(Threads.createDaemonThreadFactory("kafka-server-worker-%d"))));
+    bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+      @Override
+      public ChannelPipeline getPipeline() throws Exception {
+        ChannelPipeline pipeline = Channels.pipeline();
+        pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(MAX_REQUEST_SIZE, 0, 4, 0, 4));
+        pipeline.addLast("handler", new RequestHandler());
+        return pipeline;
+      }
+    });
+    bootstrap.setOption("child.tcpNoDelay", true);
+
+    Channel serverChannel = bootstrap.bind(new InetSocketAddress(InetAddress.getLocalHost(), 0));
+    channelGroup.add(serverChannel);
+    address = (InetSocketAddress) serverChannel.getLocalAddress();
+
+    // Register the broker the same way as Kafka does: "<creatorId>:<host>:<port>"
+    String brokerInfo = String.format("embedded-%d:%s:%d", System.currentTimeMillis(),
+                                      address.getHostName(), address.getPort());
+    Futures.getUnchecked(zkClient.create("/brokers/ids/" + brokerId, brokerInfo.getBytes(Charsets.UTF_8),
+                                         CreateMode.EPHEMERAL, true));
+    LOG.info("Embedded kafka server started at " + address);
+  }
+
+  @Override
+  protected void shutDown() throws Exception {
+    channelGroup.close().awaitUninterruptibly();
+    bootstrap.releaseExternalResources();
+    zkClient.stopAndWait();
+    for (SegmentedLog log : logs.values()) {
+      log.close();
+    }
+    if (autoClean) {
+      cleanDir(dataDir);
+    }
+  }
+
+  private SegmentedLog getLog(String topic, int partition) throws IOException {
+    String key = topic + "-" + partition;
+    SegmentedLog log = logs.get(key);
+    if (log != null) {
+      return log;
+    }
+    synchronized (this) {
+      log = logs.get(key);
+      if (log == null) {
+        File dir = new File(dataDir, key);
+        Preconditions.checkState(dir.isDirectory() || dir.mkdirs(), "Failed to create directory %s", dir);
+        log = new SegmentedLog(dir, segmentSize);
+        logs.put(key, log);
+        // Register the topic partition count for this broker under /brokers/topics/<topic>/<brokerId>
+        Futures.getUnchecked(zkClient.create("/brokers/topics/" + topic + "/" + brokerId,
+                                             Integer.toString(numPartitions).getBytes(Charsets.UTF_8),
+                                             CreateMode.EPHEMERAL, true));
+      }
+      return log;
+    }
+  }
+
+  private SegmentedLog findLog(String topic, int partition) {
+    return logs.get(topic + "-" + partition);
+  }
+
+  private void cleanDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      if (file.isDirectory()) {
+        cleanDir(file);
+      }
+      file.delete();
+    }
+    dir.delete();
+  }
+
+  private static String readString(ChannelBuffer buffer) {
+    int len = buffer.readShort();
+    return buffer.readBytes(len).toString(Charsets.UTF_8);
+  }
+
+  /**
+   * Handles requests from the client. Kafka handles requests on a connection in order, so does this handler.
+   */
+  private final class RequestHandler extends SimpleChannelUpstreamHandler {
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+      channelGroup.add(e.getChannel());
+      super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+      ChannelBuffer request = (ChannelBuffer) e.getMessage();
+      short type = request.readShort();
+      switch (type) {
+        case PRODUCE:
+          produce(request);
+          break;
+        case MULTI_PRODUCE:
+          for (int count = request.readShort(); count > 0; count--) {
+            produce(request);
+          }
+          break;
+        case FETCH:
+          e.getChannel().write(fetch(request));
+          break;
+        case MULTI_FETCH:
+          int count = request.readShort();
+          List<ChannelBuffer> responses = Lists.newArrayListWithCapacity(count);
+          int size = 2;
+          for (int i = 0; i < count; i++) {
+            ChannelBuffer response = fetch(request);
+            responses.add(response);
+            size += response.readableBytes();
+          }
+          ChannelBuffer header = ChannelBuffers.buffer(6);
+          header.writeInt(size);
+          header.writeShort(ERROR_OK);
+          responses.add(0, header);
+          e.getChannel().write(ChannelBuffers.wrappedBuffer(responses.toArray(new ChannelBuffer[responses.size()])));
+          break;
+        case OFFSETS:
+          e.getChannel().write(offsets(request));
+          break;
+        default:
+          LOG.error("Unsupported request type " + type);
+          e.getChannel().close();
+      }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+      LOG.error("Exception in handling request.", e.getCause());
+      e.getChannel().close();
+    }
+
+    private void produce(ChannelBuffer request) throws IOException {
+      String topic = readString(request);
+      int partition = request.readInt();
+      int size = request.readInt();
+      ChannelBuffer messageSet = request.readSlice(size);
+      if (partition < 0 || partition >= numPartitions) {
+        // Kafka logs and drops produce with invalid partition, as there is no response for produce
+        LOG.error("Wrong partition " + partition + " for topic " + topic);
+        return;
+      }
+      getLog(topic, partition).append(messageSet.toByteBuffer());
+    }
+
+    /**
+     * Returns [SIZE][ERROR_CODE][MESSAGE_SET] for a fetch request.
+     */
+    private ChannelBuffer fetch(ChannelBuffer request) {
+      String topic = readString(request);
+      int partition = request.readInt();
+      long offset = request.readLong();
+      int maxSize = request.readInt();
+
+      short errorCode = ERROR_OK;
+      ChannelBuffer data = ChannelBuffers.EMPTY_BUFFER;
+      if (partition < 0 || partition >= numPartitions) {
+        errorCode = ERROR_WRONG_PARTITION;
+      } else {
+        SegmentedLog log = findLog(topic, partition);
+        if (log != null) {
+          data = log.read(offset, maxSize);
+          if (data == null) {
+            errorCode = ERROR_OFFSET_OUT_OF_RANGE;
+            data = ChannelBuffers.EMPTY_BUFFER;
+          }
+        } else if (offset != 0) {
+          errorCode = ERROR_OFFSET_OUT_OF_RANGE;
+        }
+      }
+
+      ChannelBuffer header = ChannelBuffers.buffer(6);
+      header.writeInt(data.readableBytes() + 2);
+      header.writeShort(errorCode);
+      return ChannelBuffers.wrappedBuffer(header, data);
+    }
+
+    /**
+     * Returns [SIZE][ERROR_CODE][NUM_OFFSETS][OFFSET]* for an offsets request.
+     */
+    private ChannelBuffer offsets(ChannelBuffer request) {
+      String topic = readString(request);
+      int partition = request.readInt();
+      long time = request.readLong();
+      int maxOffsets = request.readInt();
+
+      SegmentedLog log = findLog(topic, partition);
+      long[] offsets = log == null ? new long[] { 0L } : log.getOffsetsBefore(time, maxOffsets);
+
+      ChannelBuffer response = ChannelBuffers.buffer(10 + offsets.length * 8);
+      response.writeInt(6 + offsets.length * 8);
+      response.writeShort(partition < 0 || partition >= numPartitions ? ERROR_WRONG_PARTITION : ERROR_OK);
+      response.writeInt(offsets.length);
+      for (long offset : offsets) {
+        response.writeLong(offset);
+      }
+      return response;
+    }
+  }
+
+  /**
+   * A log consists of memory-mapped segment files. Offsets are byte positions in the log, as in Kafka 0.7.
+   */
+  private static final class SegmentedLog {
+
+    private final File dir;
+    private final int segmentSize;
+    private final List<Segment> segments;
+
+    SegmentedLog(File dir, int segmentSize) throws IOException {
+      this.dir = dir;
+      this.segmentSize = segmentSize;
+      this.segments = Lists.newArrayList();
+      segments.add(new Segment(dir, 0L, segmentSize));
+    }
+
+    synchronized void append(ByteBuffer messageSet) throws IOException {
+      Segment segment = segments.get(segments.size() - 1);
+      if (!segment.hasRoom(messageSet.remaining())) {
+        segment.seal();
+        segment = new Segment(dir, segment.getEndOffset(), Math.max(segmentSize, messageSet.remaining()));
+        segments.add(segment);
+      }
+      segment.append(messageSet);
+    }
+
+    /**
+     * Reads from the given offset up to maxSize bytes from a single segment.
+     * @return The data or {@code null} if the offset is out of range.
+     */
+    synchronized ChannelBuffer read(long offset, int maxSize) {
+      Segment first = segments.get(0);
+      Segment last = segments.get(segments.size() - 1);
+      if (offset < first.getBaseOffset() || offset > last.getEndOffset()) {
+        return null;
+      }
+      for (int i = segments.size() - 1; i >= 0; i--) {
+        Segment segment = segments.get(i);
+        if (offset >= segment.getBaseOffset()) {
+          if (offset == segment.getEndOffset() && i != segments.size() - 1) {
+            // At the end of a sealed segment, read from the next one
+            return segments.get(i + 1).read(offset, maxSize);
+          }
+          return segment.read(offset, maxSize);
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns offsets before the given time, in descending order, similar to Kafka's Log.getOffsetsBefore.
+     */
+    synchronized long[] getOffsetsBefore(long time, int maxOffsets) {
+      int size = segments.size();
+      Segment last = segments.get(size - 1);
+      boolean includeEnd = last.getEndOffset() > last.getBaseOffset();
+
+      List<long[]> offsetTimes = Lists.newArrayList();
+      for (Segment segment : segments) {
+        offsetTimes.add(new long[] { segment.getBaseOffset(), segment.getLastModified() });
+      }
+      if (includeEnd) {
+        offsetTimes.add(new long[] { last.getEndOffset(), System.currentTimeMillis() });
+      }
+
+      int startIdx = -1;
+      if (time == LATEST_TIME) {
+        startIdx = offsetTimes.size() - 1;
+      } else if (time == EARLIEST_TIME) {
+        startIdx = 0;
+      } else {
+        for (int i = offsetTimes.size() - 1; i >= 0 && startIdx < 0; i--) {
+          if (offsetTimes.get(i)[1] <= time) {
+            startIdx = i;
+          }
+        }
+      }
+
+      int count = Math.min(maxOffsets, startIdx + 1);
+      long[] result = new long[Math.max(count, 0)];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = offsetTimes.get(startIdx - i)[0];
+      }
+      return result;
+    }
+
+    synchronized void close() {
+      for (Segment segment : segments) {
+        segment.seal();
+      }
+    }
+  }
+
+  private static final class Segment {
+
+    private final long baseOffset;
+    private final MappedByteBuffer buffer;
+    private final File file;
+    private int size;
+
+    Segment(File dir, long baseOffset, int capacity) throws IOException {
+      this.baseOffset = baseOffset;
+      this.file = new File(dir, String.format("%020d.kafka", baseOffset));
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+      } finally {
+        raf.close();
+      }
+    }
+
+    long getBaseOffset() {
+      return baseOffset;
+    }
+
+    long getEndOffset() {
+      return baseOffset + size;
+    }
+
+    long getLastModified() {
+      return file.lastModified();
+    }
+
+    boolean hasRoom(int bytes) {
+      return buffer.capacity() - size >= bytes;
+    }
+
+    void append(ByteBuffer messageSet) {
+      ByteBuffer dup = buffer.duplicate();
+      dup.position(size);
+      dup.put(messageSet);
+      size = dup.position();
+      file.setLastModified(System.currentTimeMillis());
+    }
+
+    ChannelBuffer read(long offset, int maxSize) {
+      int start = (int) (offset - baseOffset);
+      int len = Math.min(maxSize, size - start);
+      if (len <= 0) {
+        return ChannelBuffers.EMPTY_BUFFER;
+      }
+      ByteBuffer dup = buffer.duplicate();
+      dup.position(start);
+      dup.limit(start + len);
+      return ChannelBuffers.wrappedBuffer(dup.slice());
+    }
+
+    void seal() {
+      buffer.force();
+    }
+  }
+
+  /**
+   * Builder for {@link EmbeddedKafkaServer}.
+   */
+  public static final class Builder {
+    private final String zkConnectStr;
+    private int brokerId = 0;
+    private int numPartitions = 1;
+    private int segmentSize = 16 * 1024 * 1024;
+    private File dataDir;
+
+    public Builder setBrokerId(int brokerId) {
+      this.brokerId = brokerId;
+      return this;
+    }
+
+    public Builder setNumPartitions(int numPartitions) {
+      Preconditions.checkArgument(numPartitions > 0, "Number of partitions must be > 0.");
+      this.numPartitions = numPartitions;
+      return this;
+    }
+
+    public Builder setSegmentSize(int segmentSize) {
+      this.segmentSize = segmentSize;
+      return this;
+    }
+
+    public Builder setDataDir(File dataDir) {
+      this.dataDir = dataDir;
+      return this;
+    }
+
+    public EmbeddedKafkaServer build() {
+      File dir = dataDir == null ? Files.createTempDir() : dataDir;
+      return new EmbeddedKafkaServer(zkConnectStr, brokerId, numPartitions, segmentSize, dir, dataDir == null);
+    }
+
+    private Builder(String zkConnectStr) {
+      this.zkConnectStr = zkConnectStr;
+    }
+  }
+}